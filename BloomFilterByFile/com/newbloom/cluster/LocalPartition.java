@@ -0,0 +1,70 @@
+package com.newbloom.cluster;
+
+import com.newbloom.common.hash.BloomFilter;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link Partition} backed by a {@link BloomFilter} of this process, whose batches run on an
+ * {@link Executor} so that the batches of different partitions proceed in parallel.
+ */
+public final class LocalPartition implements Partition {
+    private final BloomFilter<byte[]> filter;
+    private final Executor executor;
+    private final boolean serialized;
+
+    private LocalPartition(BloomFilter<byte[]> filter, Executor executor, boolean serialized) {
+        this.filter = checkNotNull(filter);
+        this.executor = checkNotNull(executor);
+        this.serialized = serialized;
+    }
+
+    /**
+     * Returns a partition over a heap filter, which any number of batches may use at once.
+     */
+    public static LocalPartition concurrent(BloomFilter<byte[]> filter, Executor executor) {
+        return new LocalPartition(filter, executor, false);
+    }
+
+    /**
+     * Returns a partition that runs one batch at a time, for filters that are not thread-safe such as
+     * those created by {@link BloomFilter#createByFile}.
+     */
+    public static LocalPartition serialized(BloomFilter<byte[]> filter, Executor executor) {
+        return new LocalPartition(filter, executor, true);
+    }
+
+    public BloomFilter<byte[]> filter() {
+        return filter;
+    }
+
+    public CompletableFuture<boolean[]> putAll(List<byte[]> elements) {
+        return CompletableFuture.supplyAsync(() -> run(elements, true), executor);
+    }
+
+    public CompletableFuture<boolean[]> mightContainAll(List<byte[]> elements) {
+        return CompletableFuture.supplyAsync(() -> run(elements, false), executor);
+    }
+
+    private boolean[] run(List<byte[]> elements, boolean put) {
+        if (serialized) {
+            synchronized (this) {
+                return apply(elements, put);
+            }
+        }
+        return apply(elements, put);
+    }
+
+    private boolean[] apply(List<byte[]> elements, boolean put) {
+        boolean[] results = new boolean[elements.size()];
+        for (int i = 0; i < results.length; i++) {
+            byte[] element = elements.get(i);
+            results[i] = put ? filter.put(element) : filter.mightContain(element);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,21 @@
+package com.newbloom.cluster;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One partition of a {@link PartitionedFilterClient}: a Bloom filter of {@code byte[]} that takes
+ * batches of elements, in process ({@link LocalPartition}) or behind a {@link
+ * com.newbloom.server.BloomFilterServer} ({@link RemotePartition}).
+ */
+public interface Partition {
+    /**
+     * Puts all of {@code elements}, completing with the result of each {@code put}.
+     */
+    CompletableFuture<boolean[]> putAll(List<byte[]> elements);
+
+    /**
+     * Queries all of {@code elements}, completing with the result of each {@code mightContain}.
+     */
+    CompletableFuture<boolean[]> mightContainAll(List<byte[]> elements);
+}
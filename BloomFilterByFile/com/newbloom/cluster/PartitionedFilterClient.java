@@ -0,0 +1,139 @@
+package com.newbloom.cluster;
+
+import com.newbloom.common.hash.HashFunction;
+import com.newbloom.common.hash.Hashing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+
+/**
+ * Spreads the elements of one logical Bloom filter over several {@link Partition}s with {@link
+ * Hashing#consistentHash(com.newbloom.common.hash.HashCode, int)}, for filters that outgrow one
+ * node.
+ *
+ * <p>Going from {@code n} to {@code n + 1} partitions moves only about {@code 1/(n + 1)} of the
+ * elements, all of them to the new partition; {@link Rebalancer} copies just those. Partitions are
+ * chosen by a seeded murmur3_128 so that the partition of an element does not correlate with the
+ * bits the (unseeded) filter strategies set for it.
+ *
+ * <p>The batch methods group the elements by partition, send each partition its batch at once, and
+ * complete when all partitions answered.
+ */
+public final class PartitionedFilterClient {
+    private static final HashFunction PARTITION_HASH = Hashing.murmur3_128(0x2545F491);
+
+    private final List<Partition> partitions;
+
+    public PartitionedFilterClient(List<? extends Partition> partitions) {
+        checkArgument(!partitions.isEmpty(), "at least one partition is required");
+        for (Partition partition : partitions) {
+            checkNotNull(partition);
+        }
+        this.partitions = Collections.unmodifiableList(new ArrayList<>(partitions));
+    }
+
+    public List<Partition> partitions() {
+        return partitions;
+    }
+
+    /**
+     * Returns the partition, in {@code [0, partitionCount)}, that {@code element} belongs to.
+     */
+    public static int partitionOf(byte[] element, int partitionCount) {
+        return Hashing.consistentHash(PARTITION_HASH.hashBytes(element), partitionCount);
+    }
+
+    public boolean put(byte[] element) throws IOException {
+        return putAll(Collections.singletonList(element))[0];
+    }
+
+    public boolean mightContain(byte[] element) throws IOException {
+        return mightContainAll(Collections.singletonList(element))[0];
+    }
+
+    /**
+     * Puts all of {@code elements}, returning the result of each {@code put}.
+     *
+     * @throws IOException if a remote partition failed
+     */
+    public boolean[] putAll(List<byte[]> elements) throws IOException {
+        return await(putAllAsync(elements));
+    }
+
+    /**
+     * Queries all of {@code elements}, returning the result of each {@code mightContain}.
+     *
+     * @throws IOException if a remote partition failed
+     */
+    public boolean[] mightContainAll(List<byte[]> elements) throws IOException {
+        return await(mightContainAllAsync(elements));
+    }
+
+    public CompletableFuture<boolean[]> putAllAsync(List<byte[]> elements) {
+        return fanOut(elements, true);
+    }
+
+    public CompletableFuture<boolean[]> mightContainAllAsync(List<byte[]> elements) {
+        return fanOut(elements, false);
+    }
+
+    private CompletableFuture<boolean[]> fanOut(List<byte[]> elements, boolean put) {
+        int n = partitions.size();
+        int[] partitionOf = new int[elements.size()];
+        int[] sizes = new int[n];
+        for (int i = 0; i < partitionOf.length; i++) {
+            partitionOf[i] = partitionOf(elements.get(i), n);
+            sizes[partitionOf[i]]++;
+        }
+        List<List<byte[]>> batches = new ArrayList<>(n);
+        for (int p = 0; p < n; p++) {
+            batches.add(new ArrayList<>(sizes[p]));
+        }
+        for (int i = 0; i < partitionOf.length; i++) {
+            batches.get(partitionOf[i]).add(elements.get(i));
+        }
+
+        List<CompletableFuture<boolean[]>> answers = new ArrayList<>(n);
+        for (int p = 0; p < n; p++) {
+            List<byte[]> batch = batches.get(p);
+            Partition partition = partitions.get(p);
+            answers.add(
+                    batch.isEmpty()
+                            ? CompletableFuture.completedFuture(new boolean[0])
+                            : put ? partition.putAll(batch) : partition.mightContainAll(batch));
+        }
+        return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0]))
+                .thenApply(
+                        ignored -> {
+                            boolean[] results = new boolean[partitionOf.length];
+                            int[] next = new int[n];
+                            for (int i = 0; i < results.length; i++) {
+                                int p = partitionOf[i];
+                                results[i] = answers.get(p).join()[next[p]++];
+                            }
+                            return results;
+                        });
+    }
+
+    private static boolean[] await(CompletableFuture<boolean[]> result) throws IOException {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+}
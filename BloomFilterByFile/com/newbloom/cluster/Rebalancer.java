@@ -0,0 +1,143 @@
+package com.newbloom.cluster;
+
+import com.newbloom.server.BloomFilterClient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+
+/**
+ * Moves elements to their partitions after the partition count of a {@link PartitionedFilterClient}
+ * changed.
+ *
+ * <p>A Bloom filter cannot list its elements, so the keys come from the system of record; of those,
+ * only the keys whose {@linkplain PartitionedFilterClient#partitionOf partition} differs between the
+ * old and the new count are put, about {@code 1/n} of them when adding an {@code n}th partition.
+ * Their bits stay set in the old partitions: lookups no longer go there for those keys, they merely
+ * add a little to the false positive rate of the old partitions.
+ */
+public final class Rebalancer {
+    private Rebalancer() {}
+
+    /** Counts of one rebalance. */
+    public static final class Result {
+        private final long scanned;
+        private final long[] movedTo;
+
+        Result(long scanned, long[] movedTo) {
+            this.scanned = scanned;
+            this.movedTo = movedTo;
+        }
+
+        /** Returns the number of keys read. */
+        public long scanned() {
+            return scanned;
+        }
+
+        /** Returns the number of keys put into new partitions. */
+        public long moved() {
+            long moved = 0;
+            for (long count : movedTo) {
+                moved += count;
+            }
+            return moved;
+        }
+
+        /** Returns the number of keys put into {@code partition}. */
+        public long movedTo(int partition) {
+            return movedTo[partition];
+        }
+
+        @Override
+        public String toString() {
+            return "scanned " + scanned + ", moved " + moved();
+        }
+    }
+
+    /**
+     * Puts those of {@code keys} whose partition changed from {@code oldPartitionCount} partitions to
+     * the partitions of {@code target}, in batches of {@code batchSize} keys.
+     */
+    public static Result rebalance(
+            Iterator<byte[]> keys, int oldPartitionCount, PartitionedFilterClient target, int batchSize)
+            throws IOException {
+        checkArgument(oldPartitionCount > 0, "oldPartitionCount (%s) must be > 0", oldPartitionCount);
+        checkArgument(batchSize > 0, "batchSize (%s) must be > 0", batchSize);
+        int newPartitionCount = target.partitions().size();
+        long scanned = 0;
+        long[] movedTo = new long[newPartitionCount];
+        List<byte[]> batch = new ArrayList<>(batchSize);
+        while (keys.hasNext()) {
+            byte[] key = keys.next();
+            scanned++;
+            int newPartition = PartitionedFilterClient.partitionOf(key, newPartitionCount);
+            if (PartitionedFilterClient.partitionOf(key, oldPartitionCount) == newPartition) {
+                continue;
+            }
+            movedTo[newPartition]++;
+            batch.add(key);
+            if (batch.size() == batchSize) {
+                target.putAll(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            target.putAll(batch);
+        }
+        return new Result(scanned, movedTo);
+    }
+
+    /**
+     * Rebalances the keys of a file, one UTF-8 key per line, onto remote partitions:
+     *
+     * <pre>
+     *   Rebalancer keysFile oldPartitionCount host:port/filter ...
+     * </pre>
+     *
+     * where the {@code host:port/filter} list names the new partitions, in order.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: Rebalancer keysFile oldPartitionCount host:port/filter ...");
+            System.exit(2);
+        }
+        int oldPartitionCount = Integer.parseInt(args[1]);
+        Map<String, BloomFilterClient> clients = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            List<Partition> partitions = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                int slash = args[i].indexOf('/');
+                String hostPort = args[i].substring(0, slash);
+                BloomFilterClient client = clients.get(hostPort);
+                if (client == null) {
+                    int colon = hostPort.lastIndexOf(':');
+                    client =
+                            new BloomFilterClient(
+                                    new InetSocketAddress(
+                                            hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1))));
+                    clients.put(hostPort, client);
+                }
+                partitions.add(new RemotePartition(client, args[i].substring(slash + 1)));
+            }
+            Iterator<byte[]> keys =
+                    reader.lines().map(line -> line.getBytes(StandardCharsets.UTF_8)).iterator();
+            long start = System.nanoTime();
+            Result result = rebalance(keys, oldPartitionCount, new PartitionedFilterClient(partitions), 4096);
+            System.out.printf("%s in %.1f s%n", result, (System.nanoTime() - start) / 1e9);
+        } finally {
+            for (BloomFilterClient client : clients.values()) {
+                client.close();
+            }
+        }
+    }
+}
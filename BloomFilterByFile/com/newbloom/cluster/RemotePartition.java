@@ -0,0 +1,53 @@
+package com.newbloom.cluster;
+
+import com.newbloom.server.BloomFilterClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link Partition} served by a {@link com.newbloom.server.BloomFilterServer}. A batch is queued
+ * on the {@link BloomFilterClient} at once, which sends it as one frame; any number of partitions
+ * may share a client, e.g. for several filters of the same server.
+ */
+public final class RemotePartition implements Partition {
+    private final BloomFilterClient client;
+    private final String filter;
+
+    public RemotePartition(BloomFilterClient client, String filter) {
+        this.client = checkNotNull(client);
+        this.filter = checkNotNull(filter);
+    }
+
+    public CompletableFuture<boolean[]> putAll(List<byte[]> elements) {
+        return run(elements, true);
+    }
+
+    public CompletableFuture<boolean[]> mightContainAll(List<byte[]> elements) {
+        return run(elements, false);
+    }
+
+    private CompletableFuture<boolean[]> run(List<byte[]> elements, boolean put) {
+        List<CompletableFuture<Boolean>> calls = new ArrayList<>(elements.size());
+        for (byte[] element : elements) {
+            calls.add(put ? client.putAsync(filter, element) : client.mightContainAsync(filter, element));
+        }
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0]))
+                .thenApply(
+                        ignored -> {
+                            boolean[] results = new boolean[calls.size()];
+                            for (int i = 0; i < results.length; i++) {
+                                results[i] = calls.get(i).join();
+                            }
+                            return results;
+                        });
+    }
+
+    @Override
+    public String toString() {
+        return "RemotePartition(" + filter + ")";
+    }
+}
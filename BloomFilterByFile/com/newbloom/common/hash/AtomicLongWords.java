@@ -0,0 +1,252 @@
+package com.newbloom.common.hash;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+
+/**
+ * A fixed number of {@code long} words supporting atomic updates, on the heap, off the heap or in a
+ * memory-mapped file. Sketches whose counters must be both updated concurrently and persisted in a
+ * file share this abstraction; the heap variant is a plain {@link AtomicLongArray}.
+ *
+ * <p>Mapped words are stored big-endian, like the words of {@link BloomFilterStrategies.FileBitArray},
+ * and accessed through a {@link VarHandle} view of the mapping, which gives them the same volatile
+ * and CAS semantics as heap words. Other processes mapping the same file see the updates through the
+ * page cache. Off-heap words are direct buffers accessed the same way.
+ */
+abstract class AtomicLongWords implements Closeable {
+    abstract long length();
+
+    abstract long get(long index);
+
+    abstract void set(long index, long value);
+
+    abstract boolean compareAndSet(long index, long expect, long update);
+
+    abstract long getAndAdd(long index, long delta);
+
+    /** Writes changed words back to the file, if any. */
+    void flush() {}
+
+    public void close() {}
+
+    /**
+     * Raises word {@code index} to {@code value}, returning whether it was lower.
+     */
+    final boolean raise(long index, long value) {
+        long current;
+        do {
+            current = get(index);
+            if (current >= value) {
+                return false;
+            }
+        } while (!compareAndSet(index, current, value));
+        return true;
+    }
+
+    static AtomicLongWords onHeap(long length) {
+        checkArgument(length >= 0 && length <= Integer.MAX_VALUE, "length (%s) is out of range", length);
+        return new Heap(new AtomicLongArray((int) length));
+    }
+
+    /**
+     * Allocates {@code length} zero words in direct buffers, which the garbage collector neither
+     * scans nor moves; they are freed once unreachable.
+     */
+    static AtomicLongWords offHeap(long length) {
+        checkArgument(length >= 0, "length (%s) must be >= 0", length);
+        int segmentCount = (int) ((length + Buffers.SEGMENT_MASK) >>> Buffers.SEGMENT_SHIFT);
+        ByteBuffer[] segments = new ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long words = Math.min(1L << Buffers.SEGMENT_SHIFT, length - ((long) i << Buffers.SEGMENT_SHIFT));
+            segments[i] = ByteBuffer.allocateDirect((int) words * Long.BYTES);
+        }
+        return new Direct(length, segments);
+    }
+
+    /**
+     * Maps {@code length} words of {@code filename}, creating or extending the file with zero words as
+     * needed; existing words keep their values.
+     */
+    static AtomicLongWords mapFile(String filename, long length) {
+        return mapFile(filename, 0, length);
+    }
+
+    /**
+     * Same as {@link #mapFile(String, long)} for the {@code length} words from word {@code firstWord}
+     * of the file, so that a file can be mapped piecemeal as it grows.
+     */
+    static AtomicLongWords mapFile(String filename, long firstWord, long length) {
+        checkArgument(firstWord >= 0, "firstWord (%s) must be >= 0", firstWord);
+        checkArgument(length >= 0, "length (%s) must be >= 0", length);
+        try {
+            return new Mapped(filename, firstWord, length, false);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.toString());
+        }
+    }
+
+    /**
+     * Maps the first {@code length} words of {@code filename} read-only, e.g. to watch words that
+     * another process updates; the update methods throw {@link java.nio.ReadOnlyBufferException}.
+     */
+    static AtomicLongWords mapFileReadOnly(String filename, long length) {
+        checkArgument(length >= 0, "length (%s) must be >= 0", length);
+        try {
+            return new Mapped(filename, 0, length, true);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.toString());
+        }
+    }
+
+    private static final class Heap extends AtomicLongWords {
+        private final AtomicLongArray words;
+
+        Heap(AtomicLongArray words) {
+            this.words = words;
+        }
+
+        long length() {
+            return words.length();
+        }
+
+        long get(long index) {
+            return words.get((int) index);
+        }
+
+        void set(long index, long value) {
+            words.set((int) index, value);
+        }
+
+        boolean compareAndSet(long index, long expect, long update) {
+            return words.compareAndSet((int) index, expect, update);
+        }
+
+        long getAndAdd(long index, long delta) {
+            return words.getAndAdd((int) index, delta);
+        }
+    }
+
+    /** Words in 1 GB buffers, accessed through a {@link VarHandle}. */
+    private abstract static class Buffers extends AtomicLongWords {
+        private static final VarHandle WORD =
+                MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+        /** Words per buffer; buffers are limited to 2 GB, segments take 1 GB. */
+        static final int SEGMENT_SHIFT = 27;
+        static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+        private final long length;
+        final ByteBuffer[] segments;
+
+        Buffers(long length, ByteBuffer[] segments) {
+            this.length = length;
+            this.segments = segments;
+        }
+
+        long length() {
+            return length;
+        }
+
+        private ByteBuffer segment(long index) {
+            return segments[(int) (index >>> SEGMENT_SHIFT)];
+        }
+
+        private static int offset(long index) {
+            return (int) (index & SEGMENT_MASK) << 3;
+        }
+
+        long get(long index) {
+            return (long) WORD.getVolatile(segment(index), offset(index));
+        }
+
+        void set(long index, long value) {
+            WORD.setVolatile(segment(index), offset(index), value);
+        }
+
+        boolean compareAndSet(long index, long expect, long update) {
+            return WORD.compareAndSet(segment(index), offset(index), expect, update);
+        }
+
+        long getAndAdd(long index, long delta) {
+            return (long) WORD.getAndAdd(segment(index), offset(index), delta);
+        }
+    }
+
+    /**
+     * Direct buffers, freed by their cleaner once garbage collected: freeing them on {@link #close()}
+     * would crash the JVM on any access racing with it.
+     */
+    private static final class Direct extends Buffers {
+        Direct(long length, ByteBuffer[] segments) {
+            super(length, segments);
+        }
+    }
+
+    private static final class Mapped extends Buffers {
+        private final RandomAccessFile file;
+
+        Mapped(String filename, long firstWord, long length, boolean readOnly) throws IOException {
+            this(new RandomAccessFile(filename, readOnly ? "r" : "rw"), filename, firstWord, length, readOnly);
+        }
+
+        private Mapped(RandomAccessFile file, String filename, long firstWord, long length, boolean readOnly)
+                throws IOException {
+            super(length, map(file, filename, firstWord, length, readOnly));
+            this.file = file;
+        }
+
+        private static MappedByteBuffer[] map(
+                RandomAccessFile file, String filename, long firstWord, long length, boolean readOnly)
+                throws IOException {
+            try {
+                long end = (firstWord + length) * Long.BYTES;
+                if (file.length() < end) {
+                    if (readOnly) {
+                        throw new IOException(filename + " is shorter than " + (firstWord + length) + " words");
+                    }
+                    file.setLength(end);
+                }
+                FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+                FileChannel channel = file.getChannel();
+                int segmentCount = (int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+                MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+                for (int i = 0; i < segmentCount; i++) {
+                    long first = (long) i << SEGMENT_SHIFT;
+                    long words = Math.min(1L << SEGMENT_SHIFT, length - first);
+                    segments[i] = channel.map(mode, (firstWord + first) * Long.BYTES, words * Long.BYTES);
+                }
+                return segments;
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        @Override
+        void flush() {
+            for (ByteBuffer segment : segments) {
+                ((MappedByteBuffer) segment).force();
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+            try {
+                file.close();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.toString());
+            }
+        }
+    }
+}
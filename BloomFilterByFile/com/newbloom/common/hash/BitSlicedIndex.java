@@ -0,0 +1,408 @@
+package com.newbloom.common.hash;
+
+import com.newbloom.common.hash.BloomFilterStrategies.FrozenBitArray;
+import com.newbloom.common.hash.BloomFilterStrategies.IBitArray;
+import com.newbloom.common.hash.BloomFilterStrategies.LockFreeBitArray;
+
+import java.io.Closeable;
+import java.math.RoundingMode;
+import java.util.BitSet;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkElementIndex;
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+import static com.newbloom.common.base.Preconditions.checkPositionIndexes;
+import static com.newbloom.common.base.Preconditions.checkState;
+
+/**
+ * The Bloom filters of many tenants, e.g. one per customer, stored bit-sliced so that one query
+ * tells which of them <i>might</i> contain an element.
+ *
+ * <p>All the filters have the bit size, number of hash functions, strategy and funnel of the
+ * prototype the index is created with. Rather than a bit array per tenant, the index stores a
+ * <i>slice</i> per bit position: bit {@code t} of slice {@code i} is bit {@code i} of the filter of
+ * tenant {@code t}. {@link #candidates} hashes the element once, lets the strategy pick its {@code k}
+ * bit positions as for any filter, and ANDs their slices: the bits left are the tenants whose
+ * filters have all {@code k} bits set. That reads {@code k} runs of {@code ceil(tenants / 64)}
+ * consecutive words instead of {@code k} random words in each of the filters, and stops as soon as
+ * the AND is empty.
+ *
+ * <p>Tenants are added one at a time, up to the capacity the index is created with, either as a
+ * copy of an existing filter or empty; {@link #tenant} views the filter of one tenant as a {@link
+ * BloomFilter} to put elements into. Slices are updated with CAS, so puts, added tenants and queries
+ * may run concurrently; a query sees every put completed before it started.
+ *
+ * <p>An index created by {@link #createByFile} keeps its slices in a memory-mapped file, which
+ * persists them and lets other processes map them too.
+ *
+ * @param <T> the type of elements that the filters accept
+ */
+public final class BitSlicedIndex<T> implements Closeable {
+    private static final long MAGIC = 0x4253494E44455831L; // "BSINDEX1"
+
+    // Words of the header, before the slices.
+    private static final int BIT_SIZE = 1;
+    private static final int HASH_FUNCTIONS = 2;
+    private static final int STRATEGY = 3;
+    private static final int CAPACITY = 4;
+    private static final int TENANTS = 5;
+    private static final int HEADER_WORDS = 8;
+
+    /** Words read from a filter per chunk while adding it. */
+    private static final int COPY_CHUNK_WORDS = 8192;
+
+    private final AtomicLongWords words;
+    private final long bitSize;
+    private final int numHashFunctions;
+    private final BloomFilter.Strategy strategy;
+    private final Funnel<? super T> funnel;
+    private final int capacity;
+
+    /** Words per slice. */
+    private final int sliceWords;
+
+    private BitSlicedIndex(AtomicLongWords words, BloomFilter<T> prototype, int capacity) {
+        this.words = words;
+        this.bitSize = prototype.bitSize();
+        this.numHashFunctions = prototype.numHashFunctions();
+        this.strategy = prototype.strategy();
+        this.funnel = prototype.funnel();
+        this.capacity = capacity;
+        this.sliceWords = sliceWords(capacity);
+    }
+
+    /**
+     * Creates an index on the heap for up to {@code capacity} tenants whose filters are {@linkplain
+     * BloomFilter#isCompatible compatible} with {@code prototype}, e.g. {@code
+     * BitSlicedIndex.create(BloomFilter.create(funnel, expectedInsertions, fpp), 2048)}. The prototype
+     * is not added.
+     */
+    public static <T> BitSlicedIndex<T> create(BloomFilter<T> prototype, int capacity) {
+        checkNotNull(prototype);
+        long length = checkedLength(prototype.bitSize(), capacity);
+        checkArgument(
+                length <= Integer.MAX_VALUE,
+                "%s slices of %s tenants do not fit on the heap, use createByFile",
+                prototype.bitSize(), capacity);
+        AtomicLongWords words = AtomicLongWords.onHeap(length);
+        writeHeader(words, prototype, capacity);
+        return new BitSlicedIndex<T>(words, prototype, capacity);
+    }
+
+    /**
+     * Creates an index like {@link #create} mapped from {@code filename}, or opens the one the file
+     * already holds, which must have been created with the same capacity and a prototype compatible
+     * with {@code prototype}. {@link #close()} writes the slices back to the file.
+     */
+    public static <T> BitSlicedIndex<T> createByFile(BloomFilter<T> prototype, String filename, int capacity) {
+        checkNotNull(prototype);
+        checkNotNull(filename);
+        long length = checkedLength(prototype.bitSize(), capacity);
+        AtomicLongWords words = AtomicLongWords.mapFile(filename, length);
+        if (words.get(0) == 0) {
+            writeHeader(words, prototype, capacity);
+        } else if (words.get(0) != MAGIC
+                || words.get(BIT_SIZE) != prototype.bitSize()
+                || words.get(HASH_FUNCTIONS) != prototype.numHashFunctions()
+                || words.get(STRATEGY) != prototype.strategy().ordinal()
+                || words.get(CAPACITY) != capacity) {
+            words.close();
+            throw new IllegalArgumentException(
+                    filename + " is not a BitSlicedIndex of " + capacity + " tenants like " + prototype);
+        }
+        return new BitSlicedIndex<T>(words, prototype, capacity);
+    }
+
+    private static long checkedLength(long bitSize, int capacity) {
+        checkArgument(capacity > 0, "capacity (%s) must be > 0", capacity);
+        long sliceWords = sliceWords(capacity);
+        checkArgument(
+                bitSize <= (Long.MAX_VALUE / Long.BYTES - HEADER_WORDS) / sliceWords,
+                "%s slices of %s tenants are too many", bitSize, capacity);
+        return HEADER_WORDS + bitSize * sliceWords;
+    }
+
+    private static int sliceWords(int capacity) {
+        return (int) BloomFilterStrategies.LongMathDivide(capacity, Long.SIZE, RoundingMode.CEILING);
+    }
+
+    private static void writeHeader(AtomicLongWords words, BloomFilter<?> prototype, int capacity) {
+        words.set(BIT_SIZE, prototype.bitSize());
+        words.set(HASH_FUNCTIONS, prototype.numHashFunctions());
+        words.set(STRATEGY, prototype.strategy().ordinal());
+        words.set(CAPACITY, capacity);
+        words.set(0, MAGIC);
+    }
+
+    /** Returns the number of tenants this index can hold. */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Returns the number of tenants added so far; tenants are numbered from 0 in the order added. */
+    public int tenantCount() {
+        return (int) words.get(TENANTS);
+    }
+
+    /**
+     * Adds a tenant with an empty filter, to be put into through {@link #tenant}.
+     *
+     * @return the number of the new tenant
+     * @throws IllegalStateException if the index already holds {@link #capacity()} tenants
+     */
+    public int addTenant() {
+        long tenants;
+        do {
+            tenants = words.get(TENANTS);
+            checkState(tenants < capacity, "BitSlicedIndex is full (%s tenants)", capacity);
+        } while (!words.compareAndSet(TENANTS, tenants, tenants + 1));
+        return (int) tenants;
+    }
+
+    /**
+     * Adds a tenant whose filter is a copy of {@code filter}. The tenant can be queried while its bits
+     * are being copied, and is only certain to answer like {@code filter} once this method returns.
+     *
+     * @return the number of the new tenant
+     * @throws IllegalArgumentException if {@code filter} is not compatible with the prototype of this
+     *     index
+     * @throws IllegalStateException if the index already holds {@link #capacity()} tenants
+     */
+    public int addTenant(BloomFilter<T> filter) {
+        checkNotNull(filter);
+        checkArgument(
+                filter.bitSize() == bitSize
+                        && filter.numHashFunctions() == numHashFunctions
+                        && filter.strategy().equals(strategy)
+                        && filter.funnel().equals(funnel),
+                "%s is not compatible with the prototype of this BitSlicedIndex", filter);
+        int tenant = addTenant();
+        new TenantBitArray(tenant).putAll(filter.bits());
+        return tenant;
+    }
+
+    /**
+     * Returns a view of the filter of {@code tenant}: puts into it set the bits of the tenant in this
+     * index. The view is not frozen, snapshotted or closed with the index, and does not track changes
+     * for {@link BloomFilter#exportDelta}.
+     */
+    public BloomFilter<T> tenant(int tenant) {
+        checkElementIndex(tenant, tenantCount(), "tenant");
+        return BloomFilter.<T>wrap(new TenantBitArray(tenant), numHashFunctions, funnel, strategy);
+    }
+
+    /**
+     * Returns the tenants whose filters <i>might</i> contain {@code object}: the set bit {@code t}
+     * stands for tenant {@code t}. Each tenant's answer is exactly the {@link BloomFilter#mightContain}
+     * of its filter.
+     */
+    public BitSet candidates(T object) {
+        SliceAnd slices = new SliceAnd(tenantCount());
+        strategy.mightContain(object, funnel, numHashFunctions, slices);
+        return slices.result();
+    }
+
+    /**
+     * Returns the first word of slice {@code bitIndex}.
+     */
+    private long slice(long bitIndex) {
+        return HEADER_WORDS + bitIndex * sliceWords;
+    }
+
+    /**
+     * Writes the slices of a file index back to its file and closes it. Views returned by {@link
+     * #tenant} must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        words.close();
+    }
+
+    @Override
+    public String toString() {
+        return "BitSlicedIndex(" + tenantCount() + "/" + capacity + " tenants, " + bitSize + " bits, "
+                + numHashFunctions + " hash functions)";
+    }
+
+    /**
+     * The bit array the strategy queries in {@link #candidates}: every bit it reads ANDs a slice into
+     * the result, and reads as clear once the result is empty, so that the strategy stops there. Its
+     * words are that result, one bit per candidate tenant; it cannot be written, copied or frozen.
+     */
+    private final class SliceAnd implements IBitArray {
+        private final long[] result;
+        private boolean first = true;
+
+        SliceAnd(int tenants) {
+            this.result = new long[sliceWords(tenants)];
+        }
+
+        public boolean get(long bitIndex) {
+            long base = slice(bitIndex);
+            long any = 0;
+            for (int i = 0; i < result.length; i++) {
+                long word = first ? words.get(base + i) : result[i] & words.get(base + i);
+                result[i] = word;
+                any |= word;
+            }
+            first = false;
+            return any != 0;
+        }
+
+        BitSet result() {
+            return BitSet.valueOf(result);
+        }
+
+        public long bitSize() {
+            return bitSize;
+        }
+
+        public boolean set(long bitIndex) {
+            throw new UnsupportedOperationException("BitSlicedIndex probes are query-only");
+        }
+
+        /** Returns the number of candidate tenants so far. */
+        public long bitCount() {
+            long count = 0;
+            for (long word : result) {
+                count += Long.bitCount(word);
+            }
+            return count;
+        }
+
+        /** Returns the candidate tenants so far, one bit per tenant. */
+        public long[] toLongArray() {
+            return result.clone();
+        }
+
+        public void putAll(IBitArray other) {
+            throw new UnsupportedOperationException("BitSlicedIndex probes are query-only");
+        }
+
+        public IBitArray freeze() {
+            throw new UnsupportedOperationException("BitSlicedIndex probes are query-only");
+        }
+
+        public LockFreeBitArray copy() {
+            throw new UnsupportedOperationException("BitSlicedIndex probes are query-only");
+        }
+
+        /** Reads words of the candidate tenants so far; see {@link #toLongArray()}. */
+        public void readWords(long firstWord, long[] dst, int length) {
+            checkPositionIndexes((int) firstWord, (int) firstWord + length, result.length);
+            System.arraycopy(result, (int) firstWord, dst, 0, length);
+        }
+
+        public void orWords(long firstWord, long[] src, int length) {
+            throw new UnsupportedOperationException("BitSlicedIndex probes are query-only");
+        }
+
+        public BloomFilterStrategies.DirtyPages dirtyPages() {
+            return null;
+        }
+
+        public void close() {}
+    }
+
+    /** The bits of one tenant, one per slice. */
+    private final class TenantBitArray implements IBitArray {
+        private final int word;
+        private final long mask;
+
+        TenantBitArray(int tenant) {
+            this.word = tenant >>> 6;
+            this.mask = 1L << tenant;
+        }
+
+        public boolean set(long bitIndex) {
+            long index = slice(bitIndex) + word;
+            long current;
+            do {
+                current = words.get(index);
+                if ((current & mask) != 0) {
+                    return false;
+                }
+            } while (!words.compareAndSet(index, current, current | mask));
+            return true;
+        }
+
+        public boolean get(long bitIndex) {
+            return (words.get(slice(bitIndex) + word) & mask) != 0;
+        }
+
+        public long bitSize() {
+            return bitSize;
+        }
+
+        public long bitCount() {
+            long bitCount = 0;
+            for (long i = 0; i < bitSize; i++) {
+                if (get(i)) {
+                    bitCount++;
+                }
+            }
+            return bitCount;
+        }
+
+        public long[] toLongArray() {
+            long[] data = new long[(int) BloomFilterStrategies.LongMathDivide(bitSize, Long.SIZE, RoundingMode.CEILING)];
+            readWords(0, data, data.length);
+            return data;
+        }
+
+        public void putAll(IBitArray other) {
+            checkArgument(
+                    bitSize == other.bitSize(),
+                    "BitArrays must be of equal size (%s != %s)",
+                    bitSize,
+                    other.bitSize());
+            long totalWords = BloomFilterStrategies.LongMathDivide(bitSize, Long.SIZE, RoundingMode.CEILING);
+            long[] chunk = new long[COPY_CHUNK_WORDS];
+            for (long first = 0; first < totalWords; first += COPY_CHUNK_WORDS) {
+                int length = (int) Math.min(COPY_CHUNK_WORDS, totalWords - first);
+                other.readWords(first, chunk, length);
+                orWords(first, chunk, length);
+            }
+        }
+
+        public IBitArray freeze() {
+            return new FrozenBitArray(toLongArray(), bitSize);
+        }
+
+        public LockFreeBitArray copy() {
+            return new LockFreeBitArray(toLongArray(), bitSize);
+        }
+
+        public void readWords(long firstWord, long[] dst, int length) {
+            for (int i = 0; i < length; i++) {
+                long first = (firstWord + i) * Long.SIZE;
+                long end = Math.min(first + Long.SIZE, bitSize);
+                long value = 0;
+                for (long bit = first; bit < end; bit++) {
+                    if (get(bit)) {
+                        value |= 1L << bit;
+                    }
+                }
+                dst[i] = value;
+            }
+        }
+
+        public void orWords(long firstWord, long[] src, int length) {
+            for (int i = 0; i < length; i++) {
+                long first = (firstWord + i) * Long.SIZE;
+                for (long value = src[i]; value != 0; value &= value - 1) {
+                    long bit = first + Long.numberOfTrailingZeros(value);
+                    if (bit < bitSize) {
+                        set(bit);
+                    }
+                }
+            }
+        }
+
+        public BloomFilterStrategies.DirtyPages dirtyPages() {
+            return null;
+        }
+
+        public void close() {}
+    }
+}
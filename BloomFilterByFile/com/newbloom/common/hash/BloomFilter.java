@@ -3,10 +3,31 @@ package com.newbloom.common.hash;
 
 import com.newbloom.common.hash.BloomFilterStrategies.LockFreeBitArray;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collector;
 
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+import static com.newbloom.common.base.Preconditions.checkPositionIndexes;
+import static com.newbloom.common.base.Preconditions.checkState;
 import static java.lang.Math.abs;
 import static java.lang.Math.copySign;
 import static java.lang.Math.rint;
@@ -16,9 +37,11 @@ public final class BloomFilter<T> implements Serializable {
     /**
      * A strategy to translate T instances, to {@code numHashFunctions} bit indexes.
      *
-     * <p>Implementations should be collections of pure functions (i.e. stateless).
+     * <p>Implementations should be collections of pure functions (i.e. stateless). They are the
+     * {@link BloomFilterStrategies} constants and {@link HashingStrategy}, which custom strategies
+     * extend: the bit arrays these methods take are internal to this package.
      */
-    interface Strategy extends java.io.Serializable {
+    public interface Strategy extends java.io.Serializable {
 
         /**
          * Sets {@code numHashFunctions} bits of the given bit array, by hashing a user element.
@@ -35,12 +58,72 @@ public final class BloomFilter<T> implements Serializable {
         <T> boolean mightContain(
                 T object, Funnel<? super T> funnel, int numHashFunctions, BloomFilterStrategies.IBitArray bits);
 
+        /**
+         * Sets {@code numHashFunctions} bits of the given bit array from an already computed 128-bit
+         * hash, {@code hash1} being its lower and {@code hash2} its upper eight bytes (little-endian),
+         * exactly as {@link #put} would derive them from the funnelled element.
+         *
+         * <p>Returns whether any bits changed as a result of this operation.
+         */
+        boolean putHash(long hash1, long hash2, int numHashFunctions, BloomFilterStrategies.IBitArray bits);
+
+        /**
+         * Queries {@code numHashFunctions} bits of the given bit array from an already computed
+         * 128-bit hash, see {@link #putHash}.
+         */
+        boolean mightContainHash(
+                long hash1, long hash2, int numHashFunctions, BloomFilterStrategies.IBitArray bits);
+
+        /**
+         * Sets bits for the {@code length} (4 or 8) low bytes of {@code value}, little-endian, exactly
+         * as {@link #put} does for an element that {@link Funnels#integerFunnel()} or {@link
+         * Funnels#longFunnel()} funnels into those bytes, without boxing it or going through a
+         * {@code Hasher}.
+         */
+        boolean putFixedWidth(long value, int length, int numHashFunctions, BloomFilterStrategies.IBitArray bits);
+
+        /**
+         * Queries the bits of the {@code length} low bytes of {@code value}, see {@link #putFixedWidth}.
+         */
+        boolean mightContainFixedWidth(
+                long value, int length, int numHashFunctions, BloomFilterStrategies.IBitArray bits);
+
+        /**
+         * Sets bits for {@code len} bytes of {@code bytes} from {@code off}, exactly as {@link #put}
+         * does for an element that {@link Funnels#byteArrayFunnel()} funnels into those bytes, without
+         * copying them out or going through a {@code Hasher}.
+         */
+        boolean putBytes(byte[] bytes, int off, int len, int numHashFunctions, BloomFilterStrategies.IBitArray bits);
+
+        /**
+         * Queries the bits of {@code len} bytes of {@code bytes} from {@code off}, see {@link #putBytes}.
+         */
+        boolean mightContainBytes(
+                byte[] bytes, int off, int len, int numHashFunctions, BloomFilterStrategies.IBitArray bits);
+
+        /**
+         * Returns the hash function {@link #put} hashes the funnelled element with.
+         */
+        HashFunction hashFunction();
+
+        /**
+         * Returns the hash of a user element that {@link #mightContain} derives its bits from, e.g. to
+         * key a cache of results by it; its {@link HashCode#padToLong()} tells elements apart as well as
+         * the bits do.
+         */
+        <T> HashCode hash(T object, Funnel<? super T> funnel);
+
+        /**
+         * Queries the bits of an element from its {@link #hash}, exactly as {@link #mightContain} does
+         * after hashing it.
+         */
+        boolean mightContainHashCode(HashCode hash, int numHashFunctions, BloomFilterStrategies.IBitArray bits);
+
         /**
          * Identifier used to encode this strategy, when marshalled as part of a BloomFilter. Only
          * values in the [-128, 127] range are valid for the compact serial form. Non-negative values
-         * are reserved for enums defined in BloomFilterStrategies; negative values are reserved for any
-         * custom, stateful strategy we may define (e.g. any kind of strategy that would depend on user
-         * input).
+         * are reserved for enums defined in BloomFilterStrategies; negative values are those of
+         * {@link HashingStrategy} instances, which register themselves under them.
          */
         int ordinal();
     }
@@ -65,6 +148,11 @@ public final class BloomFilter<T> implements Serializable {
      */
     private final Strategy strategy;
 
+    /**
+     * Cache of {@link #mightContain} results, or null, see {@link #enableFrontCache}.
+     */
+    private volatile FrontCache frontCache;
+
     /**
      * Creates a BloomFilter.
      */
@@ -83,18 +171,214 @@ public final class BloomFilter<T> implements Serializable {
      * Creates a new {@code BloomFilter} that's a copy of this instance. The new instance is equal to
      * this instance but shares no mutable state.
      *
+     * <p>The copy always lives on the heap: copying a filter created by {@link #createByFile} reads
+     * the whole file into memory.
+     *
      * @since 12.0
      */
-//  public BloomFilter<T> copy() {
-//    return new BloomFilter<T>(bits.copy(), numHashFunctions, funnel, strategy);
-//  }
+    public BloomFilter<T> copy() {
+        return new BloomFilter<T>(bits.copy(), numHashFunctions, funnel, strategy);
+    }
+
+    /**
+     * Releases the file or mapping behind this filter: closes the file of a {@link #createByFile}
+     * filter, drops the mapping of an {@link #openReadOnly} one, which is unmapped once garbage
+     * collected; heap filters hold neither. Reading this filter afterwards throws {@link
+     * IllegalStateException}; {@link BloomFilterHolder} only closes the filters it replaces once no
+     * lease is left on them.
+     */
+    public void close() {
+        bits.close();
+    }
+
+    /**
+     * Forces the file of a {@link #createByFile} filter to disk and brings the CRC32C checksums of its
+     * 4 KB pages up to date, in a {@code .crc} file next to it. The first flush computes them all; from
+     * then on, each flush and {@link #close} only recomputes the pages written since the last one.
+     * Other filters have nothing to flush.
+     *
+     * <p>An {@link #openReadOnly} filter over a file with checksums verifies each page the first time
+     * it reads it, so opening stays O(1). A corrupt page is logged and reads as all ones: a torn write
+     * or bit rot turns into false positives rather than false negatives. Flush before opening the file
+     * for reading, or pages written since the last flush look corrupt.
+     */
+    public void flush() {
+        if (bits instanceof BloomFilterStrategies.FileBitArray) {
+            ((BloomFilterStrategies.FileBitArray) bits).flush();
+        }
+    }
+
+    /**
+     * Verifies every page of an {@link #openReadOnly} filter that was not read yet against its
+     * checksum, see {@link #flush()}, and returns the number of corrupt pages found since opening. The
+     * filter can be queried meanwhile. Returns 0 for a filter without checksums.
+     */
+    public long verifyChecksums() {
+        if (bits instanceof BloomFilterStrategies.MappedBitArray) {
+            return ((BloomFilterStrategies.MappedBitArray) bits).verifyChecksums();
+        }
+        return 0;
+    }
+
+    /**
+     * Runs {@link #verifyChecksums()} in a new daemon thread, e.g. to scrub a large filter right after
+     * opening it without delaying the first queries.
+     */
+    public CompletableFuture<Long> verifyChecksumsInBackground() {
+        return CompletableFuture.supplyAsync(this::verifyChecksums, task -> {
+            Thread thread = new Thread(task, "BloomFilter-scrubber");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    /**
+     * Opens a consistent, point-in-time {@link Snapshot} of this heap filter, e.g. to persist it
+     * while other threads keep putting into it. Taking the snapshot is O(1); from then on, the first
+     * put into each 4 KB page of the bit array copies that page for the snapshot, until the snapshot
+     * is {@linkplain Snapshot#close() closed}.
+     *
+     * <p>Every element whose {@link #put} returned before this call is in the snapshot, none of those
+     * put after it returns are. Only one snapshot of a filter can be open at a time.
+     *
+     * @throws IllegalStateException if another snapshot of this filter is open, or if this is not a
+     *     heap filter
+     */
+    public Snapshot<T> snapshot() {
+        if (bits instanceof BloomFilterStrategies.AdaptiveBitArray) {
+            LockFreeBitArray dense = ((BloomFilterStrategies.AdaptiveBitArray) bits).dense();
+            return new Snapshot<T>(dense.snapshot(), numHashFunctions, funnel, strategy);
+        }
+        checkState(
+                bits instanceof LockFreeBitArray,
+                "Snapshots are only supported by heap BloomFilters, use copy() instead");
+        return new Snapshot<T>(((LockFreeBitArray) bits).snapshot(), numHashFunctions, funnel, strategy);
+    }
+
+    /**
+     * A point-in-time image of a heap {@link BloomFilter}, see {@link BloomFilter#snapshot()}.
+     */
+    public static final class Snapshot<T> implements Closeable {
+        private final BloomFilterStrategies.CowSnapshot bits;
+        private final BloomFilter<T> filter;
+
+        private Snapshot(
+                BloomFilterStrategies.CowSnapshot bits, int numHashFunctions, Funnel<? super T> funnel, Strategy strategy) {
+            this.bits = bits;
+            this.filter = new BloomFilter<T>(bits, numHashFunctions, funnel, strategy);
+        }
+
+        /**
+         * Sequence number of this snapshot among the snapshots taken of its filter, starting at 1.
+         */
+        public long epoch() {
+            return bits.epoch();
+        }
+
+        /**
+         * Returns a read-only {@code BloomFilter} answering as the filter did when the snapshot was
+         * taken. It is only valid until this snapshot is closed.
+         */
+        public BloomFilter<T> filter() {
+            return filter;
+        }
+
+        /**
+         * Writes the snapshot in the format of {@link BloomFilter#writeTo}, streaming it page by page.
+         * Pages that were not written to since the snapshot was taken are read from the live filter
+         * and not retained.
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            DataOutputStream dout = new DataOutputStream(out);
+            filter.writeHeader(dout);
+            for (int page = 0; page < bits.pageCount(); page++) {
+                for (long value : bits.readPage(page)) {
+                    dout.writeLong(value);
+                }
+            }
+            dout.flush();
+        }
+
+        /**
+         * Releases the pages copied for this snapshot; writers stop copying pages.
+         */
+        @Override
+        public void close() {
+            bits.close();
+        }
+    }
+
+    /**
+     * Returns an immutable {@code BloomFilter} answering {@link #mightContain} exactly like this one
+     * does now. {@link #put} on it throws {@link UnsupportedOperationException}.
+     *
+     * <p>A heap filter is copied into a plain {@code long[]}, read without any atomics; a filter
+     * created by {@link #createByFile} is memory-mapped read-only, so it should not be written through
+     * this instance any more (see {@link #openReadOnly}).
+     */
+    public BloomFilter<T> freeze() {
+        return new BloomFilter<T>(bits.freeze(), numHashFunctions, funnel, strategy);
+    }
 
     /**
      * Returns {@code true} if the element <i>might</i> have been put in this Bloom filter, {@code
      * false} if this is <i>definitely</i> not the case.
      */
     public boolean mightContain(T object) {
-        return strategy.mightContain(object, funnel, numHashFunctions, bits);
+        FrontCache cache = frontCache;
+        if (cache == null) {
+            return strategy.mightContain(object, funnel, numHashFunctions, bits);
+        }
+        HashCode hash = strategy.hash(object, funnel);
+        long key = hash.padToLong();
+        long epoch = cache.epoch();
+        int cached = cache.lookup(key, epoch);
+        if (cached != FrontCache.ABSENT) {
+            return cached != 0;
+        }
+        boolean result = strategy.mightContainHashCode(hash, numHashFunctions, bits);
+        cache.record(key, result, epoch);
+        return result;
+    }
+
+    /**
+     * Puts a cache of up to {@code entries} {@link #mightContain} results in front of this filter,
+     * replacing any previous one, so that hot elements are answered without reading the {@code k}
+     * bits of a file or large mapped filter again; pointless for heap filters. Puts through this
+     * instance keep the cache right, puts by other processes or through other instances over the
+     * same file do not: see {@link FrontCache}. Only {@link #mightContain(Object)} uses the cache.
+     *
+     * @return the cache, for its hit and miss counts
+     */
+    public FrontCache enableFrontCache(int entries) {
+        FrontCache cache = new FrontCache(entries);
+        frontCache = cache;
+        return cache;
+    }
+
+    /**
+     * Drops the cache of {@link #enableFrontCache}, if any.
+     */
+    public void disableFrontCache() {
+        frontCache = null;
+    }
+
+    /**
+     * Returns the cache of {@link #enableFrontCache}, or null.
+     */
+    public FrontCache frontCache() {
+        return frontCache;
+    }
+
+    /**
+     * Makes the negative results cached in front of this filter stale if its bits {@code changed}.
+     */
+    private boolean invalidateIf(boolean changed) {
+        FrontCache cache = frontCache;
+        if (changed && cache != null) {
+            cache.invalidateNegatives();
+        }
+        return changed;
     }
 
 //  /**
@@ -119,7 +403,181 @@ public final class BloomFilter<T> implements Serializable {
      * @since 12.0 (present in 11.0 with {@code void} return type})
      */
     public boolean put(T object) {
-        return strategy.put(object, funnel, numHashFunctions, bits);
+        return invalidateIf(strategy.put(object, funnel, numHashFunctions, bits));
+    }
+
+    /**
+     * Puts {@code object} into this filter and adds it to {@code cardinality}, hashing it only once.
+     * The sketch gets the hash of this filter's funnel, so it should have been created with the same
+     * funnel for {@link HyperLogLog#add} to agree with this method. Filters whose strategy does not
+     * hash with murmur3_128 hash the object twice.
+     *
+     * @return the result of {@link #put(Object)}
+     */
+    public boolean put(T object, HyperLogLog<? super T> cardinality) {
+        if (strategy.hashFunction() != Hashing.murmur3_128()) {
+            cardinality.add(object);
+            return put(object);
+        }
+        byte[] bytes = Hashing.murmur3_128().hashObject(object, funnel).getBytesInternal();
+        long hash1 = BloomFilterStrategies.lowerEight(bytes);
+        cardinality.addHash(hash1);
+        return invalidateIf(
+                strategy.putHash(hash1, BloomFilterStrategies.upperEight(bytes), numHashFunctions, bits));
+    }
+
+    /**
+     * Puts a {@code long} into this {@code BloomFilter} without boxing it. Sets exactly the same bits
+     * as {@code put(Long.valueOf(value))} on a filter created with {@link Funnels#longFunnel()}, so
+     * filters (and their files) built either way are interchangeable.
+     *
+     * @throws IllegalStateException if this filter was not created with {@link Funnels#longFunnel()}
+     */
+    public boolean putLong(long value) {
+        checkState(
+                funnel == Funnels.longFunnel(),
+                "putLong requires Funnels.longFunnel(), not %s", funnel);
+        return putFixedWidth(value, Long.BYTES);
+    }
+
+    /**
+     * Returns {@code true} if the {@code long} <i>might</i> have been put in this Bloom filter. Same
+     * result as {@code mightContain(Long.valueOf(value))}, without the boxing.
+     *
+     * @throws IllegalStateException if this filter was not created with {@link Funnels#longFunnel()}
+     */
+    public boolean mightContainLong(long value) {
+        checkState(
+                funnel == Funnels.longFunnel(),
+                "mightContainLong requires Funnels.longFunnel(), not %s", funnel);
+        return mightContainFixedWidth(value, Long.BYTES);
+    }
+
+    /**
+     * Puts every value of {@code values}, see {@link #putLong(long)}.
+     *
+     * @return the number of values that changed the bits of this filter, i.e. that were
+     * <i>definitely</i> not in it before
+     */
+    public int putLongs(long[] values) {
+        checkState(
+                funnel == Funnels.longFunnel(),
+                "putLongs requires Funnels.longFunnel(), not %s", funnel);
+        int changed = 0;
+        for (long value : values) {
+            if (putFixedWidth(value, Long.BYTES)) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Queries every value of {@code values}, see {@link #mightContainLong(long)}, storing the answer
+     * for {@code values[i]} in {@code results[i]}.
+     *
+     * @return the number of values that <i>might</i> be in this filter
+     */
+    public int mightContainLongs(long[] values, boolean[] results) {
+        checkState(
+                funnel == Funnels.longFunnel(),
+                "mightContainLongs requires Funnels.longFunnel(), not %s", funnel);
+        checkArgument(
+                results.length >= values.length,
+                "results (%s) shorter than values (%s)", results.length, values.length);
+        int found = 0;
+        for (int i = 0; i < values.length; i++) {
+            boolean result = mightContainFixedWidth(values[i], Long.BYTES);
+            results[i] = result;
+            if (result) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Puts an {@code int} into this {@code BloomFilter} without boxing it. Sets exactly the same bits
+     * as {@code put(Integer.valueOf(value))} on a filter created with {@link Funnels#integerFunnel()}.
+     *
+     * @throws IllegalStateException if this filter was not created with {@link Funnels#integerFunnel()}
+     */
+    public boolean putInt(int value) {
+        checkState(
+                funnel == Funnels.integerFunnel(),
+                "putInt requires Funnels.integerFunnel(), not %s", funnel);
+        return putFixedWidth(value & 0xFFFFFFFFL, Integer.BYTES);
+    }
+
+    /**
+     * Returns {@code true} if the {@code int} <i>might</i> have been put in this Bloom filter. Same
+     * result as {@code mightContain(Integer.valueOf(value))}, without the boxing.
+     *
+     * @throws IllegalStateException if this filter was not created with {@link Funnels#integerFunnel()}
+     */
+    public boolean mightContainInt(int value) {
+        checkState(
+                funnel == Funnels.integerFunnel(),
+                "mightContainInt requires Funnels.integerFunnel(), not %s", funnel);
+        return mightContainFixedWidth(value & 0xFFFFFFFFL, Integer.BYTES);
+    }
+
+    /** Funnels strings into their UTF-8 bytes, the same bytes as {@link Funnels#byteArrayFunnel()}. */
+    private static final Funnel<CharSequence> UTF_8_FUNNEL = Funnels.stringFunnel(StandardCharsets.UTF_8);
+
+    /**
+     * Puts {@code len} bytes of {@code bytes} from {@code off} into this filter, without copying them
+     * out. Sets exactly the same bits as {@code put} of those bytes on a filter created with {@link
+     * Funnels#byteArrayFunnel()}, or of the string they encode on a filter created with {@code
+     * Funnels.stringFunnel(UTF_8)}, so keys read as raw bytes need not be decoded.
+     *
+     * @throws IllegalStateException if this filter was created with another funnel
+     */
+    public boolean putBytes(byte[] bytes, int off, int len) {
+        checkBytesFunnel("putBytes");
+        checkPositionIndexes(off, off + len, bytes.length);
+        return invalidateIf(strategy.putBytes(bytes, off, len, numHashFunctions, bits));
+    }
+
+    /**
+     * Returns {@code true} if the {@code len} bytes of {@code bytes} from {@code off} <i>might</i>
+     * have been put in this Bloom filter, see {@link #putBytes}.
+     *
+     * @throws IllegalStateException if this filter was created with another funnel
+     */
+    public boolean mightContainBytes(byte[] bytes, int off, int len) {
+        checkBytesFunnel("mightContainBytes");
+        checkPositionIndexes(off, off + len, bytes.length);
+        return strategy.mightContainBytes(bytes, off, len, numHashFunctions, bits);
+    }
+
+    private void checkBytesFunnel(String method) {
+        checkState(
+                funnel == Funnels.byteArrayFunnel() || UTF_8_FUNNEL.equals(funnel),
+                "%s requires Funnels.byteArrayFunnel() or Funnels.stringFunnel(UTF_8), not %s", method, funnel);
+    }
+
+    /**
+     * Puts the element whose 128-bit hash is {@code hash1} and {@code hash2}, see {@link
+     * Strategy#putHash}, for callers that derive their own keys.
+     */
+    boolean putHash(long hash1, long hash2) {
+        return invalidateIf(strategy.putHash(hash1, hash2, numHashFunctions, bits));
+    }
+
+    /**
+     * Queries the element whose 128-bit hash is {@code hash1} and {@code hash2}, see {@link #putHash}.
+     */
+    boolean mightContainHash(long hash1, long hash2) {
+        return strategy.mightContainHash(hash1, hash2, numHashFunctions, bits);
+    }
+
+    private boolean putFixedWidth(long value, int length) {
+        return invalidateIf(strategy.putFixedWidth(value, length, numHashFunctions, bits));
+    }
+
+    private boolean mightContainFixedWidth(long value, int length) {
+        return strategy.mightContainFixedWidth(value, length, numHashFunctions, bits);
     }
 
     /**
@@ -174,6 +632,30 @@ public final class BloomFilter<T> implements Serializable {
         return bits.bitSize();
     }
 
+    int numHashFunctions() {
+        return numHashFunctions;
+    }
+
+    Strategy strategy() {
+        return strategy;
+    }
+
+    Funnel<? super T> funnel() {
+        return funnel;
+    }
+
+    BloomFilterStrategies.IBitArray bits() {
+        return bits;
+    }
+
+    /**
+     * Returns a filter over {@code bits}, e.g. a mapping of a filter stored elsewhere.
+     */
+    static <T> BloomFilter<T> wrap(
+            BloomFilterStrategies.IBitArray bits, int numHashFunctions, Funnel<? super T> funnel, Strategy strategy) {
+        return new BloomFilter<T>(bits, numHashFunctions, funnel, strategy);
+    }
+
     /**
      * Determines whether a given Bloom filter is compatible with this Bloom filter. For two Bloom
      * filters to be compatible, they must:
@@ -198,6 +680,45 @@ public final class BloomFilter<T> implements Serializable {
                 && this.funnel.equals(that.funnel);
     }
 
+    /**
+     * Combines this Bloom filter with another Bloom filter by performing a bitwise OR of the
+     * underlying data. The mutations happen to <b>this</b> instance. Callers must ensure the Bloom
+     * filters are appropriately sized to avoid saturating them.
+     *
+     * <p>The two filters may use different backends (e.g. a heap filter OR'ed into a file filter) as
+     * long as they are {@linkplain #isCompatible compatible}.
+     *
+     * @param that The Bloom filter to combine this Bloom filter with. It is not mutated.
+     * @throws IllegalArgumentException if {@code isCompatible(that) == false}
+     * @since 15.0
+     */
+    public void putAll(BloomFilter<T> that) {
+        checkNotNull(that);
+        checkArgument(this != that, "Cannot combine a BloomFilter with itself.");
+        checkArgument(
+                this.numHashFunctions == that.numHashFunctions,
+                "BloomFilters must have the same number of hash functions (%s != %s)",
+                this.numHashFunctions,
+                that.numHashFunctions);
+        checkArgument(
+                this.bitSize() == that.bitSize(),
+                "BloomFilters must have the same size underlying bit arrays (%s != %s)",
+                this.bitSize(),
+                that.bitSize());
+        checkArgument(
+                this.strategy.equals(that.strategy),
+                "BloomFilters must have equal strategies (%s != %s)",
+                this.strategy,
+                that.strategy);
+        checkArgument(
+                this.funnel.equals(that.funnel),
+                "BloomFilters must have equal funnels (%s != %s)",
+                this.funnel,
+                that.funnel);
+        this.bits.putAll(that.bits);
+        invalidateIf(true);
+    }
+
     @Override
     public boolean equals(Object object) {
         if (object == this) {
@@ -213,6 +734,208 @@ public final class BloomFilter<T> implements Serializable {
         return false;
     }
 
+    /**
+     * Writes this {@code BloomFilter} to an output stream, with a custom format (not Java
+     * serialization). This has been measured to save at least 400 bytes compared to regular
+     * serialization.
+     *
+     * <p>Use {@linkplain #readFrom(InputStream, Funnel)} to reconstruct the written BloomFilter.
+     * Writing a filter that is being put into concurrently gives a "rolling snapshot" of it, use
+     * {@link #snapshot()} to write a consistent one.
+     *
+     * @throws IllegalStateException if the bit size of this filter is not a multiple of 64, which is
+     *     the case of filters created by {@link #createByFile} (their file is their persisted form)
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        writeHeader(dout);
+        for (long value : bits.toLongArray()) {
+            dout.writeLong(value);
+        }
+        dout.flush();
+    }
+
+    private void writeHeader(DataOutputStream dout) throws IOException {
+        long words = BloomFilterStrategies.LongMathDivide(bits.bitSize(), Long.SIZE, RoundingMode.CEILING);
+        checkState(
+                words * Long.SIZE == bits.bitSize(),
+                "Cannot write a BloomFilter of %s bits, only multiples of 64 are supported",
+                bits.bitSize());
+        dout.writeByte(SignedBytesCheckedCast(strategy.ordinal()));
+        dout.writeByte(UnsignedBytesCheckedCast(numHashFunctions)); // note: checked at the c'tor
+        dout.writeInt((int) words);
+    }
+
+    /**
+     * Reads a byte stream, which was written by {@linkplain #writeTo(OutputStream)}, into a {@code
+     * BloomFilter}.
+     *
+     * <p>The {@code Funnel} to be used is not encoded in the stream, so it must be provided here.
+     * <b>Warning:</b> the funnel provided <b>must</b> behave identically to the one used to populate
+     * the original Bloom filter!
+     *
+     * @throws IOException if the InputStream throws an {@code IOException}, or if its data does not
+     *     appear to be a BloomFilter serialized using the {@linkplain #writeTo(OutputStream)} method.
+     */
+    public static <T> BloomFilter<T> readFrom(InputStream in, Funnel<? super T> funnel) throws IOException {
+        checkNotNull(in, "InputStream");
+        checkNotNull(funnel, "Funnel");
+        int strategyOrdinal = -1;
+        int numHashFunctions = -1;
+        int dataLength = -1;
+        try {
+            DataInputStream din = new DataInputStream(in);
+            // Negative ordinals are those of registered HashingStrategy instances.
+            strategyOrdinal = din.readByte();
+            numHashFunctions = UnsignedBytesToInt(din.readByte());
+            dataLength = din.readInt();
+
+            Strategy strategy = HashingStrategy.forOrdinal(strategyOrdinal);
+            long[] data = new long[dataLength];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = din.readLong();
+            }
+            return new BloomFilter<T>(new LockFreeBitArray(data), numHashFunctions, funnel, strategy);
+        } catch (RuntimeException e) {
+            String message =
+                    "Unable to deserialize BloomFilter from InputStream."
+                            + " strategyOrdinal: "
+                            + strategyOrdinal
+                            + " numHashFunctions: "
+                            + numHashFunctions
+                            + " dataLength: "
+                            + dataLength;
+            throw new IOException(message, e);
+        }
+    }
+
+    /** Leading {@code int} of every delta stream: "BFD1". */
+    private static final int DELTA_MAGIC = 0x42464431;
+
+    /**
+     * Writes the words of this filter that changed since {@code sinceEpoch} to {@code out}, for a
+     * replica to {@linkplain #applyDelta apply}, and returns the {@code sinceEpoch} to pass to the next
+     * export for the same replica.
+     *
+     * <p>Changes are tracked per page of 512 words (4 KB); an export ships the non-zero words of every
+     * page changed since {@code sinceEpoch}, as runs of consecutive words. Pass {@code 0} for a full
+     * export, e.g. to seed a new replica. Exports for any number of replicas may be taken while other
+     * threads keep putting into the filter: a bit set during an export is shipped either by that export
+     * or by the next one, never lost. Change tracking lives in memory only, so replicas of a file
+     * filter need a full export after the file is reopened.
+     *
+     * @throws UnsupportedOperationException if this filter is {@linkplain #freeze() frozen}, read-only
+     *     or a snapshot, none of which change
+     */
+    public long exportDelta(long sinceEpoch, WritableByteChannel out) throws IOException {
+        checkArgument(sinceEpoch >= 0, "sinceEpoch (%s) must be >= 0", sinceEpoch);
+        BloomFilterStrategies.DirtyPages dirtyPages = bits.dirtyPages();
+        if (dirtyPages == null) {
+            throw new UnsupportedOperationException("BloomFilter does not track changes");
+        }
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out)));
+        long words = BloomFilterStrategies.LongMathDivide(bits.bitSize(), Long.SIZE, RoundingMode.CEILING);
+        long[] page = new long[LockFreeBitArray.PAGE_WORDS];
+        long epoch;
+        synchronized (dirtyPages) {
+            epoch = dirtyPages.beginExport();
+            dout.writeInt(DELTA_MAGIC);
+            dout.writeLong(bits.bitSize());
+            dout.writeByte(SignedBytesCheckedCast(strategy.ordinal()));
+            dout.writeByte(UnsignedBytesCheckedCast(numHashFunctions));
+            dout.writeLong(epoch + 1);
+            for (int p = 0; p < dirtyPages.pageCount(); p++) {
+                if (!dirtyPages.claim(p, sinceEpoch, epoch)) {
+                    continue;
+                }
+                long firstWord = (long) p * LockFreeBitArray.PAGE_WORDS;
+                int length = (int) Math.min(LockFreeBitArray.PAGE_WORDS, words - firstWord);
+                bits.readWords(firstWord, page, length);
+                int i = 0;
+                while (i < length) {
+                    if (page[i] == 0) {
+                        i++;
+                        continue;
+                    }
+                    int start = i;
+                    while (i < length && page[i] != 0) {
+                        i++;
+                    }
+                    dout.writeInt((int) (firstWord + start));
+                    dout.writeInt(i - start);
+                    for (int j = start; j < i; j++) {
+                        dout.writeLong(page[j]);
+                    }
+                }
+            }
+            dout.writeInt(-1);
+            dout.flush();
+        }
+        return epoch + 1;
+    }
+
+    /**
+     * ORs a delta written by {@link #exportDelta} into this filter, and returns the {@code sinceEpoch}
+     * that the source filter handed out with it. The words applied count as changed in this filter
+     * too, so that its own exports pass them on to further replicas.
+     *
+     * @throws IllegalArgumentException if the delta was exported by a filter of another size, strategy
+     *     or number of hash functions
+     * @throws IOException if the channel throws an {@code IOException}, or if its data is not a delta
+     *     written by {@link #exportDelta}
+     */
+    public long applyDelta(ReadableByteChannel in) throws IOException {
+        checkNotNull(in, "ReadableByteChannel");
+        // Reads exactly the delta off the channel, so that several can be sent back to back.
+        ByteBuffer buffer = ByteBuffer.allocate(8 * LockFreeBitArray.PAGE_WORDS);
+        readDelta(in, buffer, 22);
+        if (buffer.getInt() != DELTA_MAGIC) {
+            throw new IOException("Not a BloomFilter delta");
+        }
+        long bitSize = buffer.getLong();
+        int strategyOrdinal = buffer.get();
+        int numHashFunctions = UnsignedBytesToInt(buffer.get());
+        long nextEpoch = buffer.getLong();
+        checkArgument(
+                bitSize == bits.bitSize()
+                        && strategyOrdinal == strategy.ordinal()
+                        && numHashFunctions == this.numHashFunctions,
+                "Delta (bitSize %s, strategy %s, numHashFunctions %s) does not match this BloomFilter",
+                bitSize,
+                strategyOrdinal,
+                numHashFunctions);
+        long words = BloomFilterStrategies.LongMathDivide(bitSize, Long.SIZE, RoundingMode.CEILING);
+        long[] run = new long[LockFreeBitArray.PAGE_WORDS];
+        while (true) {
+            readDelta(in, buffer, 4);
+            int firstWord = buffer.getInt();
+            if (firstWord == -1) {
+                return nextEpoch;
+            }
+            readDelta(in, buffer, 4);
+            int length = buffer.getInt();
+            if (firstWord < 0 || length <= 0 || length > run.length || firstWord + (long) length > words) {
+                throw new IOException(
+                        "Corrupt BloomFilter delta: run of " + length + " words at word " + firstWord);
+            }
+            readDelta(in, buffer, length * 8);
+            buffer.asLongBuffer().get(run, 0, length);
+            bits.orWords(firstWord, run, length);
+            invalidateIf(true);
+        }
+    }
+
+    /** Reads exactly {@code length} bytes of a delta into {@code buffer}, and flips it. */
+    private static void readDelta(ReadableByteChannel in, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new EOFException("Truncated BloomFilter delta");
+            }
+        }
+        buffer.flip();
+    }
+
     public static int ObjectsHashCode(Object... objects) {
         return Arrays.hashCode(objects);
     }
@@ -236,6 +959,129 @@ public final class BloomFilter<T> implements Serializable {
         return create(funnel, expectedInsertions, fpp, BloomFilterStrategies.MURMUR128_MITZ_64);
     }
 
+    /**
+     * Opens a file written by {@link #createByFile(Funnel, String, long)} as an immutable, read-only
+     * {@code BloomFilter}, see {@link #openReadOnly(Funnel, String, long, double, Strategy)}.
+     */
+    public static <T> BloomFilter<T> openReadOnly(
+            Funnel<? super T> funnel, String filename, long expectedInsertions) {
+        return openReadOnly(funnel, filename, expectedInsertions, 0.03, BloomFilterStrategies.MURMUR128_MITZ_64);
+    }
+
+    /**
+     * Opens a file written by {@link #createByFile(Funnel, String, long, double, Strategy)} as an
+     * immutable {@code BloomFilter} over a {@code READ_ONLY} memory mapping. The file stores no
+     * header, so {@code expectedInsertions}, {@code fpp} and {@code strategy} must be the ones the file
+     * was created with.
+     *
+     * <p>The mapping can be shared by any number of threads, and by any number of processes through
+     * the page cache. {@link #put} throws {@link UnsupportedOperationException}.
+     */
+    public static <T> BloomFilter<T> openReadOnly(
+            Funnel<? super T> funnel, String filename, long expectedInsertions, double fpp, Strategy strategy) {
+        return openReadOnly(funnel, filename, expectedInsertions, fpp, strategy, EnumSet.noneOf(MemoryAdvice.class));
+    }
+
+    /**
+     * Same as {@link #openReadOnly(Funnel, String, long, double, Strategy)}, applying {@code advice}
+     * to the mapping before returning it. A filter much larger than memory wants {@link
+     * MemoryAdvice#RANDOM}; one that should answer its first queries at full speed wants {@link
+     * MemoryAdvice#PRETOUCH}, and {@link MemoryAdvice#MLOCK} to stay resident.
+     */
+    public static <T> BloomFilter<T> openReadOnly(
+            Funnel<? super T> funnel,
+            String filename,
+            long expectedInsertions,
+            double fpp,
+            Strategy strategy,
+            Set<MemoryAdvice> advice) {
+        checkNotNull(advice);
+        if (expectedInsertions == 0) {
+            expectedInsertions = 1;
+        }
+
+        long numBits = optimalNumOfBits(expectedInsertions, fpp);
+        int numHashFunctions = optimalNumOfHashFunctions(expectedInsertions, numBits);
+        long bitSize = BloomFilterStrategies.FileBitArray.bitSizeFor(numBits);
+        return new BloomFilter<T>(
+                BloomFilterStrategies.MappedBitArray.open(filename, bitSize, advice), numHashFunctions, funnel, strategy);
+    }
+
+    /**
+     * Returns a {@code Collector} expecting the specified number of insertions, and yielding a {@link
+     * BloomFilter} with the specified expected false positive probability.
+     *
+     * <p>The collector is {@link Collector.Characteristics#CONCURRENT CONCURRENT} and {@link
+     * Collector.Characteristics#UNORDERED UNORDERED}: a parallel stream has all of its workers put
+     * straight into the one lock-free bit array instead of building partial filters and merging them.
+     *
+     * @param funnel the funnel of T's that the constructed {@code BloomFilter} will use
+     * @param expectedInsertions the number of expected insertions to the constructed {@code
+     *     BloomFilter}; must be positive
+     * @param fpp the desired false positive probability (must be positive and less than 1.0)
+     * @return a {@code Collector} generating a {@code BloomFilter} of the received elements
+     * @since 23.0
+     */
+    public static <T> Collector<T, ?, BloomFilter<T>> toBloomFilter(
+            Funnel<? super T> funnel, long expectedInsertions, double fpp) {
+        checkNotNull(funnel);
+        return Collector.of(
+                () -> BloomFilter.<T>create(funnel, expectedInsertions, fpp),
+                BloomFilter::put,
+                (bf1, bf2) -> {
+                    bf1.putAll(bf2);
+                    return bf1;
+                },
+                Collector.Characteristics.UNORDERED,
+                Collector.Characteristics.CONCURRENT);
+    }
+
+    /**
+     * Returns a {@code Collector} yielding a file-backed {@link BloomFilter}, as created by {@link
+     * #createByFile(Funnel, String, long, double, Strategy)}.
+     *
+     * <p>A {@code FileBitArray} does one seek and read (and possibly write) per probe and cannot be
+     * shared between threads, so the elements are first collected concurrently into a heap bit array
+     * of the file's exact size; the finisher then opens the file and ORs that array into it word by
+     * word, in large chunks.
+     */
+    public static <T> Collector<T, ?, BloomFilter<T>> toBloomFilterByFile(
+            Funnel<? super T> funnel, String filename, long expectedInsertions, double fpp) {
+        checkNotNull(funnel);
+        checkNotNull(filename);
+        Strategy strategy = BloomFilterStrategies.MURMUR128_MITZ_64;
+        return Collector.of(
+                () -> BloomFilter.<T>createFileStaging(funnel, expectedInsertions, fpp, strategy),
+                BloomFilter::put,
+                (bf1, bf2) -> {
+                    bf1.putAll(bf2);
+                    return bf1;
+                },
+                staging -> {
+                    BloomFilter<T> filter = createByFile(funnel, filename, expectedInsertions, fpp, strategy);
+                    filter.putAll(staging);
+                    return filter;
+                },
+                Collector.Characteristics.UNORDERED,
+                Collector.Characteristics.CONCURRENT);
+    }
+
+    /**
+     * Creates an empty heap filter with exactly the geometry {@link #createByFile} gives a file filter,
+     * so that it can later be {@linkplain #putAll put into} that file filter.
+     */
+    private static <T> BloomFilter<T> createFileStaging(
+            Funnel<? super T> funnel, long expectedInsertions, double fpp, Strategy strategy) {
+        if (expectedInsertions == 0) {
+            expectedInsertions = 1;
+        }
+        long numBits = optimalNumOfBits(expectedInsertions, fpp);
+        int numHashFunctions = optimalNumOfHashFunctions(expectedInsertions, numBits);
+        long bitSize = BloomFilterStrategies.FileBitArray.bitSizeFor(numBits);
+        long[] data = new long[(int) BloomFilterStrategies.LongMathDivide(bitSize, 64, RoundingMode.CEILING)];
+        return new BloomFilter<T>(new LockFreeBitArray(data, bitSize), numHashFunctions, funnel, strategy);
+    }
+
     static long optimalNumOfBits(long n, double p) {
         if (p == 0) {
             p = Double.MIN_VALUE;
@@ -271,7 +1117,13 @@ public final class BloomFilter<T> implements Serializable {
     }
 
 
-    static <T> BloomFilter<T> create(
+    /**
+     * Creates a heap {@link BloomFilter} that maps elements to bits with the given {@link
+     * BloomFilterStrategies strategy}, e.g. {@link BloomFilterStrategies#MURMUR128_MITZ_64_FASTRANGE}
+     * for cheaper probes. The strategy is not recorded anywhere: a filter must always be read back
+     * with the strategy it was built with.
+     */
+    public static <T> BloomFilter<T> create(
             Funnel<? super T> funnel, long expectedInsertions, double fpp, Strategy strategy) {
 //    checkNotNull(funnel);
 //    checkArgument(
@@ -297,6 +1149,38 @@ public final class BloomFilter<T> implements Serializable {
         }
     }
 
+    /**
+     * Creates a heap {@link BloomFilter} that starts out holding only the indexes of its set bits and
+     * allocates its full bit array once more than 1/8 of it would be taken up by them, see {@link
+     * #createAdaptive(Funnel, long, double, Strategy)}.
+     */
+    public static <T> BloomFilter<T> createAdaptive(Funnel<? super T> funnel, long expectedInsertions, double fpp) {
+        return createAdaptive(funnel, expectedInsertions, fpp, BloomFilterStrategies.MURMUR128_MITZ_64);
+    }
+
+    /**
+     * Same as {@link #create(Funnel, long, double, Strategy)}, for the many filters that never get
+     * close to {@code expectedInsertions}, e.g. one per session: the filter starts as a small table of
+     * the indexes of its set bits, a few hundred bytes while nearly empty, and switches to the bit
+     * array of a filter from {@code create} once it gets dense enough. It answers exactly like that
+     * filter, is just as {@linkplain #isCompatible compatible} with others and supports {@link
+     * #snapshot()}, which makes it dense; {@link #copy()} always returns a dense filter.
+     */
+    public static <T> BloomFilter<T> createAdaptive(
+            Funnel<? super T> funnel, long expectedInsertions, double fpp, Strategy strategy) {
+        if (expectedInsertions == 0) {
+            expectedInsertions = 1;
+        }
+        long numBits = optimalNumOfBits(expectedInsertions, fpp);
+        int numHashFunctions = optimalNumOfHashFunctions(expectedInsertions, numBits);
+        try {
+            return new BloomFilter<T>(
+                    new BloomFilterStrategies.AdaptiveBitArray(numBits), numHashFunctions, funnel, strategy);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Could not create BloomFilter of " + numBits + " bits", e);
+        }
+    }
+
     public static <T> BloomFilter<T> create(Funnel<? super T> funnel, int expectedInsertions) {
         return create(funnel, (long) expectedInsertions);
     }
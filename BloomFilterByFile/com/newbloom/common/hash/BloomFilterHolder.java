@@ -0,0 +1,239 @@
+package com.newbloom.common.hash;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+import static com.newbloom.common.base.Preconditions.checkState;
+
+/**
+ * Holds the current version of a filter that is rebuilt offline and swapped in while readers keep
+ * querying, e.g. a nightly rebuild of a {@link BloomFilter#createByFile} or {@link
+ * BloomFilter#openReadOnly} filter.
+ *
+ * <p>Readers {@link #pin} the current generation, query it as long as they need, and close the
+ * {@link Lease}. {@link #publish} swaps the new filter in with one atomic write; the generation it
+ * replaces is {@linkplain BloomFilter#close() closed}, releasing its file or mapping, once the last
+ * lease on it is closed, by whichever thread gets there last. Neither side ever blocks the other.
+ *
+ * <p>Pinning costs an acquire load of the current generation, an atomic increment of a counter
+ * striped by thread, so that readers on different cores do not contend, and a re-check that the
+ * generation is still current. {@link #get()} is a single acquire load, without pinning: only use it
+ * for filters that need no closing, like heap filters, which are reclaimed by the garbage collector
+ * anyway.
+ *
+ * @param <T> the type of elements that the held filters accept
+ */
+public final class BloomFilterHolder<T> implements Closeable {
+    private static final VarHandle CURRENT;
+
+    static {
+        try {
+            CURRENT =
+                    MethodHandles.lookup().findVarHandle(BloomFilterHolder.class, "current", Generation.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** Reader counters per generation; a power of two. */
+    private static final int STRIPES = 32;
+
+    /** Longs between two counters, so that each sits on its own cache line. */
+    private static final int STRIPE_SPACING = 8;
+
+    private Generation<T> current; // accessed through CURRENT
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /** A published filter with the number of leases on it. */
+    private static final class Generation<T> {
+        final long number;
+        final BloomFilter<T> filter;
+
+        /**
+         * Leases taken minus leases closed, summed over the stripes. A lease may be closed from
+         * another thread, making a stripe negative; only the sum is meaningful.
+         */
+        final AtomicLongArray readers = new AtomicLongArray(STRIPES * STRIPE_SPACING);
+
+        volatile boolean retired;
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        Generation(long number, BloomFilter<T> filter) {
+            this.number = number;
+            this.filter = filter;
+        }
+
+        /**
+         * Closes the filter if this generation is retired and has no readers. Called by the writer
+         * after retiring it and by every reader leaving it after that: both sides write before they
+         * read the other's write, so one of them sees the last reader gone.
+         */
+        void closeIfDrained() {
+            if (!retired) {
+                return;
+            }
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += readers.get(i * STRIPE_SPACING);
+            }
+            if (sum == 0 && closed.compareAndSet(false, true)) {
+                filter.close();
+            }
+        }
+    }
+
+    /**
+     * A pinned generation: its filter is not closed before this lease is.
+     */
+    public static final class Lease<T> implements AutoCloseable {
+        private final Generation<T> generation;
+        private final int stripe;
+        private boolean released;
+
+        Lease(Generation<T> generation, int stripe) {
+            this.generation = generation;
+            this.stripe = stripe;
+        }
+
+        /** Returns the pinned filter. */
+        public BloomFilter<T> filter() {
+            checkState(!released, "Lease already closed");
+            return generation.filter;
+        }
+
+        /** Returns the number of the pinned generation, see {@link BloomFilterHolder#generation()}. */
+        public long generation() {
+            return generation.number;
+        }
+
+        /** Releases the generation; closing a lease again does nothing. */
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                unpin(generation, stripe);
+            }
+        }
+    }
+
+    /**
+     * Creates a holder whose first generation is {@code filter}.
+     */
+    public BloomFilterHolder(BloomFilter<T> filter) {
+        checkNotNull(filter);
+        CURRENT.setRelease(this, new Generation<T>(1, filter));
+    }
+
+    /**
+     * Returns the current filter with a single acquire load, without pinning it. The filter may be
+     * closed as soon as another one is published, so this is only safe for filters that need no
+     * closing, such as heap filters; use {@link #pin()} for file or mapped ones.
+     */
+    @SuppressWarnings("unchecked")
+    public BloomFilter<T> get() {
+        return ((Generation<T>) CURRENT.getAcquire(this)).filter;
+    }
+
+    /**
+     * Pins the current generation until the returned lease is closed, which must be done exactly
+     * once, typically with try-with-resources.
+     *
+     * @throws IllegalStateException if this holder is closed
+     */
+    public Lease<T> pin() {
+        Generation<T> generation = acquire();
+        return new Lease<T>(generation, stripe());
+    }
+
+    /**
+     * Returns {@code true} if {@code object} <i>might</i> have been put in the current filter,
+     * pinning it for the duration of the query.
+     */
+    public boolean mightContain(T object) {
+        Generation<T> generation = acquire();
+        try {
+            return generation.filter.mightContain(object);
+        } finally {
+            unpin(generation, stripe());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Generation<T> acquire() {
+        int stripe = stripe();
+        while (true) {
+            Generation<T> generation = (Generation<T>) CURRENT.getAcquire(this);
+            generation.readers.getAndIncrement(stripe);
+            // Volatile, to be ordered against the writer's volatile swap of CURRENT.
+            if (CURRENT.getVolatile(this) == generation) {
+                if (!generation.retired) {
+                    return generation;
+                }
+                // Only close() retires the current generation.
+                unpin(generation, stripe);
+                throw new IllegalStateException("BloomFilterHolder is closed");
+            }
+            // Replaced meanwhile: never mind, take the new one.
+            unpin(generation, stripe);
+        }
+    }
+
+    private static void unpin(Generation<?> generation, int stripe) {
+        generation.readers.getAndDecrement(stripe);
+        generation.closeIfDrained();
+    }
+
+    private static int stripe() {
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_SPACING;
+    }
+
+    /**
+     * Makes {@code filter} the current filter; the one it replaces is closed once its last lease is
+     * closed. The new filter must be fully built: readers query it as soon as this method returns,
+     * and may do so before.
+     *
+     * @return the number of the new generation
+     * @throws IllegalStateException if this holder is closed
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized long publish(BloomFilter<T> filter) {
+        checkNotNull(filter);
+        checkState(!closed.get(), "BloomFilterHolder is closed");
+        Generation<T> previous = (Generation<T>) CURRENT.getVolatile(this);
+        Generation<T> next = new Generation<T>(previous.number + 1, filter);
+        CURRENT.setVolatile(this, next);
+        retire(previous);
+        return next.number;
+    }
+
+    private static void retire(Generation<?> generation) {
+        generation.retired = true;
+        generation.closeIfDrained();
+    }
+
+    /**
+     * Returns the number of the current generation: 1 for the filter this holder was created with,
+     * and one more for every {@link #publish}.
+     */
+    @SuppressWarnings("unchecked")
+    public long generation() {
+        return ((Generation<T>) CURRENT.getAcquire(this)).number;
+    }
+
+    /**
+     * Closes the current filter once its last lease is closed. Pinning or publishing afterwards
+     * throws {@link IllegalStateException}.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized void close() {
+        if (closed.compareAndSet(false, true)) {
+            retire((Generation<T>) CURRENT.getVolatile(this));
+        }
+    }
+}
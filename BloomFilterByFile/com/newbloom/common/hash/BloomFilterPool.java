@@ -0,0 +1,424 @@
+package com.newbloom.common.hash;
+
+import com.newbloom.common.hash.BloomFilterStrategies.FrozenBitArray;
+import com.newbloom.common.hash.BloomFilterStrategies.IBitArray;
+import com.newbloom.common.hash.BloomFilterStrategies.LockFreeBitArray;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.RoundingMode;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkElementIndex;
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+import static com.newbloom.common.base.Preconditions.checkState;
+
+/**
+ * Many Bloom filters of the same geometry packed into one arena outside the Java heap, each
+ * addressed by a {@code long} handle, e.g. one filter per session for millions of sessions.
+ *
+ * <p>All the filters have the bit size, number of hash functions, strategy and funnel of the
+ * prototype the pool is created with. A filter is nothing but its words, stored back to back with
+ * the others in slabs of up to 64 MB: there is no object, header or bit count per filter, and the
+ * garbage collector has nothing to scan. Slabs are allocated as the pool grows, {@link #allocate}
+ * hands out the slot of a freed filter first, and {@link #free} puts one back on a free list threaded
+ * through the freed slots themselves.
+ *
+ * <p>Words are updated with CAS and the free list is a lock-free stack, so puts, queries, allocations
+ * and frees may run concurrently. A handle is just the number of its slot: like a pointer, it must
+ * not be used once freed, nor freed twice.
+ *
+ * <p>A pool created by {@link #createByFile} maps its slabs from a file, which persists the filters
+ * together with the free list; {@link #writeTo} writes any pool in the same format.
+ *
+ * @param <T> the type of elements that the filters accept
+ */
+public final class BloomFilterPool<T> implements Closeable {
+    private static final long MAGIC = 0x4246504F4F4C3031L; // "BFPOOL01"
+
+    // Words of the header, before the slots.
+    private static final int BIT_SIZE = 1;
+    private static final int HASH_FUNCTIONS = 2;
+    private static final int STRATEGY = 3;
+    private static final int CAPACITY = 4;
+    /** Slots ever handed out by bumping, the high-water mark of the pool. */
+    private static final int ALLOCATED = 5;
+    /** Top of the free list: a tag in the high half, against ABA, and the slot plus one, or 0. */
+    private static final int FREE_HEAD = 6;
+    private static final int LIVE = 7;
+    private static final int HEADER_WORDS = 8;
+
+    private static final long SLAB_BYTES = 64L << 20;
+
+    /** The header and slabs, {@code null} once closed; see {@link #close()}. */
+    private volatile AtomicLongWords header;
+    private volatile AtomicReferenceArray<AtomicLongWords> slabs;
+    private volatile boolean closed;
+    private final String filename;
+    private final long bitSize;
+    private final int numHashFunctions;
+    private final BloomFilter.Strategy strategy;
+    private final Funnel<? super T> funnel;
+    private final int capacity;
+
+    /** Words per filter. */
+    private final int slotWords;
+    private final int slabSlots;
+
+    private BloomFilterPool(AtomicLongWords header, String filename, BloomFilter<T> prototype, int capacity) {
+        this.header = header;
+        this.filename = filename;
+        this.bitSize = prototype.bitSize();
+        this.numHashFunctions = prototype.numHashFunctions();
+        this.strategy = prototype.strategy();
+        this.funnel = prototype.funnel();
+        this.capacity = capacity;
+        this.slotWords = slotWords(bitSize);
+        this.slabSlots = (int) Math.max(1, Math.min(capacity, SLAB_BYTES / Long.BYTES / slotWords));
+        this.slabs = new AtomicReferenceArray<AtomicLongWords>(
+                (int) BloomFilterStrategies.LongMathDivide(capacity, slabSlots, RoundingMode.CEILING));
+    }
+
+    /**
+     * Creates an empty pool off the heap for up to {@code capacity} filters {@linkplain
+     * BloomFilter#isCompatible compatible} with {@code prototype}, e.g. {@code
+     * BloomFilterPool.create(BloomFilter.create(funnel, expectedInsertions, fpp), 1 << 20)}. Memory is
+     * only taken as filters are allocated, a slab at a time.
+     */
+    public static <T> BloomFilterPool<T> create(BloomFilter<T> prototype, int capacity) {
+        checkNotNull(prototype);
+        checkGeometry(prototype.bitSize(), capacity);
+        AtomicLongWords header = AtomicLongWords.onHeap(HEADER_WORDS);
+        writeHeader(header, prototype, capacity);
+        return new BloomFilterPool<T>(header, null, prototype, capacity);
+    }
+
+    /**
+     * Creates a pool like {@link #create} mapped from {@code filename}, or opens the one the file
+     * already holds, with its filters and free list, which must have been created with the same
+     * capacity and a prototype compatible with {@code prototype}. {@link #close()} writes the filters
+     * back to the file.
+     */
+    public static <T> BloomFilterPool<T> createByFile(BloomFilter<T> prototype, String filename, int capacity) {
+        checkNotNull(prototype);
+        checkNotNull(filename);
+        checkGeometry(prototype.bitSize(), capacity);
+        AtomicLongWords header = AtomicLongWords.mapFile(filename, HEADER_WORDS);
+        if (header.get(0) == 0) {
+            writeHeader(header, prototype, capacity);
+        } else if (header.get(0) != MAGIC
+                || header.get(BIT_SIZE) != prototype.bitSize()
+                || header.get(HASH_FUNCTIONS) != prototype.numHashFunctions()
+                || header.get(STRATEGY) != prototype.strategy().ordinal()
+                || header.get(CAPACITY) != capacity) {
+            header.close();
+            throw new IllegalArgumentException(
+                    filename + " is not a BloomFilterPool of " + capacity + " filters like " + prototype);
+        }
+        return new BloomFilterPool<T>(header, filename, prototype, capacity);
+    }
+
+    private static void checkGeometry(long bitSize, int capacity) {
+        checkArgument(capacity > 0, "capacity (%s) must be > 0", capacity);
+        checkArgument(
+                slotWords(bitSize) <= SLAB_BYTES / Long.BYTES,
+                "filters of %s bits are too large for a BloomFilterPool", bitSize);
+    }
+
+    private static int slotWords(long bitSize) {
+        return (int) BloomFilterStrategies.LongMathDivide(bitSize, Long.SIZE, RoundingMode.CEILING);
+    }
+
+    private static void writeHeader(AtomicLongWords header, BloomFilter<?> prototype, int capacity) {
+        header.set(BIT_SIZE, prototype.bitSize());
+        header.set(HASH_FUNCTIONS, prototype.numHashFunctions());
+        header.set(STRATEGY, prototype.strategy().ordinal());
+        header.set(CAPACITY, capacity);
+        header.set(0, MAGIC);
+    }
+
+    /** Returns the number of filters this pool can hold. */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Returns the number of filters allocated and not freed. */
+    public int size() {
+        return (int) header().get(LIVE);
+    }
+
+    /**
+     * Allocates an empty filter, reusing the slot of a freed one if any.
+     *
+     * @return the handle of the filter
+     * @throws IllegalStateException if the pool already holds {@link #capacity()} filters
+     */
+    public long allocate() {
+        AtomicLongWords header = header();
+        long head;
+        while ((int) (head = header.get(FREE_HEAD)) != 0) {
+            int slot = (int) head - 1;
+            AtomicLongWords slab = slab(slot);
+            long base = base(slot);
+            // Garbage if the slot was popped meanwhile, but then the tag changed and the CAS fails.
+            long next = slab.get(base);
+            if (header.compareAndSet(FREE_HEAD, head, ((head >>> 32) + 1) << 32 | next)) {
+                for (long i = base; i < base + slotWords; i++) {
+                    slab.set(i, 0);
+                }
+                header.getAndAdd(LIVE, 1);
+                return slot;
+            }
+        }
+        long allocated;
+        do {
+            allocated = header.get(ALLOCATED);
+            checkState(allocated < capacity, "BloomFilterPool is full (%s filters)", capacity);
+        } while (!header.compareAndSet(ALLOCATED, allocated, allocated + 1));
+        slab((int) allocated);
+        header.getAndAdd(LIVE, 1);
+        return allocated;
+    }
+
+    /**
+     * Frees the filter of {@code handle}, whose slot a later {@link #allocate} may hand out again.
+     */
+    public void free(long handle) {
+        int slot = checkHandle(handle);
+        AtomicLongWords header = header();
+        AtomicLongWords slab = slab(slot);
+        long base = base(slot);
+        long head;
+        do {
+            head = header.get(FREE_HEAD);
+            slab.set(base, head & 0xFFFFFFFFL);
+        } while (!header.compareAndSet(FREE_HEAD, head, ((head >>> 32) + 1) << 32 | (slot + 1L)));
+        header.getAndAdd(LIVE, -1);
+    }
+
+    /**
+     * Puts {@code object} into the filter of {@code handle}, see {@link BloomFilter#put}.
+     *
+     * @return whether the bits of the filter changed
+     */
+    public boolean put(long handle, T object) {
+        return strategy.put(object, funnel, numHashFunctions, new SlotBitArray(checkHandle(handle)));
+    }
+
+    /**
+     * Returns {@code true} if the filter of {@code handle} <i>might</i> contain {@code object}, {@code
+     * false} if it certainly does not, see {@link BloomFilter#mightContain}.
+     */
+    public boolean mightContain(long handle, T object) {
+        return strategy.mightContain(object, funnel, numHashFunctions, new SlotBitArray(checkHandle(handle)));
+    }
+
+    /**
+     * Returns a view of the filter of {@code handle} as a {@link BloomFilter}, e.g. to {@linkplain
+     * BloomFilter#putAll merge} another filter into it or {@linkplain BloomFilter#copy copy} it to the
+     * heap. The view is valid until the filter is freed; it does not track changes for {@link
+     * BloomFilter#exportDelta}.
+     */
+    public BloomFilter<T> filter(long handle) {
+        return BloomFilter.<T>wrap(new SlotBitArray(checkHandle(handle)), numHashFunctions, funnel, strategy);
+    }
+
+    private int checkHandle(long handle) {
+        checkElementIndex((int) Math.min(handle, Integer.MAX_VALUE), (int) header().get(ALLOCATED), "handle");
+        return (int) handle;
+    }
+
+    /** Returns the slab of {@code slot}, allocating or mapping it on first use. */
+    private AtomicLongWords slab(int slot) {
+        int index = slot / slabSlots;
+        AtomicReferenceArray<AtomicLongWords> slabs = slabs();
+        AtomicLongWords slab = slabs.get(index);
+        if (slab == null) {
+            synchronized (slabs) {
+                slab = slabs.get(index);
+                if (slab == null) {
+                    long firstSlot = (long) index * slabSlots;
+                    long words = Math.min(slabSlots, capacity - firstSlot) * slotWords;
+                    slab = filename == null
+                            ? AtomicLongWords.offHeap(words)
+                            : AtomicLongWords.mapFile(filename, HEADER_WORDS + firstSlot * slotWords, words);
+                    slabs.set(index, slab);
+                }
+            }
+        }
+        return slab;
+    }
+
+    private AtomicLongWords header() {
+        AtomicLongWords header = this.header;
+        checkState(header != null, "BloomFilterPool is closed");
+        return header;
+    }
+
+    private AtomicReferenceArray<AtomicLongWords> slabs() {
+        AtomicReferenceArray<AtomicLongWords> slabs = this.slabs;
+        checkState(slabs != null, "BloomFilterPool is closed");
+        return slabs;
+    }
+
+    /** Returns the first word of {@code slot} in its slab. */
+    private long base(int slot) {
+        return (long) (slot % slabSlots) * slotWords;
+    }
+
+    /**
+     * Writes the whole pool to {@code out} in the format of a {@link #createByFile} file, which can
+     * then be opened with the same prototype and capacity. Filters updated meanwhile may be written
+     * in any state between the ones they had before and after.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        AtomicLongWords header = header();
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out));
+        // The free list before the high-water mark, so that it only points to slots written below.
+        long freeHead = header.get(FREE_HEAD);
+        long live = header.get(LIVE);
+        long allocated = header.get(ALLOCATED);
+        for (int i = 0; i < HEADER_WORDS; i++) {
+            dout.writeLong(i == FREE_HEAD ? freeHead : i == LIVE ? live : i == ALLOCATED ? allocated : header.get(i));
+        }
+        for (int slot = 0; slot < allocated; slot++) {
+            AtomicLongWords slab = slab(slot);
+            long base = base(slot);
+            for (long i = base; i < base + slotWords; i++) {
+                dout.writeLong(slab.get(i));
+            }
+        }
+        dout.flush();
+    }
+
+    /**
+     * Releases the arena: drops the slabs of an off-heap pool, which the garbage collector frees once
+     * no access still holds them, or writes those of a file pool back to its file. Using the pool, or
+     * a view returned by {@link #filter}, afterwards throws {@link IllegalStateException}.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        AtomicReferenceArray<AtomicLongWords> slabs = this.slabs;
+        AtomicLongWords header = this.header;
+        this.slabs = null;
+        this.header = null;
+        for (int i = 0; i < slabs.length(); i++) {
+            AtomicLongWords slab = slabs.get(i);
+            if (slab != null) {
+                slab.close();
+            }
+        }
+        header.close();
+    }
+
+    @Override
+    public String toString() {
+        if (closed) {
+            return "BloomFilterPool(closed, " + capacity + " filters, " + bitSize + " bits)";
+        }
+        return "BloomFilterPool(" + size() + "/" + capacity + " filters, " + bitSize + " bits, "
+                + numHashFunctions + " hash functions)";
+    }
+
+    /** The bits of the filter in one slot; every access fails once the pool is closed. */
+    private final class SlotBitArray implements IBitArray {
+        private final AtomicLongWords slab;
+        private final long base;
+
+        SlotBitArray(int slot) {
+            this.slab = slab(slot);
+            this.base = base(slot);
+        }
+
+        private AtomicLongWords words() {
+            checkState(!closed, "BloomFilterPool is closed");
+            return slab;
+        }
+
+        public boolean set(long bitIndex) {
+            long index = base + (bitIndex >>> 6);
+            long mask = 1L << bitIndex;
+            long current;
+            do {
+                current = words().get(index);
+                if ((current & mask) != 0) {
+                    return false;
+                }
+            } while (!words().compareAndSet(index, current, current | mask));
+            return true;
+        }
+
+        public boolean get(long bitIndex) {
+            return (words().get(base + (bitIndex >>> 6)) & (1L << bitIndex)) != 0;
+        }
+
+        public long bitSize() {
+            return bitSize;
+        }
+
+        public long bitCount() {
+            long bitCount = 0;
+            for (int i = 0; i < slotWords; i++) {
+                bitCount += Long.bitCount(words().get(base + i));
+            }
+            return bitCount;
+        }
+
+        public long[] toLongArray() {
+            long[] data = new long[slotWords];
+            readWords(0, data, slotWords);
+            return data;
+        }
+
+        public void putAll(IBitArray other) {
+            checkArgument(
+                    bitSize == other.bitSize(),
+                    "BitArrays must be of equal size (%s != %s)",
+                    bitSize,
+                    other.bitSize());
+            long[] words = other.toLongArray();
+            orWords(0, words, words.length);
+        }
+
+        public IBitArray freeze() {
+            return new FrozenBitArray(toLongArray(), bitSize);
+        }
+
+        public LockFreeBitArray copy() {
+            return new LockFreeBitArray(toLongArray(), bitSize);
+        }
+
+        public void readWords(long firstWord, long[] dst, int length) {
+            for (int i = 0; i < length; i++) {
+                dst[i] = words().get(base + firstWord + i);
+            }
+        }
+
+        public void orWords(long firstWord, long[] src, int length) {
+            for (int i = 0; i < length; i++) {
+                if (src[i] == 0) {
+                    continue;
+                }
+                long index = base + firstWord + i;
+                long current;
+                do {
+                    current = words().get(index);
+                } while ((current | src[i]) != current && !words().compareAndSet(index, current, current | src[i]));
+            }
+        }
+
+        public BloomFilterStrategies.DirtyPages dirtyPages() {
+            return null;
+        }
+
+        public void close() {}
+    }
+}
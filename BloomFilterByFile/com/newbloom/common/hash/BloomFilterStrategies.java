@@ -17,9 +17,22 @@ package com.newbloom.common.hash;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkState;
 import static java.lang.Math.abs;
 import static java.math.RoundingMode.HALF_EVEN;
 import static java.math.RoundingMode.HALF_UP;
@@ -47,14 +60,35 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
         @Override
         public <T> boolean put(
                 T object, Funnel<? super T> funnel, int numHashFunctions, IBitArray bits) {
-            long bitSize = bits.bitSize();
             long hash64 = Hashing.murmur3_128().hashObject(object, funnel).asLong();
-            int hash1 = (int) hash64;
-            int hash2 = (int) (hash64 >>> 32);
+            return putHash(hash64, 0L, numHashFunctions, bits);
+        }
+
+        @Override
+        public <T> boolean mightContain(
+                T object, Funnel<? super T> funnel, int numHashFunctions, IBitArray bits) {
+            long hash64 = Hashing.murmur3_128().hashObject(object, funnel).asLong();
+            return mightContainHash(hash64, 0L, numHashFunctions, bits);
+        }
+
+        @Override
+        public boolean mightContainHashCode(HashCode hash, int numHashFunctions, IBitArray bits) {
+            return mightContainHash(hash.asLong(), 0L, numHashFunctions, bits);
+        }
+
+        /**
+         * Only the lower 64 bits of the murmur3_128 hash are used by this strategy; {@code hash2} is
+         * ignored.
+         */
+        @Override
+        public boolean putHash(long hash1, long hash2, int numHashFunctions, IBitArray bits) {
+            long bitSize = bits.bitSize();
+            int lowerHash = (int) hash1;
+            int upperHash = (int) (hash1 >>> 32);
 
             boolean bitsChanged = false;
             for (int i = 1; i <= numHashFunctions; i++) {
-                int combinedHash = hash1 + (i * hash2);
+                int combinedHash = lowerHash + (i * upperHash);
                 // Flip all the bits if it's negative (guaranteed positive number)
                 if (combinedHash < 0) {
                     combinedHash = ~combinedHash;
@@ -65,15 +99,13 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
         }
 
         @Override
-        public <T> boolean mightContain(
-                T object, Funnel<? super T> funnel, int numHashFunctions, IBitArray bits) {
+        public boolean mightContainHash(long hash1, long hash2, int numHashFunctions, IBitArray bits) {
             long bitSize = bits.bitSize();
-            long hash64 = Hashing.murmur3_128().hashObject(object, funnel).asLong();
-            int hash1 = (int) hash64;
-            int hash2 = (int) (hash64 >>> 32);
+            int lowerHash = (int) hash1;
+            int upperHash = (int) (hash1 >>> 32);
 
             for (int i = 1; i <= numHashFunctions; i++) {
-                int combinedHash = hash1 + (i * hash2);
+                int combinedHash = lowerHash + (i * upperHash);
                 // Flip all the bits if it's negative (guaranteed positive number)
                 if (combinedHash < 0) {
                     combinedHash = ~combinedHash;
@@ -95,11 +127,20 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
         @Override
         public <T> boolean put(
                 T object, Funnel<? super T> funnel, int numHashFunctions, IBitArray bits) {
-            long bitSize = bits.bitSize();
             byte[] bytes = Hashing.murmur3_128().hashObject(object, funnel).getBytesInternal();
-            long hash1 = lowerEight(bytes);
-            long hash2 = upperEight(bytes);
+            return putHash(lowerEight(bytes), upperEight(bytes), numHashFunctions, bits);
+        }
+
+        @Override
+        public <T> boolean mightContain(
+                T object, Funnel<? super T> funnel, int numHashFunctions, IBitArray bits) {
+            byte[] bytes = Hashing.murmur3_128().hashObject(object, funnel).getBytesInternal();
+            return mightContainHash(lowerEight(bytes), upperEight(bytes), numHashFunctions, bits);
+        }
 
+        @Override
+        public boolean putHash(long hash1, long hash2, int numHashFunctions, IBitArray bits) {
+            long bitSize = bits.bitSize();
             boolean bitsChanged = false;
             long combinedHash = hash1;
             for (int i = 0; i < numHashFunctions; i++) {
@@ -110,48 +151,243 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
             return bitsChanged;
         }
 
+        @Override
+        public boolean mightContainHash(long hash1, long hash2, int numHashFunctions, IBitArray bits) {
+            long bitSize = bits.bitSize();
+            long combinedHash = hash1;
+            for (int i = 0; i < numHashFunctions; i++) {
+                // Make the combined hash positive and indexable
+                if (!bits.get((combinedHash & Long.MAX_VALUE) % bitSize)) {
+                    return false;
+                }
+                combinedHash += hash2;
+            }
+            return true;
+        }
+    },
+    /**
+     * Same hashing as MURMUR128_MITZ_64, but maps each combined hash onto {@code [0, bitSize)} with
+     * Lemire's multiply-shift reduction ("A fast alternative to the modulo reduction") instead of
+     * {@code %}: the index is the high 64 bits of {@code combinedHash * bitSize}. That is a single
+     * multiply per probe rather than a 64-bit division, works for any bit size, and needs no change
+     * to the sizing of the filter.
+     */
+    MURMUR128_MITZ_64_FASTRANGE() {
+        @Override
+        public <T> boolean put(
+                T object, Funnel<? super T> funnel, int numHashFunctions, IBitArray bits) {
+            byte[] bytes = Hashing.murmur3_128().hashObject(object, funnel).getBytesInternal();
+            return putHash(lowerEight(bytes), upperEight(bytes), numHashFunctions, bits);
+        }
+
         @Override
         public <T> boolean mightContain(
                 T object, Funnel<? super T> funnel, int numHashFunctions, IBitArray bits) {
-            long bitSize = bits.bitSize();
             byte[] bytes = Hashing.murmur3_128().hashObject(object, funnel).getBytesInternal();
-            long hash1 = lowerEight(bytes);
-            long hash2 = upperEight(bytes);
+            return mightContainHash(lowerEight(bytes), upperEight(bytes), numHashFunctions, bits);
+        }
 
+        @Override
+        public boolean putHash(long hash1, long hash2, int numHashFunctions, IBitArray bits) {
+            long bitSize = bits.bitSize();
+            boolean bitsChanged = false;
             long combinedHash = hash1;
             for (int i = 0; i < numHashFunctions; i++) {
-                // Make the combined hash positive and indexable
-                if (!bits.get((combinedHash & Long.MAX_VALUE) % bitSize)) {
+                bitsChanged |= bits.set(fastRange(combinedHash, bitSize));
+                combinedHash += hash2;
+            }
+            return bitsChanged;
+        }
+
+        @Override
+        public boolean mightContainHash(long hash1, long hash2, int numHashFunctions, IBitArray bits) {
+            long bitSize = bits.bitSize();
+            long combinedHash = hash1;
+            for (int i = 0; i < numHashFunctions; i++) {
+                if (!bits.get(fastRange(combinedHash, bitSize))) {
                     return false;
                 }
                 combinedHash += hash2;
             }
             return true;
         }
+    },
+    /**
+     * Hashes elements with {@link Hashing#wyhash64()}, which is several times faster than
+     * murmur3_128 on short keys such as host names, and maps the probes like
+     * MURMUR128_MITZ_64_FASTRANGE. Elements funnelled by {@link Funnels#byteArrayFunnel()} or {@link
+     * Funnels#unencodedCharsFunnel()} are hashed in one shot, without a {@code Hasher}.
+     *
+     * <p>wyhash gives 64 bits; the second hash of the Kirsch-Mitzenmacher probe sequence is derived
+     * from them with one more wyhash mixing round, and {@link #putHash} takes that pair.
+     */
+    WYHASH64_MITZ_64_FASTRANGE() {
+        @Override
+        public <T> boolean put(
+                T object, Funnel<? super T> funnel, int numHashFunctions, IBitArray bits) {
+            long hash = wyhash(object, funnel);
+            return putHash(hash, secondHash(hash), numHashFunctions, bits);
+        }
+
+        @Override
+        public <T> boolean mightContain(
+                T object, Funnel<? super T> funnel, int numHashFunctions, IBitArray bits) {
+            long hash = wyhash(object, funnel);
+            return mightContainHash(hash, secondHash(hash), numHashFunctions, bits);
+        }
+
+        @Override
+        public <T> HashCode hash(T object, Funnel<? super T> funnel) {
+            return HashCode.fromLong(wyhash(object, funnel));
+        }
+
+        @Override
+        public boolean mightContainHashCode(HashCode hash, int numHashFunctions, IBitArray bits) {
+            long hash1 = hash.asLong();
+            return mightContainHash(hash1, secondHash(hash1), numHashFunctions, bits);
+        }
+
+        @Override
+        public boolean putHash(long hash1, long hash2, int numHashFunctions, IBitArray bits) {
+            return MURMUR128_MITZ_64_FASTRANGE.putHash(hash1, hash2, numHashFunctions, bits);
+        }
+
+        @Override
+        public boolean mightContainHash(long hash1, long hash2, int numHashFunctions, IBitArray bits) {
+            return MURMUR128_MITZ_64_FASTRANGE.mightContainHash(hash1, hash2, numHashFunctions, bits);
+        }
+
+        @Override
+        public boolean putFixedWidth(long value, int length, int numHashFunctions, IBitArray bits) {
+            long hash = WyHash64.hashFixedWidth(value, length, 0);
+            return putHash(hash, secondHash(hash), numHashFunctions, bits);
+        }
+
+        @Override
+        public boolean mightContainFixedWidth(long value, int length, int numHashFunctions, IBitArray bits) {
+            long hash = WyHash64.hashFixedWidth(value, length, 0);
+            return mightContainHash(hash, secondHash(hash), numHashFunctions, bits);
+        }
 
-        private long LongFromBytes(
-                byte b1, byte b2, byte b3, byte b4, byte b5, byte b6, byte b7, byte b8) {
-            return (b1 & 0xFFL) << 56
-                    | (b2 & 0xFFL) << 48
-                    | (b3 & 0xFFL) << 40
-                    | (b4 & 0xFFL) << 32
-                    | (b5 & 0xFFL) << 24
-                    | (b6 & 0xFFL) << 16
-                    | (b7 & 0xFFL) << 8
-                    | (b8 & 0xFFL);
+        @Override
+        public boolean putBytes(byte[] bytes, int off, int len, int numHashFunctions, IBitArray bits) {
+            long hash = WyHash64.hash(bytes, off, len, 0);
+            return putHash(hash, secondHash(hash), numHashFunctions, bits);
         }
 
-        private /* static */ long lowerEight(byte[] bytes) {
-            return LongFromBytes(
-                    bytes[7], bytes[6], bytes[5], bytes[4], bytes[3], bytes[2], bytes[1], bytes[0]);
+        @Override
+        public boolean mightContainBytes(byte[] bytes, int off, int len, int numHashFunctions, IBitArray bits) {
+            long hash = WyHash64.hash(bytes, off, len, 0);
+            return mightContainHash(hash, secondHash(hash), numHashFunctions, bits);
         }
 
-        private /* static */ long upperEight(byte[] bytes) {
-            return LongFromBytes(
-                    bytes[15], bytes[14], bytes[13], bytes[12], bytes[11], bytes[10], bytes[9], bytes[8]);
+        @Override
+        public HashFunction hashFunction() {
+            return Hashing.wyhash64();
         }
     };
 
+    /**
+     * Murmur3_128 (seed 0) of at most 8 little-endian bytes, unrolled from Murmur3_128Hasher: the
+     * whole input is a single k1 tail block, and h2 starts from zero since k2 is empty.
+     */
+    public boolean putFixedWidth(long value, int length, int numHashFunctions, IBitArray bits) {
+        long h1 = Murmur3_128HashFunction.mixK1(value) ^ length;
+        long h2 = length;
+        h1 += h2;
+        h2 += h1;
+        h1 = Murmur3_128HashFunction.fmix64(h1);
+        h2 = Murmur3_128HashFunction.fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        return putHash(h1, h2, numHashFunctions, bits);
+    }
+
+    public boolean mightContainFixedWidth(long value, int length, int numHashFunctions, IBitArray bits) {
+        long h1 = Murmur3_128HashFunction.mixK1(value) ^ length;
+        long h2 = length;
+        h1 += h2;
+        h2 += h1;
+        h1 = Murmur3_128HashFunction.fmix64(h1);
+        h2 = Murmur3_128HashFunction.fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        return mightContainHash(h1, h2, numHashFunctions, bits);
+    }
+
+    /**
+     * Murmur3_128 (seed 0) of the bytes, through its one-shot {@code hashBytes}.
+     */
+    public boolean putBytes(byte[] bytes, int off, int len, int numHashFunctions, IBitArray bits) {
+        byte[] hash = Hashing.murmur3_128().hashBytes(bytes, off, len).getBytesInternal();
+        return putHash(lowerEight(hash), upperEight(hash), numHashFunctions, bits);
+    }
+
+    public boolean mightContainBytes(byte[] bytes, int off, int len, int numHashFunctions, IBitArray bits) {
+        byte[] hash = Hashing.murmur3_128().hashBytes(bytes, off, len).getBytesInternal();
+        return mightContainHash(lowerEight(hash), upperEight(hash), numHashFunctions, bits);
+    }
+
+    public HashFunction hashFunction() {
+        return Hashing.murmur3_128();
+    }
+
+    public <T> HashCode hash(T object, Funnel<? super T> funnel) {
+        return Hashing.murmur3_128().hashObject(object, funnel);
+    }
+
+    public boolean mightContainHashCode(HashCode hash, int numHashFunctions, IBitArray bits) {
+        byte[] bytes = hash.getBytesInternal();
+        return mightContainHash(lowerEight(bytes), upperEight(bytes), numHashFunctions, bits);
+    }
+
+    private static <T> long wyhash(T object, Funnel<? super T> funnel) {
+        if (funnel == Funnels.byteArrayFunnel()) {
+            byte[] bytes = (byte[]) object;
+            return WyHash64.hash(bytes, 0, bytes.length, 0);
+        }
+        if (funnel == Funnels.unencodedCharsFunnel()) {
+            return WyHash64.hashChars((CharSequence) object, 0);
+        }
+        return Hashing.wyhash64().hashObject(object, funnel).asLong();
+    }
+
+    /** Second probe hash of the wyhash strategies. */
+    private static long secondHash(long hash) {
+        return WyHash64.mix(hash ^ 0x9E3779B97F4A7C15L, 0xD6E8FEB86659FD93L);
+    }
+
+    /**
+     * Returns {@code floor(hash * bitSize / 2^64)}, treating {@code hash} as unsigned, i.e. a value in
+     * {@code [0, bitSize)}. {@code bitSize} is never negative so only {@code hash} needs the unsigned
+     * correction of {@link Math#multiplyHigh}.
+     */
+    static long fastRange(long hash, long bitSize) {
+        return Math.multiplyHigh(hash, bitSize) + ((hash >> 63) & bitSize);
+    }
+
+    private static long LongFromBytes(
+            byte b1, byte b2, byte b3, byte b4, byte b5, byte b6, byte b7, byte b8) {
+        return (b1 & 0xFFL) << 56
+                | (b2 & 0xFFL) << 48
+                | (b3 & 0xFFL) << 40
+                | (b4 & 0xFFL) << 32
+                | (b5 & 0xFFL) << 24
+                | (b6 & 0xFFL) << 16
+                | (b7 & 0xFFL) << 8
+                | (b8 & 0xFFL);
+    }
+
+    static long lowerEight(byte[] bytes) {
+        return LongFromBytes(
+                bytes[7], bytes[6], bytes[5], bytes[4], bytes[3], bytes[2], bytes[1], bytes[0]);
+    }
+
+    static long upperEight(byte[] bytes) {
+        return LongFromBytes(
+                bytes[15], bytes[14], bytes[13], bytes[12], bytes[11], bytes[10], bytes[9], bytes[8]);
+    }
+
     public static long LongMathDivide(long p, long q, RoundingMode mode) {
 
         long div = p / q; // throws if q == 0
@@ -213,6 +449,52 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
         long bitSize();
 
         long bitCount();
+
+        /**
+         * Returns the bits as 64-bit words, bit {@code i} being bit {@code i % 64} of word {@code i / 64}
+         * (the layout of {@link LockFreeBitArray}). Same caveat as {@link
+         * LockFreeBitArray#toPlainArray} when the array is being mutated concurrently.
+         */
+        long[] toLongArray();
+
+        /**
+         * Combines the two bit arrays using bitwise OR. Both must have the same {@link #bitSize()}.
+         */
+        void putAll(IBitArray other);
+
+        /**
+         * Returns an immutable bit array with the current contents of this one. {@link #set} on the
+         * result throws {@link UnsupportedOperationException}.
+         */
+        IBitArray freeze();
+
+        /**
+         * Returns a mutable heap copy of this bit array, sharing no state with it.
+         */
+        LockFreeBitArray copy();
+
+        /**
+         * Copies {@code length} words, in the {@link #toLongArray()} layout, starting at word {@code
+         * firstWord} into {@code dst}.
+         */
+        void readWords(long firstWord, long[] dst, int length);
+
+        /**
+         * ORs {@code length} words of {@code src}, in the {@link #toLongArray()} layout, into this array
+         * starting at word {@code firstWord}.
+         */
+        void orWords(long firstWord, long[] src, int length);
+
+        /**
+         * Returns the pages changed since each delta export, or {@code null} if this array is read-only
+         * and does not track changes.
+         */
+        DirtyPages dirtyPages();
+
+        /**
+         * Releases the file or mapping behind this array, if any. The array must not be used afterwards.
+         */
+        void close();
     }
 
     /**
@@ -223,8 +505,23 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
      */
     static final class LockFreeBitArray implements IBitArray {
         private static final int LONG_ADDRESSABLE_BITS = 6;
+
+        /**
+         * Copy-on-write granularity of snapshots: 512 words, i.e. 4 KB pages.
+         */
+        static final int PAGE_SHIFT = 9;
+        static final int PAGE_WORDS = 1 << PAGE_SHIFT;
+
         final AtomicLongArray data;
         private final LongAddable bitCount;
+        private final long bitSize;
+        private final DirtyPages dirtyPages;
+
+        /**
+         * The open snapshot, if any. Writers preserve a page into it before their first change to it.
+         */
+        private volatile CowSnapshot snapshot;
+        private long lastSnapshotEpoch; // guarded by this
 
         LockFreeBitArray(long bits) {
             //this(new long[Ints.checkedCast(LongMathDivide(bits, 64, RoundingMode.CEILING))]);
@@ -234,8 +531,32 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
 
         // Used by serialization
         LockFreeBitArray(long[] data) {
+            this(data, (long) data.length * Long.SIZE);
+        }
+
+        /**
+         * Creates a bit array whose logical size is {@code bitSize} rather than a multiple of 64, so
+         * that it can stand in for a {@link FileBitArray} of the same size (both strategies reduce the
+         * hash modulo {@link #bitSize()}).
+         */
+        LockFreeBitArray(long[] data, long bitSize) {
+            this(data, bitSize, new DirtyPages(DirtyPages.pageCount(data.length)));
+        }
+
+        /**
+         * Same as {@link #LockFreeBitArray(long[], long)}, tracking changes in {@code dirtyPages}, as
+         * an {@link AdaptiveBitArray} going dense keeps its own.
+         */
+        LockFreeBitArray(long[] data, long bitSize, DirtyPages dirtyPages) {
 //      checkArgument(data.length > 0, "data length is zero!");
+            checkArgument(
+                    bitSize > (long) (data.length - 1) * Long.SIZE && bitSize <= (long) data.length * Long.SIZE,
+                    "bitSize (%s) does not fit %s words",
+                    bitSize,
+                    data.length);
+            this.bitSize = bitSize;
             this.data = new AtomicLongArray(data);
+            this.dirtyPages = dirtyPages;
             this.bitCount = LongAddables.create();
             long bitCount = 0;
             for (long value : data) {
@@ -254,6 +575,7 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
 
             int longIndex = (int) (bitIndex >>> LONG_ADDRESSABLE_BITS);
             long mask = 1L << bitIndex; // only cares about low 6 bits of bitIndex
+            beforeWrite(longIndex);
 
             long oldValue;
             long newValue;
@@ -267,6 +589,7 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
 
             // We turned the bit on, so increment bitCount.
             bitCount.increment();
+            dirtyPages.markDirty(longIndex >>> PAGE_SHIFT);
             return true;
         }
 
@@ -291,7 +614,7 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
          * Number of bits
          */
         public long bitSize() {
-            return (long) data.length() * Long.SIZE;
+            return bitSize;
         }
 
         /**
@@ -306,8 +629,62 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
             return bitCount.sum();
         }
 
-        LockFreeBitArray copy() {
-            return new LockFreeBitArray(toPlainArray(data));
+        public LockFreeBitArray copy() {
+            return new LockFreeBitArray(toPlainArray(data), bitSize);
+        }
+
+        /**
+         * Opens a point-in-time snapshot of this array. Only one snapshot can be open at a time.
+         *
+         * <p>Writers keep going at full speed: the first write to a page after this call copies that
+         * page into the snapshot first, and reads of the snapshot fall through to this array for pages
+         * that have not been written since. Bits set by writes that complete before this call are in
+         * the snapshot, bits set by writes that start after it are not; writes racing with this call
+         * may or may not be.
+         */
+        CowSnapshot snapshot() {
+            synchronized (this) {
+                checkState(snapshot == null, "A snapshot of this BitArray is already open");
+                CowSnapshot opened = new CowSnapshot(this, ++lastSnapshotEpoch);
+                snapshot = opened;
+                return opened;
+            }
+        }
+
+        private void beforeWrite(int longIndex) {
+            CowSnapshot open = snapshot;
+            if (open != null) {
+                open.preserve(longIndex >>> PAGE_SHIFT);
+            }
+        }
+
+        private void closeSnapshot(CowSnapshot closed) {
+            synchronized (this) {
+                if (snapshot == closed) {
+                    snapshot = null;
+                }
+            }
+        }
+
+        public FrozenBitArray freeze() {
+            return new FrozenBitArray(toPlainArray(data), bitSize);
+        }
+
+        public long[] toLongArray() {
+            return toPlainArray(data);
+        }
+
+        public void putAll(IBitArray other) {
+            if (other instanceof LockFreeBitArray) {
+                putAll((LockFreeBitArray) other);
+                return;
+            }
+            checkArgument(
+                    bitSize == other.bitSize(),
+                    "BitArrays must be of equal size (%s != %s)",
+                    bitSize,
+                    other.bitSize());
+            putAll(other.toLongArray());
         }
 
         /**
@@ -320,17 +697,21 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
          * of this method.
          */
         public void putAll(LockFreeBitArray other) {
-//      checkArgument(
-//          data.length() == other.data.length(),
-//          "BitArrays must be of equal length (%s != %s)",
-//          data.length(),
-//          other.data.length());
+            checkArgument(
+                    bitSize == other.bitSize,
+                    "BitArrays must be of equal size (%s != %s)",
+                    bitSize,
+                    other.bitSize);
             for (int i = 0; i < data.length(); i++) {
                 long otherLong = other.data.get(i);
 
                 long ourLongOld;
                 long ourLongNew;
                 boolean changedAnyBits = true;
+                long current = data.get(i);
+                if ((current | otherLong) != current) {
+                    beforeWrite(i);
+                }
                 do {
                     ourLongOld = data.get(i);
                     ourLongNew = ourLongOld | otherLong;
@@ -343,16 +724,67 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
                 if (changedAnyBits) {
                     int bitsAdded = Long.bitCount(ourLongNew) - Long.bitCount(ourLongOld);
                     bitCount.add(bitsAdded);
+                    dirtyPages.markDirty(i >>> PAGE_SHIFT);
+                }
+            }
+        }
+
+        /**
+         * Same as {@link #putAll(LockFreeBitArray)}, from words in the {@link IBitArray#toLongArray()}
+         * layout.
+         */
+        void putAll(long[] words) {
+            orWords(0, words, words.length);
+        }
+
+        public void orWords(long firstWord, long[] src, int length) {
+            for (int j = 0; j < length; j++) {
+                long otherLong = src[j];
+                if (otherLong == 0) {
+                    continue;
+                }
+                int i = (int) (firstWord + j);
+                beforeWrite(i);
+
+                long ourLongOld;
+                long ourLongNew;
+                do {
+                    ourLongOld = data.get(i);
+                    ourLongNew = ourLongOld | otherLong;
+                    if (ourLongOld == ourLongNew) {
+                        break;
+                    }
+                } while (!data.compareAndSet(i, ourLongOld, ourLongNew));
+
+                if (ourLongNew != ourLongOld) {
+                    bitCount.add(Long.bitCount(ourLongNew) - Long.bitCount(ourLongOld));
+                    dirtyPages.markDirty(i >>> PAGE_SHIFT);
                 }
             }
         }
 
+        public void readWords(long firstWord, long[] dst, int length) {
+            for (int j = 0; j < length; j++) {
+                dst[j] = data.get((int) (firstWord + j));
+            }
+        }
+
+        public DirtyPages dirtyPages() {
+            return dirtyPages;
+        }
+
+        public void close() {}
+
         @Override
         public boolean equals(Object o) {
             if (o instanceof LockFreeBitArray) {
                 LockFreeBitArray lockFreeBitArray = (LockFreeBitArray) o;
                 // TODO(lowasser): avoid allocation here
-                return Arrays.equals(toPlainArray(data), toPlainArray(lockFreeBitArray.data));
+                return bitSize == lockFreeBitArray.bitSize
+                        && Arrays.equals(toPlainArray(data), toPlainArray(lockFreeBitArray.data));
+            }
+            if (o instanceof AdaptiveBitArray) {
+                return o.equals(this);
             }
             return false;
         }
@@ -364,67 +796,387 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
         }
     }
 
-    public static final class FileBitArray implements IBitArray {
-        private static final int LONG_ADDRESSABLE_BITS = 6;
+    /**
+     * A heap bit array that starts sparse, as an open-addressed table of the indexes of its set bits,
+     * and turns into a {@link LockFreeBitArray} once more than 1/8 of its words' worth of bits are
+     * set, so that the many filters that never receive more than a few elements cost a few hundred
+     * bytes rather than their full size. Answers are those of a {@link LockFreeBitArray} of the same
+     * size in either representation.
+     *
+     * <p>Writers claim empty slots with a CAS and never block each other. A full table is replaced,
+     * by a table twice as large or by the dense array, after sealing it: every empty slot is CASed to
+     * {@link #SEALED}, so that no write can land in the table once it has been copied, and writers
+     * meeting a sealed slot move on to the replacement.
+     */
+    static final class AdaptiveBitArray implements IBitArray {
+        private static final int INITIAL_SLOTS = 16;
+        private static final int EMPTY = 0;
+        private static final int SEALED = -1;
 
-        private final LongAddable bitCount;
-        private RandomAccessFile raf = null;
-        private long expectedLnegth = 0;
-        private long bitArraySize = 0;
-        private String filename = "";
+        private final long bitSize;
 
-        public FileBitArray(long bits, String filename) {
-            this.filename = filename;
-            expectedLnegth = (bits >>> 3) + 8;
-            try {
-                raf = new RandomAccessFile(filename, "rw");
-                raf.setLength(expectedLnegth);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            bitArraySize=expectedLnegth*8;
-            this.bitCount = LongAddables.create();
+        /** Most set bits held sparse. */
+        private final int sparseLimit;
+        private final DirtyPages dirtyPages;
 
-        }
+        /** The current {@link SparseTable}, or the {@link LockFreeBitArray} for good. */
+        private volatile Object state;
 
-        public static byte[] intToBytes(int value) {
-            byte[] src = new byte[4];
-            src[0] = (byte) ((value>>24) & 0xFF);
-            src[1] = (byte) ((value>>16)& 0xFF);
-            src[2] = (byte) ((value>>8)&0xFF);
-            src[3] = (byte) (value & 0xFF);
-            return src;
+        /**
+         * Creates an array of {@code bits} bits rounded up to a multiple of 64, like {@link
+         * LockFreeBitArray#LockFreeBitArray(long)}.
+         */
+        AdaptiveBitArray(long bits) {
+            long words = LongMathDivide(bits, Long.SIZE, RoundingMode.CEILING);
+            checkArgument(words <= Integer.MAX_VALUE, "bits (%s) must fit an int array of words", bits);
+            this.bitSize = words * Long.SIZE;
+            this.dirtyPages = new DirtyPages(DirtyPages.pageCount(words));
+            this.sparseLimit = (int) (words / 8);
+            // Table slots hold bit indexes plus one, as positive ints.
+            this.state = bitSize < Integer.MAX_VALUE && sparseLimit > 0
+                    ? new SparseTable(INITIAL_SLOTS)
+                    : new LockFreeBitArray(new long[(int) words], bitSize, dirtyPages);
         }
 
-        public static int bytesToInt(byte[] src, int offset) {
-            int value;
-            value = (int) ( ((src[offset] & 0xFF)<<24)
-                    |((src[offset+1] & 0xFF)<<16)
-                    |((src[offset+2] & 0xFF)<<8)
-                    |(src[offset+3] & 0xFF));
-            return value;
+        public boolean set(long bitIndex) {
+            while (true) {
+                Object current = state;
+                if (current instanceof LockFreeBitArray) {
+                    return ((LockFreeBitArray) current).set(bitIndex);
+                }
+                SparseTable table = (SparseTable) current;
+                int added = table.add((int) bitIndex + 1);
+                if (added < 0) {
+                    replace(table, false);
+                    continue;
+                }
+                if (added == 0) {
+                    return false;
+                }
+                dirtyPages.markDirty((int) ((bitIndex >>> 6) >>> LockFreeBitArray.PAGE_SHIFT));
+                if (table.size.incrementAndGet() > table.slots.length() / 2) {
+                    replace(table, false);
+                }
+                return true;
+            }
         }
 
-        private int readFileIndex(long pos) {
-            byte[] data = new byte[4];
+        public boolean get(long bitIndex) {
+            Object current = state;
+            if (current instanceof LockFreeBitArray) {
+                return ((LockFreeBitArray) current).get(bitIndex);
+            }
+            return ((SparseTable) current).contains((int) bitIndex + 1);
+        }
+
+        /**
+         * Seals {@code table} and publishes its replacement, or waits for the thread that got to seal
+         * it first to do so.
+         */
+        private void replace(SparseTable table, boolean dense) {
+            if (!table.sealing.compareAndSet(false, true)) {
+                while (table.next == null) {
+                    Thread.yield();
+                }
+                return;
+            }
+            int[] values = table.seal();
+            Object next;
+            if (dense || values.length > sparseLimit) {
+                long[] words = new long[(int) (bitSize / Long.SIZE)];
+                for (int value : values) {
+                    words[(value - 1) >>> 6] |= 1L << (value - 1);
+                }
+                next = new LockFreeBitArray(words, bitSize, dirtyPages);
+            } else {
+                SparseTable larger = new SparseTable(table.slots.length() * 2);
+                for (int value : values) {
+                    larger.add(value);
+                }
+                larger.size.set(values.length);
+                next = larger;
+            }
+            table.next = next;
+            state = next;
+        }
+
+        /** Returns the dense array, switching to it first if need be. */
+        LockFreeBitArray dense() {
+            while (true) {
+                Object current = state;
+                if (current instanceof LockFreeBitArray) {
+                    return (LockFreeBitArray) current;
+                }
+                replace((SparseTable) current, true);
+            }
+        }
+
+        public long bitSize() {
+            return bitSize;
+        }
+
+        public long bitCount() {
+            Object current = state;
+            if (current instanceof LockFreeBitArray) {
+                return ((LockFreeBitArray) current).bitCount();
+            }
+            return ((SparseTable) current).size.get();
+        }
+
+        public long[] toLongArray() {
+            long[] words = new long[(int) (bitSize / Long.SIZE)];
+            readWords(0, words, words.length);
+            return words;
+        }
+
+        /**
+         * Sets the bits of another sparse array one by one; anything else is merged into the dense
+         * array.
+         */
+        public void putAll(IBitArray other) {
+            checkArgument(
+                    bitSize == other.bitSize(),
+                    "BitArrays must be of equal size (%s != %s)",
+                    bitSize,
+                    other.bitSize());
+            Object otherState = other instanceof AdaptiveBitArray ? ((AdaptiveBitArray) other).state : null;
+            if (otherState instanceof SparseTable) {
+                for (int value : ((SparseTable) otherState).values()) {
+                    set(value - 1);
+                }
+                return;
+            }
+            dense().putAll(other);
+        }
+
+        public IBitArray freeze() {
+            Object current = state;
+            if (current instanceof LockFreeBitArray) {
+                return ((LockFreeBitArray) current).freeze();
+            }
+            return new FrozenBitArray(toLongArray(), bitSize);
+        }
+
+        public LockFreeBitArray copy() {
+            return new LockFreeBitArray(toLongArray(), bitSize);
+        }
+
+        public void readWords(long firstWord, long[] dst, int length) {
+            Object current = state;
+            if (current instanceof LockFreeBitArray) {
+                ((LockFreeBitArray) current).readWords(firstWord, dst, length);
+                return;
+            }
+            Arrays.fill(dst, 0, length, 0L);
+            for (int value : ((SparseTable) current).values()) {
+                long word = (value - 1) >>> 6;
+                if (word >= firstWord && word < firstWord + length) {
+                    dst[(int) (word - firstWord)] |= 1L << (value - 1);
+                }
+            }
+        }
+
+        public void orWords(long firstWord, long[] src, int length) {
+            dense().orWords(firstWord, src, length);
+        }
+
+        public DirtyPages dirtyPages() {
+            return dirtyPages;
+        }
+
+        public void close() {}
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof AdaptiveBitArray || o instanceof LockFreeBitArray) {
+                IBitArray other = (IBitArray) o;
+                return bitSize == other.bitSize() && Arrays.equals(toLongArray(), other.toLongArray());
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(toLongArray());
+        }
+
+        /** Open-addressed set of bit indexes plus one, probed linearly. */
+        private static final class SparseTable {
+            final AtomicIntegerArray slots;
+            final AtomicInteger size = new AtomicInteger();
+            final AtomicBoolean sealing = new AtomicBoolean();
+            volatile Object next;
+
+            SparseTable(int slots) {
+                this.slots = new AtomicIntegerArray(slots);
+            }
+
+            private int start(int value) {
+                return (value * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(slots.length() - 1);
+            }
+
+            /**
+             * Returns 1 if {@code value} was added, 0 if it was there, or -1 if the table is full or
+             * sealed.
+             */
+            int add(int value) {
+                int mask = slots.length() - 1;
+                int i = start(value);
+                for (int probes = 0; probes <= mask; ) {
+                    int slot = slots.get(i);
+                    if (slot == value) {
+                        return 0;
+                    }
+                    if (slot == SEALED) {
+                        return -1;
+                    }
+                    if (slot == EMPTY) {
+                        if (slots.compareAndSet(i, EMPTY, value)) {
+                            return 1;
+                        }
+                        // Taken meanwhile: look at the same slot again.
+                        continue;
+                    }
+                    i = (i + 1) & mask;
+                    probes++;
+                }
+                return -1;
+            }
+
+            boolean contains(int value) {
+                int mask = slots.length() - 1;
+                int i = start(value);
+                for (int probes = 0; probes <= mask; probes++) {
+                    int slot = slots.get(i);
+                    if (slot == value) {
+                        return true;
+                    }
+                    // Values are never removed, and a sealed slot was empty.
+                    if (slot == EMPTY || slot == SEALED) {
+                        return false;
+                    }
+                    i = (i + 1) & mask;
+                }
+                return false;
+            }
+
+            /** Seals every empty slot and returns the values, which can no longer change. */
+            int[] seal() {
+                int[] values = new int[slots.length()];
+                int count = 0;
+                for (int i = 0; i < slots.length(); i++) {
+                    int slot = slots.get(i);
+                    while (slot == EMPTY && !slots.compareAndSet(i, EMPTY, SEALED)) {
+                        slot = slots.get(i);
+                    }
+                    if (slot > 0) {
+                        values[count++] = slot;
+                    }
+                }
+                return Arrays.copyOf(values, count);
+            }
+
+            /** Returns the values currently in the table. */
+            int[] values() {
+                int[] values = new int[slots.length()];
+                int count = 0;
+                for (int i = 0; i < slots.length(); i++) {
+                    int slot = slots.get(i);
+                    if (slot > 0) {
+                        values[count++] = slot;
+                    }
+                }
+                return Arrays.copyOf(values, count);
+            }
+        }
+    }
+
+    public static final class FileBitArray implements IBitArray {
+        private static final int LONG_ADDRESSABLE_BITS = 6;
+
+        /**
+         * Size of the chunks read and written by the bulk operations.
+         */
+        private static final int BULK_CHUNK_BYTES = 64 * 1024;
+
+        private final LongAddable bitCount;
+        private final DirtyPages dirtyPages;
+
+        /**
+         * Checksums of the pages of the file, {@code null} until the first {@link #flush()} unless the
+         * file already had them.
+         */
+        private volatile PageChecksums checksums;
+        private RandomAccessFile raf = null;
+        private long expectedLnegth = 0;
+        private long bitArraySize = 0;
+        private String filename = "";
+
+        public FileBitArray(long bits, String filename) {
+            this.filename = filename;
+            expectedLnegth = bitSizeFor(bits) >>> 3;
             try {
-                raf.seek(pos);
-                raf.read(data, 0, 4);
+                raf = new RandomAccessFile(filename, "rw");
+                // Whole words: reopening must not cut off the last one, written past expectedLnegth.
+                raf.setLength((expectedLnegth + 3) & ~3L);
             } catch (IOException e) {
-                throw new IllegalArgumentException(e.toString());
+                e.printStackTrace();
             }
+            bitArraySize=expectedLnegth*8;
+            this.bitCount = LongAddables.create();
+            this.dirtyPages = new DirtyPages(
+                    DirtyPages.pageCount(LongMathDivide(bitArraySize, Long.SIZE, RoundingMode.CEILING)));
+            if (PageChecksums.exists(filename)) {
+                this.checksums = PageChecksums.forWriting(filename, fileWords() * 4);
+            }
+        }
 
-            return bytesToInt(data, 0);
+        /**
+         * Returns the {@link #bitSize()} of a {@code FileBitArray} created for {@code bits} bits.
+         */
+        static long bitSizeFor(long bits) {
+            return ((bits >>> 3) + 8) * 8;
         }
 
-        private void writeFileIndex(long pos, int value) {
-            try {
-                raf.seek(pos);
-                raf.write(intToBytes(value), 0, 4);
+        public static byte[] intToBytes(int value) {
+            byte[] src = new byte[4];
+            src[0] = (byte) ((value>>24) & 0xFF);
+            src[1] = (byte) ((value>>16)& 0xFF);
+            src[2] = (byte) ((value>>8)&0xFF);
+            src[3] = (byte) (value & 0xFF);
+            return src;
+        }
 
+        public static int bytesToInt(byte[] src, int offset) {
+            int value;
+            value = (int) ( ((src[offset] & 0xFF)<<24)
+                    |((src[offset+1] & 0xFF)<<16)
+                    |((src[offset+2] & 0xFF)<<8)
+                    |(src[offset+3] & 0xFF));
+            return value;
+        }
+
+        /**
+         * Reads the word at {@code pos} with a positional read, which shares no file pointer, so that
+         * concurrent queries do not read each other's words.
+         */
+        private int readFileIndex(long pos) {
+            ByteBuffer data = ByteBuffer.allocate(4);
+            try {
+                raf.getChannel().read(data, pos);
             } catch (IOException e) {
                 throw new IllegalArgumentException(e.toString());
             }
+
+            return data.getInt(0);
+        }
+
+        /**
+         * Writes the word at {@code pos} with a positional write, so that it cannot land at the offset
+         * of a concurrent read or write.
+         */
+        private void writeFileIndex(long pos, int value) {
+            writeChunk(pos, intToBytes(value), 4);
         }
 
         public boolean set(long bitIndex) {
@@ -446,6 +1198,8 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
             writeFileIndex(intIndex * 4, newValue);
 
             bitCount.increment();
+            dirtyPages.markDirty(filePage(intIndex));
+            markStale(intIndex * 4);
             return true;
         }
 
@@ -466,12 +1220,202 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
             return bitCount.sum();
         }
 
-        FileBitArray copy() {
-            throw new IllegalArgumentException("Does not support copy");
+        /**
+         * Reads the whole file into a heap array of the same {@link #bitSize()}.
+         */
+        public LockFreeBitArray copy() {
+            return new LockFreeBitArray(toLongArray(), bitArraySize);
+        }
+
+        /**
+         * Maps the file read-only, after bringing its checksums up to date if it has any. The mapping
+         * shares the file with this array, so this array should not be written to any more.
+         */
+        public MappedBitArray freeze() {
+            if (checksums != null) {
+                flush();
+            }
+            return MappedBitArray.open(filename, bitArraySize, EnumSet.noneOf(MemoryAdvice.class));
+        }
+
+        /**
+         * Forces the file to disk, then recomputes the checksums of the pages written since the last
+         * flush, in batches; the first flush of a file without checksums computes them all. See
+         * {@link PageChecksums}.
+         */
+        public void flush() {
+            try {
+                raf.getChannel().force(false);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.toString());
+            }
+            PageChecksums checksums = this.checksums;
+            if (checksums == null) {
+                synchronized (this) {
+                    checksums = this.checksums;
+                    if (checksums == null) {
+                        // Every page starts stale, so the writes made so far need no marking.
+                        checksums = PageChecksums.forWriting(filename, fileWords() * 4);
+                        this.checksums = checksums;
+                    }
+                }
+            }
+            checksums.update(this::readChunk);
+        }
+
+        /** Marks the page holding byte {@code pos} of the file for its checksum to be recomputed. */
+        private void markStale(long pos) {
+            PageChecksums checksums = this.checksums;
+            if (checksums != null) {
+                checksums.markStale(pos);
+            }
+        }
+
+        /**
+         * Number of 32-bit file words needed to hold {@link #bitSize()} bits.
+         */
+        private long fileWords() {
+            return LongMathDivide(bitArraySize, Integer.SIZE, RoundingMode.CEILING);
+        }
+
+        public long[] toLongArray() {
+            long[] words = new long[(int) LongMathDivide(bitArraySize, Long.SIZE, RoundingMode.CEILING)];
+            readWords(0, words, words.length);
+            return words;
+        }
+
+        /**
+         * Bulk OR of {@code other} into the file: reads, merges and writes back whole chunks instead of
+         * seeking once per set bit.
+         */
+        public void putAll(IBitArray other) {
+            checkArgument(
+                    bitArraySize == other.bitSize(),
+                    "BitArrays must be of equal size (%s != %s)",
+                    bitArraySize,
+                    other.bitSize());
+            long[] words = other.toLongArray();
+            orWords(0, words, words.length);
         }
 
-        void putAll(FileBitArray other) {
-            throw new IllegalArgumentException("Does not support putAll");
+        /**
+         * Page, in the sense of {@link DirtyPages}, of the given 32-bit file word: a page covers {@link
+         * LockFreeBitArray#PAGE_WORDS} 64-bit words, like the pages of a {@link LockFreeBitArray}.
+         */
+        private static int filePage(long fileWord) {
+            return (int) (fileWord >>> (LockFreeBitArray.PAGE_SHIFT + 1));
+        }
+
+        public void orWords(long firstWord, long[] src, int length) {
+            byte[] chunk = new byte[BULK_CHUNK_BYTES];
+            long end = Math.min(fileWords(), (firstWord + length) * 2);
+            for (long first = firstWord * 2; first < end; first += BULK_CHUNK_BYTES / 4) {
+                int count = (int) Math.min(BULK_CHUNK_BYTES / 4, end - first);
+                boolean changed = false;
+                for (int i = 0; i < count && !changed; i++) {
+                    changed = srcFileWord(src, firstWord, first + i) != 0;
+                }
+                if (!changed) {
+                    continue;
+                }
+                readChunk(first * 4, chunk, count * 4);
+                long bitsAdded = 0;
+                for (int i = 0; i < count; i++) {
+                    int otherValue = srcFileWord(src, firstWord, first + i);
+                    int oldValue = bytesToInt(chunk, i * 4);
+                    int newValue = oldValue | otherValue;
+                    if (newValue != oldValue) {
+                        bitsAdded += Integer.bitCount(newValue) - Integer.bitCount(oldValue);
+                        chunk[i * 4] = (byte) (newValue >>> 24);
+                        chunk[i * 4 + 1] = (byte) (newValue >>> 16);
+                        chunk[i * 4 + 2] = (byte) (newValue >>> 8);
+                        chunk[i * 4 + 3] = (byte) newValue;
+                        dirtyPages.markDirty(filePage(first + i));
+                    }
+                }
+                writeChunk(first * 4, chunk, count * 4);
+                // After the write, so that a concurrent flush cannot checksum the page before it.
+                for (long pos = first * 4; pos < (first + count) * 4; pos += PageChecksums.PAGE_BYTES) {
+                    markStale(pos);
+                }
+                bitCount.add(bitsAdded);
+            }
+        }
+
+        /**
+         * Returns the 32-bit file word {@code fileWord} out of {@code src}, whose first element is the
+         * 64-bit word {@code firstWord}.
+         */
+        private static int srcFileWord(long[] src, long firstWord, long fileWord) {
+            return (int) (src[(int) ((fileWord >>> 1) - firstWord)] >>> ((fileWord & 1) * Integer.SIZE));
+        }
+
+        public void readWords(long firstWord, long[] dst, int length) {
+            Arrays.fill(dst, 0, length, 0L);
+            byte[] chunk = new byte[BULK_CHUNK_BYTES];
+            long end = Math.min(fileWords(), (firstWord + length) * 2);
+            for (long first = firstWord * 2; first < end; first += BULK_CHUNK_BYTES / 4) {
+                int count = (int) Math.min(BULK_CHUNK_BYTES / 4, end - first);
+                readChunk(first * 4, chunk, count * 4);
+                for (int i = 0; i < count; i++) {
+                    long value = bytesToInt(chunk, i * 4) & 0xFFFFFFFFL;
+                    long fileWord = first + i;
+                    dst[(int) ((fileWord >>> 1) - firstWord)] |= value << ((fileWord & 1) * Integer.SIZE);
+                }
+            }
+        }
+
+        public DirtyPages dirtyPages() {
+            return dirtyPages;
+        }
+
+        /**
+         * Closes the file, after bringing its checksums up to date if it has any; the bits stay in it.
+         */
+        public void close() {
+            if (checksums != null) {
+                flush();
+            }
+            try {
+                raf.close();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.toString());
+            }
+        }
+
+        /**
+         * Reads {@code length} bytes at {@code pos}; bytes past the end of the file read as zero.
+         */
+        private void readChunk(long pos, byte[] chunk, int length) {
+            try {
+                FileChannel channel = raf.getChannel();
+                int read = 0;
+                while (read < length) {
+                    int n = channel.read(ByteBuffer.wrap(chunk, read, length - read), pos + read);
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+                Arrays.fill(chunk, read, length, (byte) 0);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.toString());
+            }
+        }
+
+        /**
+         * Writes the first {@code length} bytes of {@code chunk} at {@code pos}.
+         */
+        private void writeChunk(long pos, byte[] chunk, int length) {
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, pos + buffer.position());
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.toString());
+            }
         }
 
         @Override
@@ -485,4 +1429,510 @@ public enum BloomFilterStrategies implements BloomFilter.Strategy {
             return Arrays.hashCode(filename.getBytes());
         }
     }
+
+    /**
+     * An immutable bit array over a plain {@code long[]}, in the layout of {@link LockFreeBitArray}.
+     *
+     * <p>Reads are plain array loads rather than volatile {@code AtomicLongArray} reads, and there is
+     * no bit count adder to maintain, so instances can be shared freely between threads.
+     */
+    static final class FrozenBitArray implements IBitArray {
+        private final long[] data;
+        private final long bitSize;
+        private final long bitCount;
+
+        FrozenBitArray(long[] data, long bitSize) {
+            this.data = data;
+            this.bitSize = bitSize;
+            long bitCount = 0;
+            for (long value : data) {
+                bitCount += Long.bitCount(value);
+            }
+            this.bitCount = bitCount;
+        }
+
+        public boolean set(long bitIndex) {
+            throw new UnsupportedOperationException("BloomFilter is frozen");
+        }
+
+        public boolean get(long bitIndex) {
+            return (data[(int) (bitIndex >>> 6)] & (1L << bitIndex)) != 0;
+        }
+
+        public long bitSize() {
+            return bitSize;
+        }
+
+        public long bitCount() {
+            return bitCount;
+        }
+
+        public long[] toLongArray() {
+            return data.clone();
+        }
+
+        public void putAll(IBitArray other) {
+            throw new UnsupportedOperationException("BloomFilter is frozen");
+        }
+
+        public FrozenBitArray freeze() {
+            return this;
+        }
+
+        public LockFreeBitArray copy() {
+            return new LockFreeBitArray(data.clone(), bitSize);
+        }
+
+        public void readWords(long firstWord, long[] dst, int length) {
+            System.arraycopy(data, (int) firstWord, dst, 0, length);
+        }
+
+        public void orWords(long firstWord, long[] src, int length) {
+            throw new UnsupportedOperationException("BloomFilter is frozen");
+        }
+
+        public DirtyPages dirtyPages() {
+            return null;
+        }
+
+        public void close() {}
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof FrozenBitArray) {
+                FrozenBitArray that = (FrozenBitArray) o;
+                return bitSize == that.bitSize && Arrays.equals(data, that.data);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(data);
+        }
+    }
+
+    /**
+     * A read-only view of a {@link FileBitArray} file through {@code READ_ONLY} memory mappings.
+     *
+     * <p>Every process mapping the same file shares its pages through the page cache, and reads cost a
+     * memory load instead of a {@code seek} + {@code read} system call pair. The file is mapped in
+     * segments of {@code 2^30} bytes so that filters larger than 2 GB can be opened, and any {@link
+     * MemoryAdvice} is applied to each segment once mapped.
+     */
+    public static final class MappedBitArray implements IBitArray {
+        private static final int SEGMENT_SHIFT = 30;
+        private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+        /**
+         * The mapping, {@code null} once closed: reads then throw instead of touching unmapped memory,
+         * and the segments are unmapped when garbage collected, after the last read holding them.
+         */
+        private volatile ByteBuffer[] segments;
+        private final long bitSize;
+        private final String filename;
+
+        /**
+         * Number of bytes of the file covered by {@link #segments}, a multiple of 4: a last, partial
+         * word past the end of the file (see {@link FileBitArray#readFileIndex}) is held in {@link
+         * #tailWord} instead.
+         */
+        private final long mappedBytes;
+        private final int tailWord;
+
+        /**
+         * Checksums of the pages of the file, each verified on first read, or {@code null} if the file
+         * has none.
+         */
+        private final PageChecksums checksums;
+        private final PageChecksums.PageSource pages = this::readBytes;
+
+        /**
+         * Lazily computed, -1 until then: counting requires a scan of the whole file.
+         */
+        private volatile long bitCount = -1;
+
+        /**
+         * Maps {@code filename}, a {@link FileBitArray} file of {@code bitSize} bits.
+         */
+        static MappedBitArray open(String filename, long bitSize, Set<MemoryAdvice> advice) {
+            try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+                return new MappedBitArray(channel, filename, 0, bitSize, advice);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not map " + filename, e);
+            }
+        }
+
+        /**
+         * Maps the bits stored from {@code offset} of {@code channel}, in the layout of a {@link
+         * FileBitArray} file. The mapping outlives the channel, which the caller closes.
+         */
+        MappedBitArray(FileChannel channel, String filename, long offset, long bitSize, Set<MemoryAdvice> advice)
+                throws IOException {
+            this.filename = filename;
+            this.bitSize = bitSize;
+            long wordBytes = LongMathDivide(bitSize, Integer.SIZE, RoundingMode.CEILING) * 4;
+            long fileLength = channel.size() - offset;
+            this.mappedBytes = Math.min(wordBytes, fileLength & ~3L);
+            int segmentCount = (int) LongMathDivide(mappedBytes, 1L << SEGMENT_SHIFT, RoundingMode.CEILING);
+            ByteBuffer[] segments = new ByteBuffer[segmentCount];
+            this.segments = segments;
+            for (int i = 0; i < segmentCount; i++) {
+                long position = (long) i << SEGMENT_SHIFT;
+                long size = Math.min(1L << SEGMENT_SHIFT, mappedBytes - position);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, offset + position, size);
+                NativeMemory.advise(segment, advice);
+                segments[i] = segment;
+            }
+            if (advice.contains(MemoryAdvice.PRETOUCH)) {
+                NativeMemory.preTouch(segments);
+            }
+            ByteBuffer tail = ByteBuffer.allocate(4);
+            if (mappedBytes < wordBytes && mappedBytes < fileLength) {
+                tail.limit((int) (fileLength - mappedBytes));
+                channel.read(tail, offset + mappedBytes);
+            }
+            this.tailWord = tail.clear().getInt(0);
+            // A filter stored after a header, as by SharedBloomFilter, has no checksum file of its own.
+            this.checksums = offset == 0 ? PageChecksums.load(filename, wordBytes) : null;
+        }
+
+        public boolean set(long bitIndex) {
+            throw new UnsupportedOperationException("BloomFilter is read-only");
+        }
+
+        public boolean get(long bitIndex) {
+            return (word((bitIndex >>> 5) << 2) & (1 << bitIndex)) != 0;
+        }
+
+        private int word(long byteOffset) {
+            ByteBuffer[] segments = segments();
+            if (checksums != null && !checksums.intact(byteOffset, pages)) {
+                // Fails open: a corrupt page yields false positives, never false negatives.
+                return -1;
+            }
+            if (byteOffset >= mappedBytes) {
+                return byteOffset == mappedBytes ? tailWord : 0;
+            }
+            return segments[(int) (byteOffset >>> SEGMENT_SHIFT)].getInt((int) (byteOffset & SEGMENT_MASK));
+        }
+
+        /**
+         * Copies {@code length} bytes of the file at {@code position}, which do not cross a segment,
+         * as {@link #word} reads them: the tail word after the mapping, and zeros past it.
+         */
+        private void readBytes(long position, byte[] dst, int length) {
+            ByteBuffer[] segments = segments();
+            int mapped = (int) Math.max(0, Math.min(length, mappedBytes - position));
+            if (mapped > 0) {
+                ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)].duplicate();
+                segment.position((int) (position & SEGMENT_MASK));
+                segment.get(dst, 0, mapped);
+            }
+            for (int i = mapped; i < length; i++) {
+                long tailByte = position + i - mappedBytes;
+                dst[i] = tailByte < 4 ? (byte) (tailWord >>> (24 - 8 * tailByte)) : 0;
+            }
+        }
+
+        /**
+         * Verifies every page not verified yet against its checksum and returns the number of corrupt
+         * pages, 0 if the file has no checksums.
+         */
+        public long verifyChecksums() {
+            return checksums == null ? 0 : checksums.verifyAll(pages);
+        }
+
+        public long bitSize() {
+            return bitSize;
+        }
+
+        public long bitCount() {
+            long count = bitCount;
+            if (count < 0) {
+                count = 0;
+                long words = LongMathDivide(bitSize, Integer.SIZE, RoundingMode.CEILING);
+                for (long i = 0; i < words; i++) {
+                    count += Integer.bitCount(word(i << 2));
+                }
+                bitCount = count;
+            }
+            return count;
+        }
+
+        public long[] toLongArray() {
+            long[] words = new long[(int) LongMathDivide(bitSize, Long.SIZE, RoundingMode.CEILING)];
+            long fileWords = LongMathDivide(bitSize, Integer.SIZE, RoundingMode.CEILING);
+            for (long i = 0; i < fileWords; i++) {
+                words[(int) (i >>> 1)] |= (word(i << 2) & 0xFFFFFFFFL) << ((i & 1) * Integer.SIZE);
+            }
+            return words;
+        }
+
+        public void putAll(IBitArray other) {
+            throw new UnsupportedOperationException("BloomFilter is read-only");
+        }
+
+        public MappedBitArray freeze() {
+            return this;
+        }
+
+        public LockFreeBitArray copy() {
+            return new LockFreeBitArray(toLongArray(), bitSize);
+        }
+
+        public void readWords(long firstWord, long[] dst, int length) {
+            for (int j = 0; j < length; j++) {
+                long fileWord = (firstWord + j) * 2;
+                dst[j] = (word(fileWord << 2) & 0xFFFFFFFFL) | ((long) word((fileWord + 1) << 2) << Integer.SIZE);
+            }
+        }
+
+        public void orWords(long firstWord, long[] src, int length) {
+            throw new UnsupportedOperationException("BloomFilter is read-only");
+        }
+
+        public DirtyPages dirtyPages() {
+            return null;
+        }
+
+        private ByteBuffer[] segments() {
+            ByteBuffer[] segments = this.segments;
+            checkState(segments != null, "%s is closed", filename);
+            return segments;
+        }
+
+        /**
+         * Drops the mapping: later reads throw {@link IllegalStateException}, and the file is unmapped
+         * once the garbage collector finds no read still holding it. Unmapping right away would let a
+         * concurrent read, e.g. through {@link BloomFilterHolder#get()}, crash the JVM.
+         */
+        public void close() {
+            segments = null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(filename.getBytes());
+        }
+    }
+
+    /**
+     * A copy-on-write, point-in-time view of a {@link LockFreeBitArray}, see {@link
+     * LockFreeBitArray#snapshot()}. Pages are only copied when the live array writes to them (or when
+     * {@link #readPage} cannot get a stable read), so an idle filter is snapshotted for free.
+     */
+    static final class CowSnapshot implements IBitArray {
+        private final LockFreeBitArray owner;
+        private final AtomicReferenceArray<long[]> pages;
+        private final long epoch;
+        private volatile long bitCount = -1;
+
+        CowSnapshot(LockFreeBitArray owner, long epoch) {
+            this.owner = owner;
+            this.epoch = epoch;
+            this.pages = new AtomicReferenceArray<long[]>(pageCount(owner.data.length()));
+        }
+
+        static int pageCount(int words) {
+            return (words + LockFreeBitArray.PAGE_WORDS - 1) >>> LockFreeBitArray.PAGE_SHIFT;
+        }
+
+        /**
+         * Sequence number of this snapshot among the snapshots of its array, starting at 1.
+         */
+        long epoch() {
+            return epoch;
+        }
+
+        int pageCount() {
+            return pages.length();
+        }
+
+        /**
+         * Copies {@code page} of the live array into this snapshot unless it already is. Writers call
+         * this before changing the page, so the first copy to be installed is always a clean one.
+         */
+        long[] preserve(int page) {
+            long[] copy = pages.get(page);
+            if (copy != null) {
+                return copy;
+            }
+            copy = copyLivePage(page);
+            if (pages.compareAndSet(page, null, copy)) {
+                return copy;
+            }
+            return pages.get(page);
+        }
+
+        /**
+         * Returns the contents of {@code page} as of this snapshot, without keeping a copy of pages no
+         * writer has touched: if the page is still not preserved once it has been copied, no write can
+         * have happened to it in the meantime.
+         */
+        long[] readPage(int page) {
+            long[] copy = pages.get(page);
+            if (copy != null) {
+                return copy;
+            }
+            copy = copyLivePage(page);
+            long[] preserved = pages.get(page);
+            return preserved != null ? preserved : copy;
+        }
+
+        private long[] copyLivePage(int page) {
+            int from = page << LockFreeBitArray.PAGE_SHIFT;
+            int to = Math.min(from + LockFreeBitArray.PAGE_WORDS, owner.data.length());
+            long[] copy = new long[to - from];
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = owner.data.get(from + i);
+            }
+            return copy;
+        }
+
+        public boolean set(long bitIndex) {
+            throw new UnsupportedOperationException("BloomFilter snapshots are read-only");
+        }
+
+        public boolean get(long bitIndex) {
+            return (word((int) (bitIndex >>> 6)) & (1L << bitIndex)) != 0;
+        }
+
+        private long word(int longIndex) {
+            int page = longIndex >>> LockFreeBitArray.PAGE_SHIFT;
+            int offset = longIndex & (LockFreeBitArray.PAGE_WORDS - 1);
+            long[] copy = pages.get(page);
+            if (copy != null) {
+                return copy[offset];
+            }
+            long value = owner.data.get(longIndex);
+            // A writer preserves the page before changing it, so if we saw a newer value the page is
+            // preserved by now.
+            copy = pages.get(page);
+            return copy != null ? copy[offset] : value;
+        }
+
+        public long bitSize() {
+            return owner.bitSize;
+        }
+
+        public long bitCount() {
+            long count = bitCount;
+            if (count < 0) {
+                count = 0;
+                for (int page = 0; page < pages.length(); page++) {
+                    for (long value : readPage(page)) {
+                        count += Long.bitCount(value);
+                    }
+                }
+                bitCount = count;
+            }
+            return count;
+        }
+
+        public long[] toLongArray() {
+            long[] words = new long[owner.data.length()];
+            for (int page = 0; page < pages.length(); page++) {
+                long[] copy = readPage(page);
+                System.arraycopy(copy, 0, words, page << LockFreeBitArray.PAGE_SHIFT, copy.length);
+            }
+            return words;
+        }
+
+        public void putAll(IBitArray other) {
+            throw new UnsupportedOperationException("BloomFilter snapshots are read-only");
+        }
+
+        public FrozenBitArray freeze() {
+            return new FrozenBitArray(toLongArray(), owner.bitSize);
+        }
+
+        public LockFreeBitArray copy() {
+            return new LockFreeBitArray(toLongArray(), owner.bitSize);
+        }
+
+        public void readWords(long firstWord, long[] dst, int length) {
+            for (int j = 0; j < length; j++) {
+                dst[j] = word((int) (firstWord + j));
+            }
+        }
+
+        public void orWords(long firstWord, long[] src, int length) {
+            throw new UnsupportedOperationException("BloomFilter snapshots are read-only");
+        }
+
+        public DirtyPages dirtyPages() {
+            return null;
+        }
+
+        /**
+         * Stops copying pages into this snapshot and releases the ones already copied.
+         */
+        public void close() {
+            owner.closeSnapshot(this);
+        }
+    }
+
+    /**
+     * Tracks which pages ({@link LockFreeBitArray#PAGE_WORDS} words) of a bit array changed since each
+     * delta export, see {@link BloomFilter#exportDelta}.
+     *
+     * <p>Each page carries a stamp: the epoch of the export that last shipped its changes, or {@link
+     * #PENDING} if it changed since. Writers set {@code PENDING} <i>after</i> changing the page, and an
+     * export replaces {@code PENDING} by its own epoch <i>before</i> reading the page. Whatever the
+     * interleaving, a bit is therefore either read by the export that resolves its page, or leaves the
+     * page {@code PENDING} for the next export; nothing is lost to a slow writer.
+     */
+    static final class DirtyPages {
+        private static final long PENDING = Long.MAX_VALUE;
+
+        private final AtomicLongArray stamps;
+        private long lastExportEpoch; // guarded by this
+
+        DirtyPages(int pageCount) {
+            this.stamps = new AtomicLongArray(pageCount);
+        }
+
+        static int pageCount(long words) {
+            return (int) LongMathDivide(words, LockFreeBitArray.PAGE_WORDS, RoundingMode.CEILING);
+        }
+
+        int pageCount() {
+            return stamps.length();
+        }
+
+        /**
+         * Called by writers after they changed a word of {@code page}.
+         */
+        void markDirty(int page) {
+            if (stamps.get(page) != PENDING) {
+                stamps.set(page, PENDING);
+            }
+        }
+
+        /**
+         * Starts an export, returning its epoch. Exports must hold the lock on this object.
+         */
+        long beginExport() {
+            return ++lastExportEpoch;
+        }
+
+        /**
+         * Returns whether {@code page} must be shipped by the export of epoch {@code exportEpoch} to a
+         * replica that is up to date as of {@code sinceEpoch}.
+         */
+        boolean claim(int page, long sinceEpoch, long exportEpoch) {
+            long stamp = stamps.get(page);
+            if (stamp == PENDING) {
+                stamps.compareAndSet(page, PENDING, exportEpoch);
+                return true;
+            }
+            return stamp >= sinceEpoch;
+        }
+    }
 }
@@ -0,0 +1,248 @@
+package com.newbloom.common.hash;
+
+import java.io.Closeable;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+
+/**
+ * A Count-Min sketch: estimates how often each element was added, never under-estimating, and
+ * over-estimating by at most {@code epsilon} times the total count with probability {@code 1 -
+ * delta}, in {@code depth * width} counters of 64 bits ({@code width = ceil(e / epsilon)}, {@code
+ * depth = ceil(ln(1 / delta))}).
+ *
+ * <p>Elements go through the same pipeline as in a {@link BloomFilter}: the funnel feeds
+ * murmur3_128, and the counter of row {@code i} is derived from the two halves of the hash as {@code
+ * hash1 + i * hash2}, like {@link BloomFilterStrategies#MURMUR128_MITZ_64} derives its bit indexes.
+ *
+ * <p>Counters are updated with atomic adds or CAS, so any number of threads may add concurrently;
+ * each row is a separate stripe of counters, so concurrent adds of different elements rarely touch
+ * the same counter. Conservative updates of the same element must not interleave, or two of them
+ * could raise its counters to the same value and lose a count; they are serialized by one of 64
+ * locks picked by the element's hash.
+ *
+ * <p>A sketch created by {@link #createByFile} keeps its counters in a memory-mapped file, which
+ * persists them and lets other processes map them too. Use {@link HeavyHitters} to track the most
+ * frequent elements.
+ *
+ * @param <T> the type of elements that this sketch accepts
+ */
+public final class CountMinSketch<T> implements Closeable {
+    /** Words before the counters: magic, width, depth and total count. */
+    private static final int HEADER_WORDS = 4;
+
+    private static final long MAGIC = 0x434D534B45544348L; // "CMSKETCH"
+    private static final int TOTAL = 3;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final AtomicLongWords words;
+    private final int width;
+    private final int depth;
+    private final Funnel<? super T> funnel;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private CountMinSketch(AtomicLongWords words, int width, int depth, Funnel<? super T> funnel) {
+        this.words = words;
+        this.width = width;
+        this.depth = depth;
+        this.funnel = funnel;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Creates a sketch over-estimating by at most {@code epsilon} times the total count, with
+     * probability {@code 1 - delta}.
+     */
+    public static <T> CountMinSketch<T> create(Funnel<? super T> funnel, double epsilon, double delta) {
+        checkArgument(epsilon > 0.0 && epsilon < 1.0, "epsilon (%s) must be > 0.0 and < 1.0", epsilon);
+        checkArgument(delta > 0.0 && delta < 1.0, "delta (%s) must be > 0.0 and < 1.0", delta);
+        return create(funnel, (int) Math.ceil(Math.E / epsilon), (int) Math.ceil(Math.log(1 / delta)));
+    }
+
+    /**
+     * Creates a sketch of {@code depth} rows of {@code width} counters on the heap.
+     */
+    public static <T> CountMinSketch<T> create(Funnel<? super T> funnel, int width, int depth) {
+        checkNotNull(funnel);
+        long length = checkedLength(width, depth);
+        AtomicLongWords words = AtomicLongWords.onHeap(length);
+        words.set(0, MAGIC);
+        words.set(1, width);
+        words.set(2, depth);
+        return new CountMinSketch<T>(words, width, depth, funnel);
+    }
+
+    /**
+     * Creates a sketch of {@code depth} rows of {@code width} counters mapped from {@code filename},
+     * or opens the one the file already holds, which must have the same {@code width} and {@code
+     * depth}. {@link #close()} writes the counters back to the file.
+     */
+    public static <T> CountMinSketch<T> createByFile(
+            Funnel<? super T> funnel, String filename, int width, int depth) {
+        checkNotNull(funnel);
+        checkNotNull(filename);
+        long length = checkedLength(width, depth);
+        AtomicLongWords words = AtomicLongWords.mapFile(filename, length);
+        if (words.get(0) == 0) {
+            words.set(1, width);
+            words.set(2, depth);
+            words.set(0, MAGIC);
+        } else if (words.get(0) != MAGIC || words.get(1) != width || words.get(2) != depth) {
+            words.close();
+            throw new IllegalArgumentException(
+                    filename + " is not a CountMinSketch of width " + width + " and depth " + depth);
+        }
+        return new CountMinSketch<T>(words, width, depth, funnel);
+    }
+
+    private static long checkedLength(int width, int depth) {
+        checkArgument(width > 0, "width (%s) must be > 0", width);
+        checkArgument(depth > 0 && depth <= 64, "depth (%s) must be > 0 and <= 64", depth);
+        return HEADER_WORDS + (long) width * depth;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * Returns the sum of all counts added.
+     */
+    public long totalCount() {
+        return words.get(TOTAL);
+    }
+
+    /**
+     * Adds {@code count} occurrences of {@code object}, incrementing its counter in every row.
+     *
+     * @return the new estimated count of {@code object}
+     */
+    public long add(T object, long count) {
+        checkArgument(count >= 0, "count (%s) must be >= 0", count);
+        long[] indexes = indexes(object);
+        long estimate = Long.MAX_VALUE;
+        for (long index : indexes) {
+            estimate = Math.min(estimate, words.getAndAdd(index, count) + count);
+        }
+        words.getAndAdd(TOTAL, count);
+        return estimate;
+    }
+
+    /**
+     * Adds {@code count} occurrences of {@code object} with <i>conservative update</i>: only raises
+     * the counters of {@code object} to its new estimated count, leaving the counters that other
+     * elements already pushed higher alone. The estimates of all elements get tighter; sketches
+     * updated this way still {@link #merge} soundly, the merged counts being upper bounds too.
+     * Concurrent conservative updates of the same element are serialized, and only coordinate within
+     * this process: another process mapping the same file must not update it conservatively at the
+     * same time.
+     *
+     * @return the new estimated count of {@code object}
+     */
+    public long addConservative(T object, long count) {
+        checkArgument(count >= 0, "count (%s) must be >= 0", count);
+        long[] indexes = indexes(object);
+        long target;
+        synchronized (locks[(int) (indexes[0] & (LOCK_STRIPES - 1))]) {
+            target = min(indexes) + count;
+            for (long index : indexes) {
+                words.raise(index, target);
+            }
+        }
+        words.getAndAdd(TOTAL, count);
+        return target;
+    }
+
+    /**
+     * Returns the estimated number of times {@code object} was added: at least the actual number.
+     */
+    public long estimateCount(T object) {
+        return min(indexes(object));
+    }
+
+    /**
+     * Returns whether {@code that} can be {@linkplain #merge merged} into this sketch.
+     */
+    public boolean isCompatible(CountMinSketch<T> that) {
+        checkNotNull(that);
+        return this != that && width == that.width && depth == that.depth && funnel.equals(that.funnel);
+    }
+
+    /**
+     * Adds the counts of {@code that} to this sketch, which then estimates the counts of both.
+     *
+     * @throws IllegalArgumentException if {@code isCompatible(that) == false}
+     */
+    public void merge(CountMinSketch<T> that) {
+        checkArgument(this != that, "Cannot merge a CountMinSketch with itself.");
+        checkArgument(
+                width == that.width && depth == that.depth,
+                "CountMinSketches must have the same dimensions (%sx%s != %sx%s)",
+                width,
+                depth,
+                that.width,
+                that.depth);
+        checkArgument(
+                funnel.equals(that.funnel),
+                "CountMinSketches must have equal funnels (%s != %s)",
+                funnel,
+                that.funnel);
+        for (long i = HEADER_WORDS; i < words.length(); i++) {
+            long count = that.words.get(i);
+            if (count != 0) {
+                words.getAndAdd(i, count);
+            }
+        }
+        words.getAndAdd(TOTAL, that.words.get(TOTAL));
+    }
+
+    /**
+     * Writes the counters of a file sketch back to its file; does nothing for heap sketches.
+     */
+    public void flush() {
+        words.flush();
+    }
+
+    /**
+     * Writes the counters of a file sketch back to its file and closes it.
+     */
+    public void close() {
+        words.close();
+    }
+
+    /**
+     * Returns the counter word of {@code object} in each row.
+     */
+    private long[] indexes(T object) {
+        byte[] bytes = Hashing.murmur3_128().hashObject(object, funnel).getBytesInternal();
+        long hash1 = BloomFilterStrategies.lowerEight(bytes);
+        long hash2 = BloomFilterStrategies.upperEight(bytes);
+        long[] indexes = new long[depth];
+        long combinedHash = hash1;
+        for (int i = 0; i < depth; i++) {
+            indexes[i] = HEADER_WORDS + (long) i * width + (combinedHash & Long.MAX_VALUE) % width;
+            combinedHash += hash2;
+        }
+        return indexes;
+    }
+
+    private long min(long[] indexes) {
+        long min = Long.MAX_VALUE;
+        for (long index : indexes) {
+            min = Math.min(min, words.get(index));
+        }
+        return min;
+    }
+
+    @Override
+    public String toString() {
+        return "CountMinSketch(" + width + "x" + depth + ", totalCount=" + totalCount() + ")";
+    }
+}
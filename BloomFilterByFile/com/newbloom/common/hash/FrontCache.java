@@ -0,0 +1,160 @@
+package com.newbloom.common.hash;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+
+/**
+ * A small cache of {@link BloomFilter#mightContain} results in front of a filter whose bits are
+ * costly to read, such as a {@link BloomFilter#createByFile} filter or a mapped filter larger than
+ * memory, see {@link BloomFilter#enableFrontCache}. A hot element is then answered from one cache
+ * line instead of {@code k} pages of the filter.
+ *
+ * <p>Entries are keyed by the 64-bit hash of the element that the filter's strategy computes anyway,
+ * so a hit costs one hash and no probe. The table is set-associative: a key may sit in any of the 8
+ * slots of the set its low bits pick, and when the set is full, a CLOCK hand evicts the first entry
+ * that was not hit since the hand last passed it. Slots are written without locks; each holds the
+ * key XORed with the result next to the result, so that a reader racing a writer sees a pair that
+ * does not match its key rather than a result for another element.
+ *
+ * <p>Bloom filters only ever gain bits, so a cached {@code true} stays right; a cached {@code false}
+ * is tagged with an epoch that every put changing the filter's bits advances, which drops all the
+ * cached negatives at once. Hence the cache only knows of puts made through its own {@code
+ * BloomFilter} instance: a filter written by another process, or through another instance over the
+ * same file, may keep answering {@code false} for an element put meanwhile.
+ */
+public final class FrontCache {
+    /** Slots per set, one cache line of each array. */
+    private static final int WAYS = 8;
+
+    /** {@link #lookup} result for a key not in the cache. */
+    static final int ABSENT = -1;
+
+    /** Result word of a positive entry; a negative one holds its epoch shifted left by one. */
+    private static final long POSITIVE = 1;
+
+    private final int capacity;
+    private final int setMask;
+
+    /** Key XOR result of each slot. */
+    private final AtomicLongArray checks;
+
+    /** Result of each slot, 0 if empty. */
+    private final AtomicLongArray results;
+
+    /** CLOCK reference bits, one per slot; races only lose a hint. */
+    private final byte[] referenced;
+
+    /** CLOCK hand of each set. */
+    private final byte[] hands;
+
+    private final AtomicLong epoch = new AtomicLong(1);
+    private final LongAddable hits = LongAddables.create();
+    private final LongAddable misses = LongAddables.create();
+
+    FrontCache(int entries) {
+        checkArgument(entries > 0 && entries <= 1 << 30, "entries (%s) must be > 0 and <= 2^30", entries);
+        this.capacity = entries <= WAYS ? WAYS : Integer.highestOneBit(entries - 1) << 1;
+        this.setMask = capacity / WAYS - 1;
+        this.checks = new AtomicLongArray(capacity);
+        this.results = new AtomicLongArray(capacity);
+        this.referenced = new byte[capacity];
+        this.hands = new byte[capacity / WAYS];
+    }
+
+    /** Returns the number of results this cache holds, the requested size rounded up to a power of two. */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Returns the number of queries answered from the cache. */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    /** Returns the number of queries that had to read the filter. */
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /** Returns the fraction of queries answered from the cache, or {@code NaN} before any query. */
+    public double hitRate() {
+        long hits = hitCount();
+        long total = hits + missCount();
+        return total == 0 ? Double.NaN : (double) hits / total;
+    }
+
+    /** Returns the current epoch, to be read before the filter is, and passed to {@link #record}. */
+    long epoch() {
+        return epoch.get();
+    }
+
+    /** Makes every cached negative stale, after the bits of the filter changed. */
+    void invalidateNegatives() {
+        epoch.incrementAndGet();
+    }
+
+    /**
+     * Returns 1 or 0 for a cached {@code true} or {@code false} result of {@code key} that is valid in
+     * {@code epoch}, or {@link #ABSENT}.
+     */
+    int lookup(long key, long epoch) {
+        int base = ((int) key & setMask) * WAYS;
+        for (int i = base; i < base + WAYS; i++) {
+            long result = results.get(i);
+            if (result != 0 && (checks.get(i) ^ result) == key) {
+                if (result == POSITIVE || result == epoch << 1) {
+                    referenced[i] = 1;
+                    hits.increment();
+                    return result == POSITIVE ? 1 : 0;
+                }
+                break;
+            }
+        }
+        misses.increment();
+        return ABSENT;
+    }
+
+    /**
+     * Caches {@code result} for {@code key}, read from the filter in {@code epoch}: a negative result
+     * read before a concurrent put is already stale.
+     */
+    void record(long key, boolean result, long epoch) {
+        long value = result ? POSITIVE : epoch << 1;
+        long current = this.epoch.get() << 1;
+        if (value != POSITIVE && value != current) {
+            // Put into meanwhile.
+            return;
+        }
+        int set = (int) key & setMask;
+        int base = set * WAYS;
+        int victim = -1;
+        for (int i = base; i < base + WAYS; i++) {
+            long old = results.get(i);
+            // Empty, the same key, or a stale negative.
+            if (old == 0 || (checks.get(i) ^ old) == key || (old != POSITIVE && old != current)) {
+                victim = i;
+                break;
+            }
+        }
+        if (victim < 0) {
+            int hand = hands[set];
+            for (int n = 0; n < WAYS && referenced[base + hand] != 0; n++) {
+                referenced[base + hand] = 0;
+                hand = (hand + 1) & (WAYS - 1);
+            }
+            victim = base + hand;
+            hands[set] = (byte) ((hand + 1) & (WAYS - 1));
+        }
+        // Not referenced yet, so that elements queried once are evicted first.
+        referenced[victim] = 0;
+        results.set(victim, value);
+        checks.set(victim, key ^ value);
+    }
+
+    @Override
+    public String toString() {
+        return "FrontCache(" + capacity + " entries, " + hitCount() + " hits, " + missCount() + " misses)";
+    }
+}
@@ -211,6 +211,22 @@ public final class Funnels {
     }
   }
 
+  /**
+   * Returns a funnel for the records, or plain objects, of {@code type}, writing their fields
+   * straight into the sink in a fixed layout: the components of a record in declaration order, the
+   * instance fields of another class superclass first and by name, each primitive as such, and each
+   * string, {@code byte[]}, enum, boxed primitive or nested record behind a null marker, strings and
+   * arrays prefixed with their length. The funnel is generated once per class from method handles,
+   * so it makes no reflective call and boxes nothing per element, and it funnels an element the
+   * same on every JVM.
+   *
+   * @throws IllegalArgumentException if a field of {@code type} has another type, or is not
+   *     accessible
+   */
+  public static <T> Funnel<T> forRecord(Class<T> type) {
+    return RecordFunnel.of(type);
+  }
+
   /**
    * Wraps a {@code PrimitiveSink} as an {@link OutputStream}, so it is easy to {@link Funnel#funnel
    * funnel} an object to a {@code PrimitiveSink} if there is already a way to write the contents of
@@ -409,6 +409,26 @@ public final class Hashing {
     return FarmHashFingerprint64.FARMHASH_FINGERPRINT_64;
   }
 
+  /**
+   * Returns a hash function implementing wyhash (version "final3", default secret) with a seed of
+   * zero. Its output is the 64-bit value of the reference {@code wyhash()} as {@link
+   * HashCode#asLong()}.
+   *
+   * <p>wyhash is much faster than {@link #murmur3_128()} on short inputs such as host names, and
+   * hashes {@code byte[]}, {@code ByteBuffer} and {@code CharSequence} input in one shot without
+   * allocating. It is not a cryptographic hash.
+   */
+  public static HashFunction wyhash64() {
+    return WyHash64.WYHASH_64;
+  }
+
+  /**
+   * Returns a hash function implementing wyhash with the given seed, see {@link #wyhash64()}.
+   */
+  public static HashFunction wyhash64(long seed) {
+    return new WyHash64(seed);
+  }
+
   /**
    * Assigns to {@code hashCode} a "bucket" in the range {@code [0, buckets)}, in a uniform manner
    * that minimizes the need for remapping as {@code buckets} grows. That is, {@code
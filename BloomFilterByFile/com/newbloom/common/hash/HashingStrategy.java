@@ -0,0 +1,308 @@
+package com.newbloom.common.hash;
+
+import com.newbloom.common.hash.BloomFilterStrategies.IBitArray;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link BloomFilter.Strategy} made of any {@link HashFunction} and an {@link IndexScheme} that
+ * derives the bit indexes of an element from its hash, e.g. to try a keyed hash such as {@link
+ * Hashing#sipHash24(long, long)} or a fast one such as {@link Hashing#wyhash64()}:
+ *
+ * <pre>{@code
+ * HashingStrategy strategy = HashingStrategy.of(
+ *     "sip24-enhanced", -1, Hashing.sipHash24(k0, k1), HashingStrategy.IndexScheme.ENHANCED_DOUBLE_HASHING);
+ * BloomFilter<String> filter = BloomFilter.create(funnel, expectedInsertions, fpp, strategy);
+ * }</pre>
+ *
+ * <p>Every strategy has an ordinal, written next to the bits by {@link BloomFilter#writeTo} and the
+ * other persisted forms so that readers can tell which strategy built them. Ordinals from 0 are those
+ * of {@link BloomFilterStrategies}; a hashing strategy takes one in [-128, -1], unique per process:
+ * creating it registers it, and {@link BloomFilter#readFrom} finds it again by its ordinal, provided
+ * the reading process created the same strategy first.
+ *
+ * <p>The element is hashed once, by {@link #hash}, which subclasses may override with a one-shot
+ * path (see {@link BloomFilterStrategies#WYHASH64_MITZ_64_FASTRANGE}); everything else is final. The
+ * probe loop of each scheme is a separate loop without any call but the bit array's, so that it
+ * stays monomorphic whatever the number of strategies loaded.
+ */
+public class HashingStrategy implements BloomFilter.Strategy {
+    private static final long serialVersionUID = 0;
+
+    /** How the {@code k} bit indexes of an element derive from two 64-bit hashes of it. */
+    public enum IndexScheme {
+        /**
+         * Index {@code i} is {@code h1 + i * h2} mapped onto the bit array, as in Kirsch and
+         * Mitzenmacher, "Less Hashing, Same Performance"; the scheme of the built-in strategies.
+         */
+        DOUBLE_HASHING,
+
+        /**
+         * Adds {@code i * (i - 1) * (i - 2) / 6} to index {@code i} of double hashing, as in Dillinger
+         * and Manolios, "Bloom Filters in Probabilistic Verification", which breaks the correlation
+         * between the probes of elements sharing {@code h1} or {@code h2}.
+         */
+        ENHANCED_DOUBLE_HASHING,
+
+        /**
+         * Picks one 512-bit block, a cache line, with {@code h1} and all {@code k} bits in it with
+         * {@code h2}, as in Putze, Sanders and Singler, "Cache-, Hash- and Space-Efficient Bloom
+         * Filters": one cache miss per query, for a higher false positive probability at the same size.
+         */
+        BLOCKED
+    }
+
+    /** Strategies by ordinal; the built-in ones are looked up by {@code BloomFilterStrategies.values()}. */
+    private static final ConcurrentMap<Integer, HashingStrategy> registry =
+            new ConcurrentHashMap<Integer, HashingStrategy>();
+
+    private static final int BLOCK_SHIFT = 9;
+
+    private final String name;
+    private final int ordinal;
+    private final HashFunction hashFunction;
+    private final IndexScheme indexScheme;
+
+    /**
+     * Creates and registers a strategy.
+     *
+     * @throws IllegalArgumentException if {@code ordinal} is not in [-128, -1], or is taken by a
+     *     different strategy
+     */
+    protected HashingStrategy(String name, int ordinal, HashFunction hashFunction, IndexScheme indexScheme) {
+        checkArgument(ordinal >= -128 && ordinal <= -1, "ordinal (%s) must be in [-128, -1]", ordinal);
+        checkArgument(hashFunction.bits() >= 32, "%s has fewer than 32 bits", hashFunction);
+        this.name = checkNotNull(name);
+        this.ordinal = ordinal;
+        this.hashFunction = hashFunction;
+        this.indexScheme = checkNotNull(indexScheme);
+        HashingStrategy registered = registry.putIfAbsent(ordinal, this);
+        checkArgument(
+                registered == null || registered.equals(this),
+                "ordinal %s is taken by %s", ordinal, registered);
+    }
+
+    /**
+     * Returns a strategy hashing elements with {@code hashFunction} and deriving their bits by {@code
+     * indexScheme}, registered as {@code ordinal}; creating an equal strategy again returns an equal
+     * one.
+     *
+     * @throws IllegalArgumentException if {@code ordinal} is not in [-128, -1], or is taken by a
+     *     different strategy
+     */
+    public static HashingStrategy of(String name, int ordinal, HashFunction hashFunction, IndexScheme indexScheme) {
+        return new HashingStrategy(name, ordinal, hashFunction, indexScheme);
+    }
+
+    /**
+     * Returns the strategy of {@code ordinal}: a {@link BloomFilterStrategies} constant, or a
+     * registered hashing strategy.
+     *
+     * @throws IllegalArgumentException if no strategy has that ordinal
+     */
+    static BloomFilter.Strategy forOrdinal(int ordinal) {
+        if (ordinal >= 0) {
+            checkArgument(ordinal < BloomFilterStrategies.values().length, "Unknown strategy ordinal %s", ordinal);
+            return BloomFilterStrategies.values()[ordinal];
+        }
+        HashingStrategy strategy = registry.get(ordinal);
+        checkArgument(strategy != null, "Unknown strategy ordinal %s, create its HashingStrategy first", ordinal);
+        return strategy;
+    }
+
+    public final String name() {
+        return name;
+    }
+
+    @Override
+    public final int ordinal() {
+        return ordinal;
+    }
+
+    @Override
+    public final HashFunction hashFunction() {
+        return hashFunction;
+    }
+
+    public final IndexScheme indexScheme() {
+        return indexScheme;
+    }
+
+    /**
+     * Hashes a user element, once per {@link #put} or {@link #mightContain}. Overrides must return
+     * what {@code hashFunction().hashObject(object, funnel)} does.
+     */
+    @Override
+    public <T> HashCode hash(T object, Funnel<? super T> funnel) {
+        return hashFunction.hashObject(object, funnel);
+    }
+
+    @Override
+    public final <T> boolean put(T object, Funnel<? super T> funnel, int numHashFunctions, IBitArray bits) {
+        return putHashCode(hash(object, funnel), numHashFunctions, bits);
+    }
+
+    @Override
+    public final <T> boolean mightContain(T object, Funnel<? super T> funnel, int numHashFunctions, IBitArray bits) {
+        return mightContainHashCode(hash(object, funnel), numHashFunctions, bits);
+    }
+
+    @Override
+    public final boolean putFixedWidth(long value, int length, int numHashFunctions, IBitArray bits) {
+        return putHashCode(hashFixedWidth(value, length), numHashFunctions, bits);
+    }
+
+    @Override
+    public final boolean mightContainFixedWidth(long value, int length, int numHashFunctions, IBitArray bits) {
+        return mightContainHashCode(hashFixedWidth(value, length), numHashFunctions, bits);
+    }
+
+    /** Hashes the bytes {@link Funnels#integerFunnel()} or {@link Funnels#longFunnel()} put. */
+    private HashCode hashFixedWidth(long value, int length) {
+        return length == Integer.BYTES ? hashFunction.hashInt((int) value) : hashFunction.hashLong(value);
+    }
+
+    @Override
+    public final boolean putBytes(byte[] bytes, int off, int len, int numHashFunctions, IBitArray bits) {
+        return putHashCode(hashFunction.hashBytes(bytes, off, len), numHashFunctions, bits);
+    }
+
+    @Override
+    public final boolean mightContainBytes(byte[] bytes, int off, int len, int numHashFunctions, IBitArray bits) {
+        return mightContainHashCode(hashFunction.hashBytes(bytes, off, len), numHashFunctions, bits);
+    }
+
+    private boolean putHashCode(HashCode hash, int numHashFunctions, IBitArray bits) {
+        long hash1 = firstHash(hash);
+        return putHash(hash1, secondHash(hash, hash1), numHashFunctions, bits);
+    }
+
+    @Override
+    public final boolean mightContainHashCode(HashCode hash, int numHashFunctions, IBitArray bits) {
+        long hash1 = firstHash(hash);
+        return mightContainHash(hash1, secondHash(hash, hash1), numHashFunctions, bits);
+    }
+
+    /**
+     * The lower eight bytes of the hash, little-endian; a shorter hash is remixed into 64 bits, since
+     * the indexes are taken from the high bits of {@code hash1 * bitSize}.
+     */
+    private static long firstHash(HashCode hash) {
+        if (hash.bits() >= 64) {
+            return hash.asLong();
+        }
+        return WyHash64.mix(hash.padToLong() ^ 0xA0761D6478BD642FL, 0xE7037ED1A0B428DBL);
+    }
+
+    /**
+     * The next eight bytes of a hash of 128 bits or more, else a remix of the first ones, like the
+     * wyhash strategies do.
+     */
+    private static long secondHash(HashCode hash, long hash1) {
+        if (hash.bits() >= 128) {
+            return BloomFilterStrategies.upperEight(hash.getBytesInternal());
+        }
+        return WyHash64.mix(hash1 ^ 0x9E3779B97F4A7C15L, 0xD6E8FEB86659FD93L);
+    }
+
+    @Override
+    public final boolean putHash(long hash1, long hash2, int numHashFunctions, IBitArray bits) {
+        long bitSize = bits.bitSize();
+        boolean bitsChanged = false;
+        switch (indexScheme) {
+            case DOUBLE_HASHING:
+                for (int i = 0; i < numHashFunctions; i++) {
+                    bitsChanged |= bits.set(BloomFilterStrategies.fastRange(hash1, bitSize));
+                    hash1 += hash2;
+                }
+                return bitsChanged;
+            case ENHANCED_DOUBLE_HASHING:
+                for (int i = 0; i < numHashFunctions; i++) {
+                    bitsChanged |= bits.set(BloomFilterStrategies.fastRange(hash1, bitSize));
+                    hash1 += hash2;
+                    hash2 += i;
+                }
+                return bitsChanged;
+            case BLOCKED:
+                long blockBits = Math.min(bitSize, 1L << BLOCK_SHIFT);
+                long block = BloomFilterStrategies.fastRange(hash1, Math.max(1, bitSize >>> BLOCK_SHIFT)) << BLOCK_SHIFT;
+                int offset = (int) hash2;
+                int step = (int) (hash2 >>> 32) | 1;
+                for (int i = 0; i < numHashFunctions; i++) {
+                    bitsChanged |= bits.set(block + (offset & Integer.MAX_VALUE) % blockBits);
+                    offset += step;
+                }
+                return bitsChanged;
+            default:
+                throw new AssertionError(indexScheme);
+        }
+    }
+
+    @Override
+    public final boolean mightContainHash(long hash1, long hash2, int numHashFunctions, IBitArray bits) {
+        long bitSize = bits.bitSize();
+        switch (indexScheme) {
+            case DOUBLE_HASHING:
+                for (int i = 0; i < numHashFunctions; i++) {
+                    if (!bits.get(BloomFilterStrategies.fastRange(hash1, bitSize))) {
+                        return false;
+                    }
+                    hash1 += hash2;
+                }
+                return true;
+            case ENHANCED_DOUBLE_HASHING:
+                for (int i = 0; i < numHashFunctions; i++) {
+                    if (!bits.get(BloomFilterStrategies.fastRange(hash1, bitSize))) {
+                        return false;
+                    }
+                    hash1 += hash2;
+                    hash2 += i;
+                }
+                return true;
+            case BLOCKED:
+                long blockBits = Math.min(bitSize, 1L << BLOCK_SHIFT);
+                long block = BloomFilterStrategies.fastRange(hash1, Math.max(1, bitSize >>> BLOCK_SHIFT)) << BLOCK_SHIFT;
+                int offset = (int) hash2;
+                int step = (int) (hash2 >>> 32) | 1;
+                for (int i = 0; i < numHashFunctions; i++) {
+                    if (!bits.get(block + (offset & Integer.MAX_VALUE) % blockBits)) {
+                        return false;
+                    }
+                    offset += step;
+                }
+                return true;
+            default:
+                throw new AssertionError(indexScheme);
+        }
+    }
+
+    /**
+     * Returns whether {@code object} is a strategy of the same class, ordinal, scheme and hash
+     * function.
+     */
+    @Override
+    public boolean equals(Object object) {
+        if (object == null || object.getClass() != getClass()) {
+            return false;
+        }
+        HashingStrategy that = (HashingStrategy) object;
+        return ordinal == that.ordinal
+                && indexScheme == that.indexScheme
+                && hashFunction.equals(that.hashFunction)
+                && name.equals(that.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return ordinal ^ hashFunction.hashCode() ^ indexScheme.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name + "(" + hashFunction + ", " + indexScheme + ")";
+    }
+}
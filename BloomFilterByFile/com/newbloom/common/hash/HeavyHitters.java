@@ -0,0 +1,115 @@
+package com.newbloom.common.hash;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+
+/**
+ * Tracks the {@code k} most frequent elements of a stream, using a {@link CountMinSketch} for the
+ * counts: only the {@code k} candidates are kept, not a map of every element seen.
+ *
+ * <p>Each {@link #offer} adds the element to the sketch with conservative update and, if its new
+ * estimated count beats the smallest candidate count, makes it a candidate, evicting that smallest
+ * one. Offers of elements that do not make it, the vast majority on a long-tailed stream, only read
+ * a volatile threshold; the candidates themselves are updated under a lock. Elements must implement
+ * {@code equals} and {@code hashCode}.
+ *
+ * @param <T> the type of elements tracked
+ */
+public final class HeavyHitters<T> {
+    private final CountMinSketch<T> sketch;
+    private final int k;
+    private final Map<T, Long> candidates; // guarded by this
+
+    /** Smallest candidate count once there are {@code k} candidates, else 0. */
+    private volatile long threshold;
+
+    public HeavyHitters(CountMinSketch<T> sketch, int k) {
+        checkNotNull(sketch);
+        checkArgument(k > 0, "k (%s) must be > 0", k);
+        this.sketch = sketch;
+        this.k = k;
+        this.candidates = new HashMap<T, Long>(k * 2);
+    }
+
+    public CountMinSketch<T> sketch() {
+        return sketch;
+    }
+
+    /**
+     * Counts one occurrence of {@code object}.
+     *
+     * @return the estimated count of {@code object}
+     */
+    public long offer(T object) {
+        return offer(object, 1);
+    }
+
+    /**
+     * Counts {@code count} occurrences of {@code object}.
+     *
+     * @return the estimated count of {@code object}
+     */
+    public long offer(T object, long count) {
+        checkNotNull(object);
+        long estimate = sketch.addConservative(object, count);
+        if (estimate > threshold) {
+            update(object, estimate);
+        }
+        return estimate;
+    }
+
+    private synchronized void update(T object, long estimate) {
+        Long previous = candidates.get(object);
+        if (previous != null) {
+            if (estimate > previous) {
+                candidates.put(object, estimate);
+                if (previous == threshold) {
+                    threshold = candidates.size() < k ? 0 : minCount();
+                }
+            }
+            return;
+        }
+        if (candidates.size() == k) {
+            if (estimate <= threshold) {
+                return;
+            }
+            T smallest = null;
+            long smallestCount = Long.MAX_VALUE;
+            for (Map.Entry<T, Long> entry : candidates.entrySet()) {
+                if (entry.getValue() < smallestCount) {
+                    smallest = entry.getKey();
+                    smallestCount = entry.getValue();
+                }
+            }
+            candidates.remove(smallest);
+        }
+        candidates.put(object, estimate);
+        threshold = candidates.size() < k ? 0 : minCount();
+    }
+
+    private long minCount() {
+        long min = Long.MAX_VALUE;
+        for (long count : candidates.values()) {
+            min = Math.min(min, count);
+        }
+        return min;
+    }
+
+    /**
+     * Returns up to {@code k} elements with their estimated counts, most frequent first.
+     */
+    public synchronized List<Map.Entry<T, Long>> topK() {
+        List<Map.Entry<T, Long>> top = new ArrayList<Map.Entry<T, Long>>(candidates.size());
+        for (Map.Entry<T, Long> entry : candidates.entrySet()) {
+            top.add(new AbstractMap.SimpleImmutableEntry<T, Long>(entry.getKey(), entry.getValue()));
+        }
+        top.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return top;
+    }
+}
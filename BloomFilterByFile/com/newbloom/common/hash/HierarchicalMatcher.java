@@ -0,0 +1,249 @@
+package com.newbloom.common.hash;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+import static com.newbloom.common.base.Preconditions.checkPositionIndexes;
+
+/**
+ * Matches host names against domain rules and URLs against URL-prefix rules stored in a {@link
+ * BloomFilter}, e.g. to block {@code example.com} together with every subdomain of it, or only
+ * {@code example.com/ads/}.
+ *
+ * <p>A domain rule matches the host it names and every host ending with {@code "." + domain}. A
+ * URL-prefix rule matches URLs of exactly its host whose path starts with its path, compared
+ * segment by segment: {@code /ads} matches {@code /ads} and {@code /ads/x.js}, not {@code
+ * /adsx}.
+ *
+ * <p>Rules are not put into the filter as strings but as chained hashes: the key of {@code
+ * a.example.com} is the wyhash of {@code a} seeded with the key of {@code example.com}, itself the
+ * hash of {@code example} seeded with the key of {@code com}, and the segments of a path chain on
+ * from the key of the host in the same way. Matching a host therefore walks its labels from the
+ * last one, hashing each label once, and probes the filter with the key of each suffix, shortest
+ * first, stopping at the first hit; matching a URL goes on with the segments of its path. Nothing
+ * is allocated, nor any suffix copied or hashed twice.
+ *
+ * <p>The filter must only hold keys put by a matcher; its funnel and {@link BloomFilter#mightContain}
+ * are not used. Hosts are matched byte for byte, so they should be lower-case, without a port or a
+ * trailing dot; the {@code String} methods take care of that, and of encoding, at the cost of a
+ * copy.
+ */
+public final class HierarchicalMatcher {
+    /** Key of the empty host, which the key of its last label chains on from. */
+    private static final long DOMAIN_SEED = 0x243F6A8885A308D3L;
+
+    /** Mixed into the key of a host before the segments of a path chain on from it. */
+    private static final long PATH_SEED = 0x13198A2E03707344L;
+
+    private final BloomFilter<?> filter;
+
+    /**
+     * Creates a matcher over the rules held by {@code filter}, which may be any kind of filter: heap,
+     * file or mapped.
+     */
+    public HierarchicalMatcher(BloomFilter<?> filter) {
+        this.filter = checkNotNull(filter);
+    }
+
+    /**
+     * Returns the filter holding the rules, e.g. to {@linkplain BloomFilter#writeTo write} it out.
+     */
+    public BloomFilter<?> filter() {
+        return filter;
+    }
+
+    /**
+     * Adds a rule matching {@code domain} and all its subdomains. A leading {@code "*."} is ignored,
+     * so {@code *.example.com} means the same as {@code example.com}.
+     *
+     * @return whether the filter changed, see {@link BloomFilter#put}
+     */
+    public boolean addDomain(String domain) {
+        byte[] host = normalizeHost(domain.startsWith("*.") ? domain.substring(2) : domain);
+        checkArgument(host.length > 0, "domain (%s) must not be empty", domain);
+        return put(hostChain(host));
+    }
+
+    /**
+     * Adds a rule matching the URLs of exactly {@code host} whose path starts with the segments of
+     * {@code pathPrefix}; a prefix of {@code "/"} matches every URL of the host, but not of its
+     * subdomains.
+     *
+     * @return whether the filter changed, see {@link BloomFilter#put}
+     */
+    public boolean addUrlPrefix(String host, String pathPrefix) {
+        byte[] hostBytes = normalizeHost(host);
+        checkArgument(hostBytes.length > 0, "host (%s) must not be empty", host);
+        long key = pathSeed(nonZero(hostChain(hostBytes)));
+        byte[] path = pathPrefix.getBytes(StandardCharsets.UTF_8);
+        int end = pathEnd(path, 0, path.length);
+        for (int start = skipSlashes(path, 0, end); start < end; ) {
+            int segmentEnd = segmentEnd(path, start, end);
+            key = WyHash64.hash(path, start, segmentEnd - start, key);
+            start = skipSlashes(path, segmentEnd, end);
+        }
+        return put(key);
+    }
+
+    /**
+     * Returns {@code true} if a domain rule <i>might</i> match {@code host}, {@code false} if none
+     * does.
+     */
+    public boolean matchesHost(String host) {
+        byte[] bytes = normalizeHost(host);
+        return matchesHost(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Returns {@code true} if a domain rule <i>might</i> match the {@code len} bytes of {@code host}
+     * from {@code off}, a normalized host name; {@code false} if none does.
+     */
+    public boolean matchesHost(byte[] host, int off, int len) {
+        checkPositionIndexes(off, off + len, host.length);
+        return hostKey(host, off, len) == 0;
+    }
+
+    /**
+     * Returns {@code true} if a domain rule <i>might</i> match {@code host}, or a URL-prefix rule the
+     * URL made of {@code host} and {@code path}; a query or fragment of the path is ignored.
+     */
+    public boolean matchesUrl(String host, String path) {
+        byte[] hostBytes = normalizeHost(host);
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        return matchesUrl(hostBytes, 0, hostBytes.length, pathBytes, 0, pathBytes.length);
+    }
+
+    /**
+     * Returns {@code true} if a domain rule <i>might</i> match the host bytes, or a URL-prefix rule the
+     * URL made of the host and path bytes, see {@link #matchesUrl(String, String)}.
+     */
+    public boolean matchesUrl(byte[] host, int hostOff, int hostLen, byte[] path, int pathOff, int pathLen) {
+        checkPositionIndexes(hostOff, hostOff + hostLen, host.length);
+        checkPositionIndexes(pathOff, pathOff + pathLen, path.length);
+        long key = hostKey(host, hostOff, hostLen);
+        if (key == 0) {
+            return true;
+        }
+        key = pathSeed(key);
+        if (mightContain(key)) {
+            return true;
+        }
+        int end = pathEnd(path, pathOff, pathOff + pathLen);
+        for (int start = skipSlashes(path, pathOff, end); start < end; ) {
+            int segmentEnd = segmentEnd(path, start, end);
+            key = WyHash64.hash(path, start, segmentEnd - start, key);
+            if (mightContain(key)) {
+                return true;
+            }
+            start = skipSlashes(path, segmentEnd, end);
+        }
+        return false;
+    }
+
+    /**
+     * Probes the key of every suffix of the host, shortest first. Returns 0 as soon as one might be in
+     * the filter, or else the key of the whole host, never 0 itself.
+     */
+    private long hostKey(byte[] host, int off, int len) {
+        long key = DOMAIN_SEED;
+        for (int end = off + len; end > off; ) {
+            int start = labelStart(host, off, end);
+            key = WyHash64.hash(host, start, end - start, key);
+            if (mightContain(key)) {
+                return 0;
+            }
+            end = start - 1;
+        }
+        return nonZero(key);
+    }
+
+    /** Returns the key of a whole host, without probing the filter. */
+    private static long hostChain(byte[] host) {
+        long key = DOMAIN_SEED;
+        for (int end = host.length; end > 0; ) {
+            int start = labelStart(host, 0, end);
+            key = WyHash64.hash(host, start, end - start, key);
+            end = start - 1;
+        }
+        return key;
+    }
+
+    /** Maps the one key that {@link #hostKey} cannot return to another one. */
+    private static long nonZero(long key) {
+        return key == 0 ? 1 : key;
+    }
+
+    /** Returns the key of the root path of the host of {@code hostKey}, which the segments chain on from. */
+    private static long pathSeed(long hostKey) {
+        return WyHash64.mix(hostKey ^ PATH_SEED, DOMAIN_SEED);
+    }
+
+    private boolean put(long key) {
+        return filter.putHash(key, secondHash(key));
+    }
+
+    private boolean mightContain(long key) {
+        return filter.mightContainHash(key, secondHash(key));
+    }
+
+    /** Second probe hash, like that of the wyhash strategies. */
+    private static long secondHash(long key) {
+        return WyHash64.mix(key ^ 0x9E3779B97F4A7C15L, 0xD6E8FEB86659FD93L);
+    }
+
+    /** Returns the start of the label ending at {@code end}: just after the previous dot, or {@code off}. */
+    private static int labelStart(byte[] host, int off, int end) {
+        int i = end;
+        while (i > off && host[i - 1] != '.') {
+            i--;
+        }
+        return i;
+    }
+
+    /** Returns the end of the path proper, before any query or fragment. */
+    private static int pathEnd(byte[] path, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (path[i] == '?' || path[i] == '#') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int skipSlashes(byte[] path, int from, int end) {
+        while (from < end && path[from] == '/') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int segmentEnd(byte[] path, int from, int end) {
+        while (from < end && path[from] != '/') {
+            from++;
+        }
+        return from;
+    }
+
+    /** Lower-cases {@code host} and strips a port and a trailing dot. */
+    private static byte[] normalizeHost(String host) {
+        String normalized = host.toLowerCase(Locale.ROOT);
+        int colon = normalized.lastIndexOf(':');
+        // A port follows the only colon of a name, or the bracket of an IPv6 address.
+        if (colon >= 0
+                && (normalized.indexOf(':') == colon
+                        || normalized.startsWith("[") && normalized.charAt(colon - 1) == ']')) {
+            normalized = normalized.substring(0, colon);
+        }
+        if (normalized.endsWith(".")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "HierarchicalMatcher(" + filter + ")";
+    }
+}
@@ -0,0 +1,469 @@
+package com.newbloom.common.hash;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+
+/**
+ * A HyperLogLog++ sketch estimating the number of distinct elements added to it, within a relative
+ * standard error of {@code 1.04 / sqrt(2^precision)} (0.81% at the default precision of 14) in
+ * {@code 0.75 * 2^precision} bytes.
+ *
+ * <p>Elements are hashed exactly like a {@link BloomFilter} hashes them (the lower 64 bits of
+ * murmur3_128 over the funnel), so {@link BloomFilter#put(Object, HyperLogLog)} feeds a filter and a
+ * sketch with a single hashing pass. Unlike {@link BloomFilter#approximateElementCount()}, the
+ * estimate stays accurate however many elements are added.
+ *
+ * <p>A new sketch is <i>sparse</i>: a sorted array of (index, rank) pairs at precision 25, which is
+ * both smaller and more accurate than the registers while few elements were added. Once it would
+ * outgrow the registers it turns <i>dense</i>: {@code 2^precision} 6-bit registers packed ten to an
+ * {@code AtomicLongArray} word. Dense estimates use linear counting up to {@code 2.5 * 2^precision}
+ * and the raw HyperLogLog estimate above; the HLL++ bias correction tables are not included, so
+ * estimates between roughly 2.5 and 5 times {@code 2^precision} may be off by a few percent more than
+ * the standard error.
+ *
+ * <p>All operations are lock-free and may be called concurrently. A sparse sketch is copied on each
+ * change and swapped in by CAS; a dense one CASes register words.
+ *
+ * @param <T> the type of elements that this sketch accepts
+ */
+public final class HyperLogLog<T> {
+    /** Precision of the sparse representation. */
+    private static final int SPARSE_PRECISION = 25;
+
+    private static final int DEFAULT_PRECISION = 14;
+    private static final int MIN_PRECISION = 4;
+    private static final int MAX_PRECISION = 18;
+
+    private static final int REGISTER_BITS = 6;
+    private static final int REGISTERS_PER_WORD = Long.SIZE / REGISTER_BITS;
+    private static final long REGISTER_MASK = (1L << REGISTER_BITS) - 1;
+
+    private static final byte FORMAT_SPARSE = 1;
+    private static final byte FORMAT_DENSE = 2;
+
+    private final int precision;
+    private final Funnel<? super T> funnel;
+
+    /**
+     * Either an {@code int[]} of sorted sparse entries, {@code index << 6 | rank} at {@link
+     * #SPARSE_PRECISION}, or the {@code AtomicLongArray} of dense registers.
+     */
+    private final AtomicReference<Object> state;
+
+    private HyperLogLog(int precision, Funnel<? super T> funnel, Object state) {
+        this.precision = precision;
+        this.funnel = funnel;
+        this.state = new AtomicReference<Object>(state);
+    }
+
+    /**
+     * Creates a sketch of the default precision, 14.
+     */
+    public static <T> HyperLogLog<T> create(Funnel<? super T> funnel) {
+        return create(funnel, DEFAULT_PRECISION);
+    }
+
+    /**
+     * Creates a sketch with {@code 2^precision} registers.
+     *
+     * @param precision between 4 and 18, inclusive
+     */
+    public static <T> HyperLogLog<T> create(Funnel<? super T> funnel, int precision) {
+        checkNotNull(funnel);
+        checkArgument(
+                precision >= MIN_PRECISION && precision <= MAX_PRECISION,
+                "precision (%s) must be between %s and %s",
+                precision,
+                MIN_PRECISION,
+                MAX_PRECISION);
+        return new HyperLogLog<T>(precision, funnel, new int[0]);
+    }
+
+    public int precision() {
+        return precision;
+    }
+
+    /**
+     * Returns the relative standard error of the estimates of this sketch.
+     */
+    public double relativeStandardError() {
+        return 1.04 / Math.sqrt(1 << precision);
+    }
+
+    /**
+     * Adds {@code object} to this sketch.
+     *
+     * @return {@code true} if the sketch changed, in which case {@code object} was definitely not
+     *     added before
+     */
+    public boolean add(T object) {
+        return addHash(Hashing.murmur3_128().hashObject(object, funnel).asLong());
+    }
+
+    /**
+     * Adds the element whose 64-bit hash, the lower half of its murmur3_128, is {@code hash}.
+     */
+    boolean addHash(long hash) {
+        int sparseIndex = (int) (hash >>> (Long.SIZE - SPARSE_PRECISION));
+        int sparseRank = Long.numberOfLeadingZeros((hash << SPARSE_PRECISION) | (1L << (SPARSE_PRECISION - 1))) + 1;
+        int entry = sparseIndex << REGISTER_BITS | sparseRank;
+        while (true) {
+            Object current = state.get();
+            if (current instanceof AtomicLongArray) {
+                return addRegister((AtomicLongArray) current, denseIndex(entry), denseRank(entry));
+            }
+            int[] entries = (int[]) current;
+            int[] updated = insert(entries, entry);
+            if (updated == entries) {
+                return false;
+            }
+            if (state.compareAndSet(current, compact(updated))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the estimated number of distinct elements added to this sketch.
+     */
+    public long cardinality() {
+        Object current = state.get();
+        if (current instanceof int[]) {
+            double m = 1 << SPARSE_PRECISION;
+            return Math.round(m * Math.log(m / (m - ((int[]) current).length)));
+        }
+        AtomicLongArray registers = (AtomicLongArray) current;
+        int m = 1 << precision;
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < m; i++) {
+            int rank = register(registers, i);
+            sum += Math.scalb(1.0, -rank);
+            if (rank == 0) {
+                zeros++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (zeros > 0 && estimate <= 2.5 * m) {
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    /**
+     * Returns whether {@code that} can be {@linkplain #merge merged} into this sketch.
+     */
+    public boolean isCompatible(HyperLogLog<T> that) {
+        checkNotNull(that);
+        return this != that && precision == that.precision && funnel.equals(that.funnel);
+    }
+
+    /**
+     * Adds the elements of {@code that} to this sketch: this sketch then estimates the cardinality of
+     * the union. {@code that} may be changed concurrently, the elements it gets meanwhile may or may
+     * not be merged.
+     *
+     * @throws IllegalArgumentException if {@code isCompatible(that) == false}
+     */
+    public void merge(HyperLogLog<T> that) {
+        checkArgument(this != that, "Cannot merge a HyperLogLog with itself.");
+        checkArgument(
+                precision == that.precision,
+                "HyperLogLogs must have the same precision (%s != %s)",
+                precision,
+                that.precision);
+        checkArgument(
+                funnel.equals(that.funnel),
+                "HyperLogLogs must have equal funnels (%s != %s)",
+                funnel,
+                that.funnel);
+        Object other = that.state.get();
+        if (other instanceof int[]) {
+            int[] otherEntries = (int[]) other;
+            while (true) {
+                Object current = state.get();
+                if (current instanceof AtomicLongArray) {
+                    for (int entry : otherEntries) {
+                        addRegister((AtomicLongArray) current, denseIndex(entry), denseRank(entry));
+                    }
+                    return;
+                }
+                int[] merged = union((int[]) current, otherEntries);
+                if (merged == current || state.compareAndSet(current, compact(merged))) {
+                    return;
+                }
+            }
+        }
+        AtomicLongArray otherRegisters = (AtomicLongArray) other;
+        AtomicLongArray registers = toDense();
+        for (int i = 0; i < 1 << precision; i++) {
+            int rank = register(otherRegisters, i);
+            if (rank != 0) {
+                addRegister(registers, i, rank);
+            }
+        }
+    }
+
+    /**
+     * Writes this sketch to {@code out}: one format byte and the precision, then either the sparse
+     * entries as varint deltas or the 6-bit registers packed big-endian.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        Object current = state.get();
+        if (current instanceof int[]) {
+            int[] entries = (int[]) current;
+            dout.writeByte(FORMAT_SPARSE);
+            dout.writeByte(precision);
+            writeVarint(dout, entries.length);
+            int previous = 0;
+            for (int entry : entries) {
+                writeVarint(dout, entry - previous);
+                previous = entry;
+            }
+        } else {
+            AtomicLongArray registers = (AtomicLongArray) current;
+            dout.writeByte(FORMAT_DENSE);
+            dout.writeByte(precision);
+            long buffer = 0;
+            int buffered = 0;
+            for (int i = 0; i < 1 << precision; i++) {
+                buffer = buffer << REGISTER_BITS | register(registers, i);
+                buffered += REGISTER_BITS;
+                while (buffered >= Byte.SIZE) {
+                    buffered -= Byte.SIZE;
+                    dout.writeByte((int) (buffer >>> buffered));
+                }
+            }
+            if (buffered > 0) {
+                dout.writeByte((int) (buffer << (Byte.SIZE - buffered)));
+            }
+        }
+        dout.flush();
+    }
+
+    /**
+     * Reads a sketch written by {@link #writeTo(OutputStream)}. The funnel is not part of the stream
+     * and must be the one the sketch was built with.
+     *
+     * @throws IOException if the stream throws, or does not hold a sketch written by {@link #writeTo}
+     */
+    public static <T> HyperLogLog<T> readFrom(InputStream in, Funnel<? super T> funnel) throws IOException {
+        checkNotNull(in, "InputStream");
+        checkNotNull(funnel, "Funnel");
+        DataInputStream din = new DataInputStream(in);
+        int format = din.readByte();
+        int precision = din.readByte();
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IOException("Unable to deserialize HyperLogLog: precision " + precision);
+        }
+        if (format == FORMAT_SPARSE) {
+            int length = readVarint(din);
+            if (length < 0 || length > sparseLimit(precision)) {
+                throw new IOException("Unable to deserialize HyperLogLog: " + length + " sparse entries");
+            }
+            int[] entries = new int[length];
+            int previous = 0;
+            for (int i = 0; i < length; i++) {
+                int delta = readVarint(din);
+                if (i > 0 && delta <= 0) {
+                    throw new IOException("Unable to deserialize HyperLogLog: unsorted sparse entries");
+                }
+                entries[i] = previous += delta;
+            }
+            return new HyperLogLog<T>(precision, funnel, entries);
+        }
+        if (format != FORMAT_DENSE) {
+            throw new IOException("Unable to deserialize HyperLogLog: format " + format);
+        }
+        AtomicLongArray registers = newRegisters(precision);
+        long buffer = 0;
+        int buffered = 0;
+        for (int i = 0; i < 1 << precision; i++) {
+            while (buffered < REGISTER_BITS) {
+                buffer = buffer << Byte.SIZE | din.readUnsignedByte();
+                buffered += Byte.SIZE;
+            }
+            buffered -= REGISTER_BITS;
+            addRegister(registers, i, (int) ((buffer >>> buffered) & REGISTER_MASK));
+        }
+        return new HyperLogLog<T>(precision, funnel, registers);
+    }
+
+    @Override
+    public String toString() {
+        return "HyperLogLog(precision=" + precision + ", cardinality=" + cardinality() + ")";
+    }
+
+    /**
+     * Returns {@code entries} with {@code entry} added, or {@code entries} itself if it already has
+     * an entry of the same index and at least the same rank.
+     */
+    private static int[] insert(int[] entries, int entry) {
+        int index = entry >>> REGISTER_BITS;
+        int low = 0;
+        int high = entries.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midIndex = entries[mid] >>> REGISTER_BITS;
+            if (midIndex < index) {
+                low = mid + 1;
+            } else if (midIndex > index) {
+                high = mid - 1;
+            } else {
+                if (entries[mid] >= entry) {
+                    return entries;
+                }
+                int[] updated = entries.clone();
+                updated[mid] = entry;
+                return updated;
+            }
+        }
+        int[] updated = new int[entries.length + 1];
+        System.arraycopy(entries, 0, updated, 0, low);
+        updated[low] = entry;
+        System.arraycopy(entries, low, updated, low + 1, entries.length - low);
+        return updated;
+    }
+
+    /**
+     * Returns the union of two sorted entry arrays keeping the highest rank per index, or {@code a}
+     * itself if it already covers {@code b}.
+     */
+    private static int[] union(int[] a, int[] b) {
+        int[] merged = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        boolean changed = false;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] >>> REGISTER_BITS < b[j] >>> REGISTER_BITS)) {
+                merged[n++] = a[i++];
+            } else if (i == a.length || b[j] >>> REGISTER_BITS < a[i] >>> REGISTER_BITS) {
+                merged[n++] = b[j++];
+                changed = true;
+            } else {
+                changed |= b[j] > a[i];
+                merged[n++] = Math.max(a[i++], b[j++]);
+            }
+        }
+        return changed ? Arrays.copyOf(merged, n) : a;
+    }
+
+    /**
+     * Returns {@code entries} if it is within the sparse limit, else the equivalent dense registers.
+     */
+    private Object compact(int[] entries) {
+        if (entries.length <= sparseLimit(precision)) {
+            return entries;
+        }
+        AtomicLongArray registers = newRegisters(precision);
+        for (int entry : entries) {
+            addRegister(registers, denseIndex(entry), denseRank(entry));
+        }
+        return registers;
+    }
+
+    /** Switches this sketch to dense registers if it is not yet, and returns them. */
+    private AtomicLongArray toDense() {
+        while (true) {
+            Object current = state.get();
+            if (current instanceof AtomicLongArray) {
+                return (AtomicLongArray) current;
+            }
+            AtomicLongArray registers = newRegisters(precision);
+            for (int entry : (int[]) current) {
+                addRegister(registers, denseIndex(entry), denseRank(entry));
+            }
+            if (state.compareAndSet(current, registers)) {
+                return registers;
+            }
+        }
+    }
+
+    /** Sparse entries take as many bytes as the dense registers at this count. */
+    private static int sparseLimit(int precision) {
+        return (3 << precision) / 16;
+    }
+
+    private int denseIndex(int entry) {
+        return entry >>> (REGISTER_BITS + SPARSE_PRECISION - precision);
+    }
+
+    /** Rank of the sparse {@code entry} at {@link #precision}, see "HyperLogLog in Practice", 5.3. */
+    private int denseRank(int entry) {
+        int extraBits = SPARSE_PRECISION - precision;
+        int extra = (entry >>> REGISTER_BITS) & ((1 << extraBits) - 1);
+        if (extra != 0) {
+            return Integer.numberOfLeadingZeros(extra) - (Integer.SIZE - extraBits) + 1;
+        }
+        return extraBits + (int) (entry & REGISTER_MASK);
+    }
+
+    private static AtomicLongArray newRegisters(int precision) {
+        return new AtomicLongArray(((1 << precision) + REGISTERS_PER_WORD - 1) / REGISTERS_PER_WORD);
+    }
+
+    private static int register(AtomicLongArray registers, int index) {
+        int shift = (index % REGISTERS_PER_WORD) * REGISTER_BITS;
+        return (int) ((registers.get(index / REGISTERS_PER_WORD) >>> shift) & REGISTER_MASK);
+    }
+
+    /** Raises register {@code index} to {@code rank}, returning whether it was lower. */
+    private static boolean addRegister(AtomicLongArray registers, int index, int rank) {
+        int word = index / REGISTERS_PER_WORD;
+        int shift = (index % REGISTERS_PER_WORD) * REGISTER_BITS;
+        long oldValue;
+        long newValue;
+        do {
+            oldValue = registers.get(word);
+            if (((oldValue >>> shift) & REGISTER_MASK) >= rank) {
+                return false;
+            }
+            newValue = (oldValue & ~(REGISTER_MASK << shift)) | ((long) rank << shift);
+        } while (!registers.compareAndSet(word, oldValue, newValue));
+        return true;
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Unable to deserialize HyperLogLog: malformed varint");
+    }
+}
@@ -14,20 +14,37 @@
 
 package com.newbloom.common.hash;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteOrder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import sun.misc.Unsafe;
 
 /**
  * Utility functions for loading and storing values from a byte array.
  *
+ * <p>The loads and stores go through byte-array view {@link VarHandle}s by default, which the JIT
+ * compiles to single unaligned loads and stores without touching JDK internals. The implementation
+ * can be chosen with the system property {@value #IMPL_PROPERTY}: {@code varhandle} (the default),
+ * {@code unsafe} ({@code sun.misc.Unsafe}, on amd64 only) or {@code java} (mask-and-shift). The
+ * chosen implementation is logged when this class initializes, at {@code INFO} level, or at
+ * {@code WARNING} level if the requested one was not available.
+ *
  * @author Kevin Damm
  * @author Kyle Maddison
  */
 final class LittleEndianByteArray {
+  static final String IMPL_PROPERTY = "com.newbloom.common.hash.LittleEndianByteArray.impl";
+
+  private static final Logger logger = Logger.getLogger(LittleEndianByteArray.class.getName());
 
-  /** The instance that actually does the work; delegates to Unsafe or a pure-Java fallback. */
+  /** The instance that actually does the work; delegates to VarHandles, Unsafe or plain Java. */
   private static final LittleEndianBytes byteArray;
 
+  /** The name of {@link #byteArray}, as {@link #IMPL_PROPERTY} selects it. */
+  private static final String implementation;
+
   /**
    * Load 8 bytes into long in a little endian manner, from the substring between position and
    * position + 8. The array must have at least 8 bytes from offset (inclusive).
@@ -39,7 +56,7 @@ final class LittleEndianByteArray {
   static long load64(byte[] input, int offset) {
     // We don't want this in production code as this is the most critical part of the loop.
     assert input.length >= offset + 8;
-    // Delegates to the fast (unsafe) version or the fallback.
+    // Delegates to the VarHandle, Unsafe or pure-Java version.
     return byteArray.getLongLittleEndian(input, offset);
   }
 
@@ -77,7 +94,7 @@ final class LittleEndianByteArray {
   static void store64(byte[] sink, int offset, long value) {
     // We don't want to assert in production code.
     assert offset >= 0 && offset + 8 <= sink.length;
-    // Delegates to the fast (unsafe)version or the fallback.
+    // Delegates to the VarHandle, Unsafe or pure-Java version.
     byteArray.putLongLittleEndian(sink, offset, value);
   }
 
@@ -89,11 +106,7 @@ final class LittleEndianByteArray {
    * @return the value found in the array in the form of a long
    */
   static int load32(byte[] source, int offset) {
-    // TODO(user): Measure the benefit of delegating this to LittleEndianBytes also.
-    return (source[offset] & 0xFF)
-        | ((source[offset + 1] & 0xFF) << 8)
-        | ((source[offset + 2] & 0xFF) << 16)
-        | ((source[offset + 3] & 0xFF) << 24);
+    return byteArray.getIntLittleEndian(source, offset);
   }
 
   /**
@@ -105,6 +118,11 @@ final class LittleEndianByteArray {
     return (byteArray instanceof UnsafeByteArray);
   }
 
+  /** Returns the implementation in use: {@code varhandle}, {@code unsafe} or {@code java}. */
+  static String implementation() {
+    return implementation;
+  }
+
   /**
    * Common interface for retrieving a 64-bit long from a little-endian byte array.
    *
@@ -115,6 +133,36 @@ final class LittleEndianByteArray {
     long getLongLittleEndian(byte[] array, int offset);
 
     void putLongLittleEndian(byte[] array, int offset, long value);
+
+    int getIntLittleEndian(byte[] array, int offset);
+  }
+
+  /**
+   * Loads and stores through little-endian views of byte arrays. The VarHandles check bounds and
+   * swap bytes on big-endian hardware themselves, and are intrinsified by the JIT.
+   */
+  private enum VarHandleByteArray implements LittleEndianBytes {
+    INSTANCE {
+      @Override
+      public long getLongLittleEndian(byte[] array, int offset) {
+        return (long) LONGS.get(array, offset);
+      }
+
+      @Override
+      public void putLongLittleEndian(byte[] array, int offset, long value) {
+        LONGS.set(array, offset, value);
+      }
+
+      @Override
+      public int getIntLittleEndian(byte[] array, int offset) {
+        return (int) INTS.get(array, offset);
+      }
+    };
+
+    private static final VarHandle LONGS =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INTS =
+        MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
   }
 
   /**
@@ -134,6 +182,11 @@ final class LittleEndianByteArray {
       public void putLongLittleEndian(byte[] array, int offset, long value) {
         theUnsafe.putLong(array, (long) offset + BYTE_ARRAY_BASE_OFFSET, value);
       }
+
+      @Override
+      public int getIntLittleEndian(byte[] array, int offset) {
+        return theUnsafe.getInt(array, (long) offset + BYTE_ARRAY_BASE_OFFSET);
+      }
     },
     UNSAFE_BIG_ENDIAN {
       @Override
@@ -149,6 +202,11 @@ final class LittleEndianByteArray {
         long littleEndianValue = Long.reverseBytes(value);
         theUnsafe.putLong(array, (long) offset + BYTE_ARRAY_BASE_OFFSET, littleEndianValue);
       }
+
+      @Override
+      public int getIntLittleEndian(byte[] array, int offset) {
+        return Integer.reverseBytes(theUnsafe.getInt(array, (long) offset + BYTE_ARRAY_BASE_OFFSET));
+      }
     };
 
     // Provides load and store operations that use native instructions to get better performance.
@@ -236,34 +294,70 @@ final class LittleEndianByteArray {
           sink[offset + i] = (byte) ((value & mask) >> (i * 8));
         }
       }
+
+      @Override
+      public int getIntLittleEndian(byte[] source, int offset) {
+        return (source[offset] & 0xFF)
+            | ((source[offset + 1] & 0xFF) << 8)
+            | ((source[offset + 2] & 0xFF) << 16)
+            | ((source[offset + 3] & 0xFF) << 24);
+      }
     };
   }
 
   static {
-    LittleEndianBytes theGetter = JavaLittleEndianBytes.INSTANCE;
+    String requested = System.getProperty(IMPL_PROPERTY, "varhandle");
+    LittleEndianBytes theGetter = load(requested);
+    String name = requested;
+    if (theGetter == null) {
+      theGetter = load("varhandle");
+      name = "varhandle";
+      if (theGetter == null) {
+        theGetter = JavaLittleEndianBytes.INSTANCE;
+        name = "java";
+      }
+      logger.log(
+          Level.WARNING,
+          "{0}={1} is not available here, falling back to {2}",
+          new Object[] {IMPL_PROPERTY, requested, name});
+    } else {
+      logger.log(Level.INFO, "LittleEndianByteArray uses {0}", name);
+    }
+    byteArray = theGetter;
+    implementation = name;
+  }
+
+  /** Returns the implementation called {@code name}, or null if it does not work here. */
+  private static LittleEndianBytes load(String name) {
     try {
-      /*
-        UnsafeByteArray uses Unsafe.getLong() in an unsupported way, which is known to cause crashes
-        on Android when running in 32-bit mode. For maximum safety, we shouldn't use
-        Unsafe.getLong() at all, but the performance benefit on x86_64 is too great to ignore, so as
-        a compromise, we enable the optimization only on platforms that we specifically know to
-        work.
-
-        In the future, the use of Unsafe.getLong() should be replaced by ByteBuffer.getLong(), which
-        will have an efficient native implementation in JDK 9.
-
-      */
-      final String arch = System.getProperty("os.arch");
-      if ("amd64".equals(arch)) {
-        theGetter =
-            ByteOrder.nativeOrder().equals(ByteOrder.LITTLE_ENDIAN)
-                ? UnsafeByteArray.UNSAFE_LITTLE_ENDIAN
-                : UnsafeByteArray.UNSAFE_BIG_ENDIAN;
+      switch (name) {
+        case "varhandle":
+          // Touch the VarHandles now, so that a failure to link them surfaces here.
+          VarHandleByteArray.INSTANCE.getLongLittleEndian(new byte[8], 0);
+          return VarHandleByteArray.INSTANCE;
+        case "unsafe":
+          /*
+            UnsafeByteArray uses Unsafe.getLong() in an unsupported way, which is known to cause
+            crashes on Android when running in 32-bit mode. For maximum safety, we shouldn't use
+            Unsafe.getLong() at all, but the performance benefit on x86_64 is too great to ignore, so
+            as a compromise, we enable the optimization only on platforms that we specifically know
+            to work.
+          */
+          if (!"amd64".equals(System.getProperty("os.arch"))) {
+            return null;
+          }
+          return ByteOrder.nativeOrder().equals(ByteOrder.LITTLE_ENDIAN)
+              ? UnsafeByteArray.UNSAFE_LITTLE_ENDIAN
+              : UnsafeByteArray.UNSAFE_BIG_ENDIAN;
+        case "java":
+          return JavaLittleEndianBytes.INSTANCE;
+        default:
+          return null;
       }
     } catch (Throwable t) {
       // ensure we really catch *everything*
+      return null;
     }
-    byteArray = theGetter;
   }
 
   /** Deter instantiation of this class. */
@@ -0,0 +1,42 @@
+package com.newbloom.common.hash;
+
+/**
+ * Advice on how a memory-mapped filter will be used, applied to its mappings when it is opened, see
+ * {@link BloomFilter#openReadOnly(Funnel, String, long, double, BloomFilter.Strategy, java.util.Set)}.
+ *
+ * <p>{@code madvise} and {@code mlock} are Linux system calls, reached through the Foreign Function
+ * and Memory API of JDK 22 and later (run with {@code --enable-native-access=ALL-UNNAMED} to avoid
+ * its warning). Where they cannot be called, {@link #RANDOM}, {@link #HUGEPAGE} and {@link #MLOCK}
+ * do nothing, which is logged once; {@link #WILLNEED} falls back to {@link
+ * java.nio.MappedByteBuffer#load()}, and {@link #PRETOUCH} works everywhere.
+ */
+public enum MemoryAdvice {
+    /**
+     * {@code MADV_RANDOM}: disables readahead, so that the random probes of a filter larger than
+     * memory only read the pages they touch.
+     */
+    RANDOM,
+
+    /**
+     * {@code MADV_WILLNEED}: starts reading the whole mapping into the page cache in the background.
+     */
+    WILLNEED,
+
+    /**
+     * {@code MADV_HUGEPAGE}: lets the kernel back the mapping with transparent huge pages, where the
+     * file system supports it, so that probes take far fewer TLB misses.
+     */
+    HUGEPAGE,
+
+    /**
+     * {@code mlock}: faults the mapping in and keeps it resident. Needs a large enough {@code
+     * RLIMIT_MEMLOCK}; a failure is logged, not thrown.
+     */
+    MLOCK,
+
+    /**
+     * Reads a byte of every page of the mapping from parallel threads before the filter is returned,
+     * so that the first queries do not wait for page faults.
+     */
+    PRETOUCH
+}
@@ -26,10 +26,16 @@
 package com.newbloom.common.hash;
 
 
+import com.newbloom.common.base.Preconditions;
+
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import static com.newbloom.common.hash.LittleEndianByteArray.load64;
+import static com.newbloom.common.hash.LittleEndianByteArray.load64Safely;
+import static com.newbloom.common.hash.LittleEndianByteArray.store64;
+
 /**
  * See MurmurHash3_x64_128 in <a href="http://smhasher.googlecode.com/svn/trunk/MurmurHash3.cpp">the
  * C++ implementation</a>.
@@ -44,6 +50,9 @@ final class Murmur3_128HashFunction extends AbstractHashFunction implements Seri
   static final HashFunction GOOD_FAST_HASH_128 =
       new Murmur3_128HashFunction(Hashing.GOOD_FAST_HASH_SEED);
 
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
   // TODO(user): when the shortcuts are implemented, update BloomFilterStrategies
   private final int seed;
 
@@ -65,6 +74,53 @@ final class Murmur3_128HashFunction extends AbstractHashFunction implements Seri
     return new Murmur3_128Hasher(seed);
   }
 
+  /**
+   * Hashes {@code input} two words at a time, without copying it through the hasher's buffer; same
+   * result as {@link #newHasher()}.
+   */
+  @Override
+  public HashCode hashBytes(byte[] input, int off, int len) {
+    Preconditions.checkPositionIndexes(off, off + len, input.length);
+    long h1 = seed;
+    long h2 = seed;
+    int i;
+    for (i = 0; i + 16 <= len; i += 16) {
+      h1 ^= mixK1(load64(input, off + i));
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+
+      h2 ^= mixK2(load64(input, off + i + 8));
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+    int remaining = len - i;
+    if (remaining > 8) {
+      h2 ^= mixK2(load64Safely(input, off + i + 8, remaining - 8));
+    }
+    if (remaining > 0) {
+      h1 ^= mixK1(load64Safely(input, off + i, remaining));
+    }
+
+    h1 ^= len;
+    h2 ^= len;
+
+    h1 += h2;
+    h2 += h1;
+
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+
+    h1 += h2;
+    h2 += h1;
+
+    byte[] bytes = new byte[16];
+    store64(bytes, 0, h1);
+    store64(bytes, 8, h2);
+    return HashCode.fromBytesNoCopy(bytes);
+  }
+
   @Override
   public String toString() {
     return "Hashing.murmur3_128(" + seed + ")";
@@ -86,8 +142,6 @@ final class Murmur3_128HashFunction extends AbstractHashFunction implements Seri
 
   private static final class Murmur3_128Hasher extends AbstractStreamingHasher {
     private static final int CHUNK_SIZE = 16;
-    private static final long C1 = 0x87c37b91114253d5L;
-    private static final long C2 = 0x4cf5ad432745937fL;
     private long h1;
     private long h2;
     private int length;
@@ -188,28 +242,29 @@ final class Murmur3_128HashFunction extends AbstractHashFunction implements Seri
               .array());
     }
 
-    private static long fmix64(long k) {
-      k ^= k >>> 33;
-      k *= 0xff51afd7ed558ccdL;
-      k ^= k >>> 33;
-      k *= 0xc4ceb9fe1a85ec53L;
-      k ^= k >>> 33;
-      return k;
-    }
+  }
 
-    private static long mixK1(long k1) {
-      k1 *= C1;
-      k1 = Long.rotateLeft(k1, 31);
-      k1 *= C2;
-      return k1;
-    }
+  static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
 
-    private static long mixK2(long k2) {
-      k2 *= C2;
-      k2 = Long.rotateLeft(k2, 33);
-      k2 *= C1;
-      return k2;
-    }
+  static long mixK1(long k1) {
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    k1 *= C2;
+    return k1;
+  }
+
+  static long mixK2(long k2) {
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    k2 *= C1;
+    return k2;
   }
 
   private static final long serialVersionUID = 0L;
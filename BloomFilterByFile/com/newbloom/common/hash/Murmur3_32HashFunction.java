@@ -28,6 +28,7 @@ package com.newbloom.common.hash;
 import com.newbloom.common.base.Preconditions;
 
 import static com.newbloom.common.base.Preconditions.checkState;
+import static com.newbloom.common.hash.LittleEndianByteArray.load32;
 
 import java.io.Serializable;
 import java.nio.ByteBuffer;
@@ -213,7 +214,7 @@ final class Murmur3_32HashFunction extends AbstractHashFunction implements Seria
     int h1 = seed;
     int i;
     for (i = 0; i + CHUNK_SIZE <= len; i += CHUNK_SIZE) {
-      int k1 = mixK1(getIntLittleEndian(input, off + i));
+      int k1 = mixK1(load32(input, off + i));
       h1 = mixH1(h1, k1);
     }
 
@@ -228,9 +229,6 @@ final class Murmur3_32HashFunction extends AbstractHashFunction implements Seria
   public static int IntsFromBytes(byte b1, byte b2, byte b3, byte b4) {
     return b1 << 24 | (b2 & 0xFF) << 16 | (b3 & 0xFF) << 8 | (b4 & 0xFF);
   }
-  private static int getIntLittleEndian(byte[] input, int offset) {
-    return IntsFromBytes(input[offset + 3], input[offset + 2], input[offset + 1], input[offset]);
-  }
 
   private static int mixK1(int k1) {
     k1 *= C1;
@@ -295,7 +293,7 @@ final class Murmur3_32HashFunction extends AbstractHashFunction implements Seria
       Preconditions.checkPositionIndexes(off, off + len, bytes.length);
       int i;
       for (i = 0; i + 4 <= len; i += 4) {
-        update(4, getIntLittleEndian(bytes, off + i));
+        update(4, load32(bytes, off + i));
       }
       for (; i < len; i++) {
         putByte(bytes[off + i]);
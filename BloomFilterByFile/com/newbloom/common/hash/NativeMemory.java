@@ -0,0 +1,232 @@
+package com.newbloom.common.hash;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Applies {@link MemoryAdvice} to mapped buffers.
+ *
+ * <p>The {@code java.lang.foreign} classes are only looked up reflectively, so that this class
+ * compiles and runs on JDKs without them: the downcall handles are adapted once to plain {@code
+ * (long address, long length[, int advice]) int} method handles, and nothing else here refers to
+ * the API.
+ */
+final class NativeMemory {
+    private static final Logger logger = Logger.getLogger(NativeMemory.class.getName());
+
+    /** The smallest page size; mappings are aligned down to it for madvise and mlock. */
+    static final int PAGE_BYTES = 4096;
+
+    /** Bytes touched by each task of {@link #preTouch}. */
+    private static final int PRETOUCH_SLICE_BYTES = 16 << 20;
+
+    private static final int MADV_RANDOM = 1;
+    private static final int MADV_WILLNEED = 3;
+    private static final int MADV_HUGEPAGE = 14;
+
+    /** {@code (long, long, int) int}, or null if native calls are not available. */
+    private static final MethodHandle MADVISE;
+    /** {@code (long, long) int}, or null if native calls are not available. */
+    private static final MethodHandle MLOCK;
+    /** {@code (Buffer) long}: the address of a direct buffer, or null. */
+    private static final MethodHandle ADDRESS;
+
+    private static final AtomicBoolean warned = new AtomicBoolean();
+
+    /** Keeps the JIT from dropping the reads of {@link #preTouch}. */
+    private static volatile int sink;
+
+    static {
+        MethodHandle madvise = null;
+        MethodHandle mlock = null;
+        MethodHandle address = null;
+        if (System.getProperty("os.name", "").startsWith("Linux")) {
+            try {
+                madvise = downcall("madvise", true);
+                mlock = downcall("mlock", false);
+                address = bufferAddress();
+                logger.log(Level.CONFIG, "madvise and mlock are called through java.lang.foreign");
+            } catch (Throwable t) {
+                // ensure we really catch *everything*
+                logger.log(Level.CONFIG, "madvise and mlock are not available: {0}", t.toString());
+                madvise = null;
+                mlock = null;
+                address = null;
+            }
+        }
+        MADVISE = madvise;
+        MLOCK = mlock;
+        ADDRESS = address;
+    }
+
+    private NativeMemory() {}
+
+    /** Returns whether madvise and mlock can be called. */
+    static boolean nativeAvailable() {
+        return MADVISE != null;
+    }
+
+    /**
+     * Applies {@code advice} to {@code buffer}, except {@link MemoryAdvice#PRETOUCH} which applies to
+     * all the buffers of a mapping at once, see {@link #preTouch}.
+     */
+    static void advise(MappedByteBuffer buffer, Set<MemoryAdvice> advice) {
+        if (advice.contains(MemoryAdvice.RANDOM)) {
+            madvise(buffer, MADV_RANDOM);
+        }
+        // Before any prefault, so that the faults can already map huge pages.
+        if (advice.contains(MemoryAdvice.HUGEPAGE)) {
+            madvise(buffer, MADV_HUGEPAGE);
+        }
+        if (advice.contains(MemoryAdvice.WILLNEED) && !madvise(buffer, MADV_WILLNEED)) {
+            buffer.load();
+        }
+        if (advice.contains(MemoryAdvice.MLOCK)) {
+            mlock(buffer);
+        }
+    }
+
+    private static boolean madvise(ByteBuffer buffer, int advice) {
+        if (MADVISE == null) {
+            warnUnavailable();
+            return false;
+        }
+        try {
+            long address = (long) ADDRESS.invokeExact((Buffer) buffer);
+            long start = address & -PAGE_BYTES;
+            int result = (int) MADVISE.invokeExact(start, buffer.capacity() + (address - start), advice);
+            if (result != 0) {
+                logger.log(Level.WARNING, "madvise({0}) failed", advice);
+                return false;
+            }
+            return true;
+        } catch (Throwable t) {
+            logger.log(Level.WARNING, "madvise(" + advice + ") failed", t);
+            return false;
+        }
+    }
+
+    private static void mlock(ByteBuffer buffer) {
+        if (MLOCK == null) {
+            warnUnavailable();
+            return;
+        }
+        try {
+            long address = (long) ADDRESS.invokeExact((Buffer) buffer);
+            long start = address & -PAGE_BYTES;
+            int result = (int) MLOCK.invokeExact(start, buffer.capacity() + (address - start));
+            if (result != 0) {
+                logger.log(
+                        Level.WARNING,
+                        "mlock of {0} bytes failed, RLIMIT_MEMLOCK may be too low",
+                        buffer.capacity());
+            }
+        } catch (Throwable t) {
+            logger.log(Level.WARNING, "mlock failed", t);
+        }
+    }
+
+    private static void warnUnavailable() {
+        if (warned.compareAndSet(false, true)) {
+            logger.log(
+                    Level.WARNING,
+                    "madvise and mlock need Linux and the java.lang.foreign API of JDK 22+, ignoring memory advice");
+        }
+    }
+
+    /**
+     * Reads one byte of every page of {@code buffers}, in slices of 16 MB spread over the common
+     * fork-join pool.
+     */
+    static void preTouch(ByteBuffer[] buffers) {
+        int[] sliceStarts = new int[buffers.length + 1];
+        for (int i = 0; i < buffers.length; i++) {
+            sliceStarts[i + 1] = sliceStarts[i] + (buffers[i].capacity() + PRETOUCH_SLICE_BYTES - 1) / PRETOUCH_SLICE_BYTES;
+        }
+        sink +=
+                IntStream.range(0, sliceStarts[buffers.length])
+                        .parallel()
+                        .map(
+                                slice -> {
+                                    int b = 0;
+                                    while (sliceStarts[b + 1] <= slice) {
+                                        b++;
+                                    }
+                                    ByteBuffer buffer = buffers[b];
+                                    int from = (slice - sliceStarts[b]) * PRETOUCH_SLICE_BYTES;
+                                    int to = (int) Math.min((long) from + PRETOUCH_SLICE_BYTES, buffer.capacity());
+                                    int sum = 0;
+                                    for (int i = from; i < to; i += PAGE_BYTES) {
+                                        sum += buffer.get(i);
+                                    }
+                                    return sum;
+                                })
+                        .sum();
+    }
+
+    /**
+     * Returns a handle on the C function {@code name(void *, size_t[, int]) -> int} taking the
+     * address as a {@code long}.
+     */
+    private static MethodHandle downcall(String name, boolean withInt) throws ReflectiveOperationException {
+        Class<?> linkerClass = Class.forName("java.lang.foreign.Linker");
+        Class<?> optionClass = Class.forName("java.lang.foreign.Linker$Option");
+        Class<?> lookupClass = Class.forName("java.lang.foreign.SymbolLookup");
+        Class<?> segmentClass = Class.forName("java.lang.foreign.MemorySegment");
+        Class<?> layoutClass = Class.forName("java.lang.foreign.MemoryLayout");
+        Class<?> valueLayoutClass = Class.forName("java.lang.foreign.ValueLayout");
+        Class<?> descriptorClass = Class.forName("java.lang.foreign.FunctionDescriptor");
+
+        Object linker = linkerClass.getMethod("nativeLinker").invoke(null);
+        Object lookup = linkerClass.getMethod("defaultLookup").invoke(linker);
+        Optional<?> symbol = (Optional<?>) lookupClass.getMethod("find", String.class).invoke(lookup, name);
+        if (!symbol.isPresent()) {
+            throw new NoSuchMethodException(name);
+        }
+        String[] layouts =
+                withInt
+                        ? new String[] {"ADDRESS", "JAVA_LONG", "JAVA_INT"}
+                        : new String[] {"ADDRESS", "JAVA_LONG"};
+        Object argumentLayouts = Array.newInstance(layoutClass, layouts.length);
+        for (int i = 0; i < layouts.length; i++) {
+            Array.set(argumentLayouts, i, valueLayoutClass.getField(layouts[i]).get(null));
+        }
+        Object descriptor =
+                descriptorClass
+                        .getMethod("of", layoutClass, argumentLayouts.getClass())
+                        .invoke(null, valueLayoutClass.getField("JAVA_INT").get(null), argumentLayouts);
+        Object options = Array.newInstance(optionClass, 0);
+        MethodHandle handle =
+                (MethodHandle)
+                        linkerClass
+                                .getMethod("downcallHandle", segmentClass, descriptorClass, options.getClass())
+                                .invoke(linker, symbol.get(), descriptor, options);
+        MethodHandle ofAddress =
+                MethodHandles.publicLookup()
+                        .findStatic(segmentClass, "ofAddress", MethodType.methodType(segmentClass, long.class));
+        return MethodHandles.filterArguments(handle, 0, ofAddress);
+    }
+
+    /** Returns a {@code (Buffer) long} handle on the address of a direct buffer. */
+    private static MethodHandle bufferAddress() throws ReflectiveOperationException {
+        Class<?> segmentClass = Class.forName("java.lang.foreign.MemorySegment");
+        MethodHandle ofBuffer =
+                MethodHandles.publicLookup()
+                        .findStatic(segmentClass, "ofBuffer", MethodType.methodType(segmentClass, Buffer.class));
+        MethodHandle address =
+                MethodHandles.publicLookup().findVirtual(segmentClass, "address", MethodType.methodType(long.class));
+        return MethodHandles.filterReturnValue(ofBuffer, address);
+    }
+}
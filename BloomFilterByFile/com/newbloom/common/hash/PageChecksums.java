@@ -0,0 +1,274 @@
+package com.newbloom.common.hash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+
+/**
+ * CRC32C checksums of the 4 KB pages of a {@link BloomFilterStrategies.FileBitArray} file, kept in a
+ * {@code .crc} file next to it so that the filter file itself keeps its format.
+ *
+ * <p>The writer marks the pages it changes as stale and recomputes their checksums in batches on
+ * {@link #update}. A reader loads the checksums, which take 1/1024 of the size of the filter, and
+ * verifies each page the first time it is touched, or all of them through {@link #verifyAll}, so
+ * opening a filter never scans it. A page whose checksum does not match is logged once and reads
+ * as all ones: a torn write or bit rot then costs false positives instead of false negatives.
+ *
+ * <p>Layout of the {@code .crc} file: the magic {@code "BFCR"}, the page size and the length of the
+ * filter file, then one big-endian CRC32C per page; the last page may be partial.
+ */
+final class PageChecksums {
+    private static final Logger logger = Logger.getLogger(PageChecksums.class.getName());
+
+    static final int PAGE_SHIFT = 12;
+    static final int PAGE_BYTES = 1 << PAGE_SHIFT;
+
+    private static final int MAGIC = 0x42464352;
+    private static final int HEADER_BYTES = 16;
+
+    /** Reads {@code length} bytes of the filter file at {@code position} into {@code dst}. */
+    interface PageSource {
+        void read(long position, byte[] dst, int length);
+    }
+
+    private final String dataFile;
+    private final long dataBytes;
+    private final int pageCount;
+
+    /** Expected checksum of each page; only written by {@link #update}, under its lock. */
+    private final int[] crcs;
+
+    /** Pages changed since their checksum was last computed. */
+    private final AtomicLongArray stale;
+
+    /** Pages verified since opening, whatever the outcome. */
+    private final AtomicLongArray verified;
+
+    /** Pages that failed verification. */
+    private final AtomicLongArray corrupt;
+
+    private final LongAddable corruptCount = LongAddables.create();
+
+    private PageChecksums(String dataFile, long dataBytes, int[] crcs) {
+        this.dataFile = dataFile;
+        this.dataBytes = dataBytes;
+        this.pageCount = crcs.length;
+        this.crcs = crcs;
+        int bitmapWords = (pageCount + 63) >>> 6;
+        this.stale = new AtomicLongArray(bitmapWords);
+        this.verified = new AtomicLongArray(bitmapWords);
+        this.corrupt = new AtomicLongArray(bitmapWords);
+    }
+
+    /** Returns the name of the checksum file of {@code dataFile}. */
+    static String checksumFile(String dataFile) {
+        return dataFile + ".crc";
+    }
+
+    static boolean exists(String dataFile) {
+        return Files.exists(Paths.get(checksumFile(dataFile)));
+    }
+
+    /**
+     * Loads the checksums of {@code dataFile}, a filter file of {@code dataBytes} bytes, to verify its
+     * pages. Returns {@code null} if it has no checksum file, or one that does not describe it, which
+     * is logged.
+     */
+    static PageChecksums load(String dataFile, long dataBytes) {
+        Path path = Paths.get(checksumFile(dataFile));
+        if (!Files.exists(path)) {
+            return null;
+        }
+        int pages = pageCount(dataBytes);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC
+                    || header.getInt(4) != PAGE_BYTES
+                    || header.getLong(8) != dataBytes
+                    || channel.size() < HEADER_BYTES + 4L * pages) {
+                logger.log(Level.WARNING, "{0} does not match {1}, its pages are not verified", new Object[] {path, dataFile});
+                return null;
+            }
+            ByteBuffer body = ByteBuffer.allocate(4 * pages);
+            readFully(channel, body, HEADER_BYTES);
+            body.flip();
+            int[] crcs = new int[pages];
+            body.asIntBuffer().get(crcs);
+            return new PageChecksums(dataFile, dataBytes, crcs);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read " + path, e);
+        }
+    }
+
+    /**
+     * Returns the checksums of {@code dataFile} for its writer: the ones on disk if valid, else
+     * checksums that are all stale, so that the next {@link #update} rewrites the whole file.
+     */
+    static PageChecksums forWriting(String dataFile, long dataBytes) {
+        PageChecksums checksums = load(dataFile, dataBytes);
+        if (checksums == null) {
+            try {
+                Files.deleteIfExists(Paths.get(checksumFile(dataFile)));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not delete " + checksumFile(dataFile), e);
+            }
+            checksums = new PageChecksums(dataFile, dataBytes, new int[pageCount(dataBytes)]);
+            for (int page = 0; page < checksums.pageCount; page++) {
+                checksums.markStale((long) page << PAGE_SHIFT);
+            }
+        }
+        return checksums;
+    }
+
+    private static int pageCount(long dataBytes) {
+        long pages = (dataBytes + PAGE_BYTES - 1) >>> PAGE_SHIFT;
+        checkArgument(pages <= Integer.MAX_VALUE / 4, "%s bytes are too many to checksum", dataBytes);
+        return (int) pages;
+    }
+
+    /** Records that the page holding {@code byteOffset} changed. */
+    void markStale(long byteOffset) {
+        int page = (int) (byteOffset >>> PAGE_SHIFT);
+        long bit = 1L << page;
+        int i = page >>> 6;
+        if ((stale.get(i) & bit) == 0) {
+            stale.getAndUpdate(i, word -> word | bit);
+        }
+    }
+
+    /**
+     * Recomputes the checksums of the stale pages, reading them from {@code source}, and writes them
+     * out, one write per 64 pages at most, then forces the checksum file. The filter file should be
+     * forced first, so that the checksums on disk never describe writes that are not.
+     */
+    synchronized void update(PageSource source) {
+        byte[] page = new byte[PAGE_BYTES];
+        ByteBuffer batch = ByteBuffer.allocate(64 * 4);
+        try (FileChannel channel = FileChannel.open(
+                Paths.get(checksumFile(dataFile)), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (channel.size() < HEADER_BYTES) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(PAGE_BYTES).putLong(dataBytes).flip();
+                writeFully(channel, header, 0);
+            }
+            for (int i = 0; i < stale.length(); i++) {
+                // Cleared before the pages are read: a page written meanwhile is stale again.
+                long word = stale.get(i) == 0 ? 0 : stale.getAndSet(i, 0);
+                if (word == 0) {
+                    continue;
+                }
+                int first = i * 64 + Long.numberOfTrailingZeros(word);
+                int last = i * 64 + 63 - Long.numberOfLeadingZeros(word);
+                for (int p = first; p <= last; p++) {
+                    if ((word & (1L << p)) != 0) {
+                        crcs[p] = checksum(p, source, page);
+                    }
+                }
+                batch.clear();
+                for (int p = first; p <= last; p++) {
+                    batch.putInt(crcs[p]);
+                }
+                batch.flip();
+                writeFully(channel, batch, HEADER_BYTES + 4L * first);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not write " + checksumFile(dataFile), e);
+        }
+    }
+
+    /**
+     * Returns whether the page holding {@code byteOffset} can be trusted, verifying it against
+     * {@code source} the first time. Bytes past the end of the checksummed file are not covered.
+     */
+    boolean intact(long byteOffset, PageSource source) {
+        int page = (int) (byteOffset >>> PAGE_SHIFT);
+        if (byteOffset >= dataBytes) {
+            return true;
+        }
+        int i = page >>> 6;
+        long bit = 1L << page;
+        if ((verified.get(i) & bit) != 0) {
+            return (corrupt.get(i) & bit) == 0;
+        }
+        return verify(page, source, new byte[PAGE_BYTES]);
+    }
+
+    /**
+     * Verifies every page not verified yet, e.g. from a background thread after opening, and returns
+     * the number of corrupt pages found so far.
+     */
+    long verifyAll(PageSource source) {
+        byte[] buffer = new byte[PAGE_BYTES];
+        for (int page = 0; page < pageCount; page++) {
+            if ((verified.get(page >>> 6) & (1L << page)) == 0) {
+                verify(page, source, buffer);
+            }
+        }
+        return corruptCount.sum();
+    }
+
+    /** Returns the number of corrupt pages found so far. */
+    long corruptPages() {
+        return corruptCount.sum();
+    }
+
+    private boolean verify(int page, PageSource source, byte[] buffer) {
+        boolean ok = checksum(page, source, buffer) == crcs[page];
+        int i = page >>> 6;
+        long bit = 1L << page;
+        if (!ok) {
+            // Before the page is marked verified, so that no reader sees it verified and intact.
+            corrupt.getAndUpdate(i, word -> word | bit);
+        }
+        long before = verified.getAndUpdate(i, word -> word | bit);
+        if (!ok && (before & bit) == 0) {
+            corruptCount.increment();
+            logger.log(
+                    Level.SEVERE,
+                    "Checksum mismatch in page {0} (bytes {1} to {2}) of {3}, its bits read as ones",
+                    new Object[] {Integer.toString(page), Long.toString((long) page << PAGE_SHIFT),
+                            Long.toString(pageEnd(page)), dataFile});
+        }
+        return ok;
+    }
+
+    private int checksum(int page, PageSource source, byte[] buffer) {
+        int length = (int) (pageEnd(page) - ((long) page << PAGE_SHIFT));
+        source.read((long) page << PAGE_SHIFT, buffer, length);
+        return Hashing.crc32c().hashBytes(buffer, 0, length).asInt();
+    }
+
+    private long pageEnd(int page) {
+        return Math.min(dataBytes, (long) (page + 1) << PAGE_SHIFT);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) < 0) {
+                throw new IOException("Truncated checksum file");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src, position + src.position());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PageChecksums(" + dataFile + ", " + pageCount + " pages, " + corruptPages() + " corrupt)";
+    }
+}
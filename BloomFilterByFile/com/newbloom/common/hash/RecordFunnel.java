@@ -0,0 +1,280 @@
+package com.newbloom.common.hash;
+
+import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+
+/**
+ * The funnel of {@link Funnels#forRecord}: one {@code (Object, PrimitiveSink) void} method handle,
+ * composed once per class from the accessor of each field and the {@link PrimitiveSink} method of
+ * its type, so that funneling an object makes no reflective call and boxes nothing.
+ *
+ * <p>The fields of a record are its components, in declaration order; those of another class are
+ * its non-static, non-transient fields, superclass fields first, each class's sorted by name, since
+ * the order of {@link Class#getDeclaredFields} is unspecified. Each field is written as:
+ *
+ * <ul>
+ *   <li>a primitive: by the {@code PrimitiveSink} method of its type;
+ *   <li>any other type: a presence byte, 0 for {@code null}, then if present:
+ *       <ul>
+ *         <li>a boxed primitive: as the primitive;
+ *         <li>a {@code CharSequence}: its length in chars as an int, then its chars unencoded;
+ *         <li>a {@code byte[]}: its length as an int, then its bytes;
+ *         <li>an enum: its name, as a {@code CharSequence};
+ *         <li>a record or class of such fields: its fields, as above.
+ *       </ul>
+ * </ul>
+ *
+ * <p>The lengths keep adjacent fields from running into each other: {@code ("ab", "c")} and {@code
+ * ("a", "bc")} funnel differently. The layout depends on nothing but the field names, order and
+ * types, so a filter built on one JVM answers the same on another.
+ */
+final class RecordFunnel<T> implements Funnel<T> {
+    private static final long serialVersionUID = 0;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    /** {@code (Object, PrimitiveSink) void} */
+    private static final MethodType WRITER_TYPE =
+            MethodType.methodType(void.class, Object.class, PrimitiveSink.class);
+
+    private static final MethodHandle IS_NULL;
+    private static final MethodHandle PUT_CHARS;
+    private static final MethodHandle PUT_BYTES;
+    private static final MethodHandle PUT_ENUM;
+
+    static {
+        try {
+            IS_NULL = LOOKUP.findStatic(Objects.class, "isNull", MethodType.methodType(boolean.class, Object.class));
+            PUT_CHARS = LOOKUP.findStatic(RecordFunnel.class, "putChars",
+                    MethodType.methodType(void.class, PrimitiveSink.class, CharSequence.class));
+            PUT_BYTES = LOOKUP.findStatic(RecordFunnel.class, "putBytes",
+                    MethodType.methodType(void.class, PrimitiveSink.class, byte[].class));
+            PUT_ENUM = LOOKUP.findStatic(RecordFunnel.class, "putEnum",
+                    MethodType.methodType(void.class, PrimitiveSink.class, Enum.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** One funnel per class, generated on first use. */
+    private static final ClassValue<RecordFunnel<?>> funnels = new ClassValue<RecordFunnel<?>>() {
+        @Override
+        protected RecordFunnel<?> computeValue(Class<?> type) {
+            return new RecordFunnel<Object>(type, writer(type, new ArrayDeque<Class<?>>()));
+        }
+    };
+
+    private final Class<?> type;
+    private final transient MethodHandle writer;
+
+    private RecordFunnel(Class<?> type, MethodHandle writer) {
+        this.type = type;
+        this.writer = writer;
+    }
+
+    /**
+     * Returns the funnel of {@code type}, generating it on the first call.
+     *
+     * @throws IllegalArgumentException if a field of {@code type} has a type that cannot be funneled,
+     *     is not accessible, or if {@code type} contains itself
+     */
+    @SuppressWarnings("unchecked")
+    static <T> RecordFunnel<T> of(Class<T> type) {
+        checkNotNull(type);
+        checkArgument(!type.isPrimitive() && !type.isArray() && !type.isInterface()
+                && !Modifier.isAbstract(type.getModifiers()),
+                "%s is not a record or concrete class", type.getName());
+        return (RecordFunnel<T>) funnels.get(type);
+    }
+
+    @Override
+    public void funnel(T from, PrimitiveSink into) {
+        try {
+            writer.invokeExact((Object) type.cast(from), into);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            // Only record accessors run user code, and they cannot throw checked exceptions.
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /** Returns the {@code (Object, PrimitiveSink) void} writer of the fields of {@code type}. */
+    private static MethodHandle writer(Class<?> type, Deque<Class<?>> enclosing) {
+        checkArgument(!enclosing.contains(type), "%s contains itself through %s", type.getName(), enclosing);
+        enclosing.push(type);
+        try {
+            // Starts from a no-op and runs the writers of the fields before it, last field first.
+            MethodHandle writer = MethodHandles.empty(WRITER_TYPE);
+            List<AccessibleObject> fields = fields(type);
+            for (int i = fields.size() - 1; i >= 0; i--) {
+                writer = MethodHandles.foldArguments(writer, fieldWriter(type, fields.get(i), enclosing));
+            }
+            return writer;
+        } finally {
+            enclosing.pop();
+        }
+    }
+
+    /** The accessors of the components of a record, else the fields of a class, in layout order. */
+    private static List<AccessibleObject> fields(Class<?> type) {
+        List<AccessibleObject> fields = new ArrayList<AccessibleObject>();
+        if (type.isRecord()) {
+            for (RecordComponent component : type.getRecordComponents()) {
+                fields.add(component.getAccessor());
+            }
+            return fields;
+        }
+        Deque<Class<?>> hierarchy = new ArrayDeque<Class<?>>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            hierarchy.push(c);
+        }
+        for (Class<?> c : hierarchy) {
+            List<Field> declared = new ArrayList<Field>();
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                    declared.add(field);
+                }
+            }
+            declared.sort(Comparator.comparing(Field::getName));
+            fields.addAll(declared);
+        }
+        return fields;
+    }
+
+    /** Returns the {@code (Object, PrimitiveSink) void} writer of one field of {@code owner}. */
+    private static MethodHandle fieldWriter(Class<?> owner, AccessibleObject field, Deque<Class<?>> enclosing) {
+        String name = field instanceof Method ? ((Method) field).getName() : ((Field) field).getName();
+        checkArgument(field.trySetAccessible(), "%s.%s is not accessible", owner.getName(), name);
+        MethodHandle getter;
+        try {
+            getter = field instanceof Method
+                    ? LOOKUP.unreflect((Method) field)
+                    : LOOKUP.unreflectGetter((Field) field);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(owner.getName() + "." + name + " is not accessible", e);
+        }
+        Class<?> fieldType = getter.type().returnType();
+        // (PrimitiveSink, F) void
+        MethodHandle put = valueWriter(fieldType, enclosing);
+        checkArgument(put != null, "%s.%s has type %s, which cannot be funneled",
+                owner.getName(), name, fieldType.getName());
+        if (!fieldType.isPrimitive()) {
+            put = MethodHandles.guardWithTest(
+                    MethodHandles.dropArguments(IS_NULL.asType(MethodType.methodType(boolean.class, fieldType)),
+                            0, PrimitiveSink.class),
+                    MethodHandles.dropArguments(presence(false), 1, fieldType),
+                    MethodHandles.foldArguments(put, presence(true)));
+        }
+        // (PrimitiveSink, Object) void, then (Object, PrimitiveSink) void
+        put = MethodHandles.filterArguments(put, 1, getter.asType(MethodType.methodType(fieldType, Object.class)));
+        return MethodHandles.permuteArguments(put, WRITER_TYPE, 1, 0);
+    }
+
+    /**
+     * Returns the {@code (PrimitiveSink, F) void} writer of a non-null value of {@code type}, or null
+     * if it cannot be funneled.
+     */
+    private static MethodHandle valueWriter(Class<?> type, Deque<Class<?>> enclosing) {
+        Class<?> primitive = MethodType.methodType(type).unwrap().returnType();
+        if (primitive.isPrimitive() && primitive != void.class) {
+            MethodHandle put = sinkMethod(primitive);
+            return put.asType(MethodType.methodType(void.class, PrimitiveSink.class, type));
+        }
+        if (CharSequence.class.isAssignableFrom(type)) {
+            return PUT_CHARS.asType(MethodType.methodType(void.class, PrimitiveSink.class, type));
+        }
+        if (type == byte[].class) {
+            return PUT_BYTES;
+        }
+        if (type.isEnum()) {
+            return PUT_ENUM.asType(MethodType.methodType(void.class, PrimitiveSink.class, type));
+        }
+        if (type.isRecord() || (!type.isArray() && !type.isInterface() && !Modifier.isAbstract(type.getModifiers())
+                && !type.getName().startsWith("java."))) {
+            MethodHandle nested = writer(type, enclosing);
+            return MethodHandles.permuteArguments(
+                    nested.asType(MethodType.methodType(void.class, type, PrimitiveSink.class)),
+                    MethodType.methodType(void.class, PrimitiveSink.class, type), 1, 0);
+        }
+        return null;
+    }
+
+    /** Returns the {@code put} method of {@link PrimitiveSink} for {@code primitive}. */
+    private static MethodHandle sinkMethod(Class<?> primitive) {
+        String name = "put" + Character.toUpperCase(primitive.getName().charAt(0)) + primitive.getName().substring(1);
+        try {
+            return LOOKUP.findVirtual(PrimitiveSink.class, name, MethodType.methodType(PrimitiveSink.class, primitive));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** {@code (PrimitiveSink) void}, writing the presence byte. */
+    private static MethodHandle presence(boolean present) {
+        return MethodHandles.insertArguments(sinkMethod(byte.class), 1, (byte) (present ? 1 : 0))
+                .asType(MethodType.methodType(void.class, PrimitiveSink.class));
+    }
+
+    private static void putChars(PrimitiveSink into, CharSequence chars) {
+        into.putInt(chars.length()).putUnencodedChars(chars);
+    }
+
+    private static void putBytes(PrimitiveSink into, byte[] bytes) {
+        into.putInt(bytes.length).putBytes(bytes);
+    }
+
+    private static void putEnum(PrimitiveSink into, Enum<?> value) {
+        putChars(into, value.name());
+    }
+
+    @Override
+    public String toString() {
+        return "Funnels.forRecord(" + type.getName() + ")";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RecordFunnel && type == ((RecordFunnel<?>) o).type;
+    }
+
+    @Override
+    public int hashCode() {
+        return RecordFunnel.class.hashCode() ^ type.hashCode();
+    }
+
+    Object writeReplace() {
+        return new SerializedForm(type);
+    }
+
+    private static class SerializedForm implements Serializable {
+        private final Class<?> type;
+
+        SerializedForm(Class<?> type) {
+            this.type = type;
+        }
+
+        private Object readResolve() {
+            return of(type);
+        }
+
+        private static final long serialVersionUID = 0;
+    }
+}
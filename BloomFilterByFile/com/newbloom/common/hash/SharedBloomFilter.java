@@ -0,0 +1,356 @@
+package com.newbloom.common.hash;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+
+/**
+ * A Bloom filter file that one builder process {@linkplain #publish publishes} new versions of,
+ * and that any number of processes {@linkplain #open open} read-only: every reader maps the same
+ * file, so a box running many workers holds one copy of the filter in its page cache instead of
+ * one per worker.
+ *
+ * <p>A published file starts with a header recording the generation, bit size, number of hash
+ * functions and strategy of the filter, followed by its bits in the layout of a {@link
+ * BloomFilter#createByFile} file. It is written next to its final name, synced and renamed over
+ * it, so a reader never sees a partial file, and readers of the previous version keep their
+ * mapping of it until they move on.
+ *
+ * <p>Readers find out about new versions through a small control file, {@code filename + ".gen"},
+ * holding a sequence number and the current generation under seqlock rules: the publisher makes
+ * the sequence number odd before the rename and even again once the generation is updated. Every
+ * query reads the sequence number, a single volatile load from a shared mapping; when it has moved
+ * on and is even, the querying thread maps the new file and checks its header against the
+ * generation before switching to it, so queries never wait for a publish. A thread that finds
+ * another one switching keeps querying the current version in the meantime.
+ *
+ * <p>Versions a reader has moved on from are unmapped once their buffers are garbage collected.
+ *
+ * @param <T> the type of elements that this filter accepts
+ */
+public final class SharedBloomFilter<T> implements Closeable {
+    private static final Logger logger = Logger.getLogger(SharedBloomFilter.class.getName());
+
+    private static final long FILE_MAGIC = 0x4246534841524531L; // "BFSHARE1"
+    private static final long CONTROL_MAGIC = 0x4246534847454E31L; // "BFSHGEN1"
+
+    /** Bytes before the bits: magic, generation, bit size, hash functions, strategy. */
+    static final int HEADER_BYTES = 64;
+
+    // Words of the control file.
+    private static final int MAGIC = 0;
+    private static final int SEQUENCE = 1;
+    private static final int GENERATION = 2;
+    private static final int CONTROL_WORDS = 4;
+
+    /**
+     * Serializes the publishers of each control file within this JVM: a {@link FileLock} is held by
+     * the whole process, so a second thread asking for it gets an {@link
+     * java.nio.channels.OverlappingFileLockException} instead of waiting.
+     */
+    private static final ConcurrentMap<Path, ReentrantLock> publishLocks = new ConcurrentHashMap<Path, ReentrantLock>();
+
+    /** Longs read from the filter per write while publishing. */
+    private static final int PUBLISH_CHUNK_WORDS = 8192;
+
+    private final Funnel<? super T> funnel;
+    private final String filename;
+    private final Set<MemoryAdvice> advice;
+    private final AtomicLongWords control;
+    private final ReentrantLock switching = new ReentrantLock();
+    private volatile Version<T> current;
+
+    /** Sequence number of a version that could not be mapped, not to retry it on every query. */
+    private long failedSequence = -1; // guarded by switching
+
+    /** A mapped version of the file, with the sequence number it was published under. */
+    private static final class Version<T> {
+        final long sequence;
+        final long generation;
+        final BloomFilter<T> filter;
+
+        Version(long sequence, long generation, BloomFilter<T> filter) {
+            this.sequence = sequence;
+            this.generation = generation;
+            this.filter = filter;
+        }
+    }
+
+    private SharedBloomFilter(
+            Funnel<? super T> funnel, String filename, Set<MemoryAdvice> advice, AtomicLongWords control) {
+        this.funnel = funnel;
+        this.filename = filename;
+        this.advice = advice;
+        this.control = control;
+    }
+
+    /**
+     * Opens the latest version of a filter published to {@code filename}.
+     *
+     * @throws IllegalArgumentException if no filter was published to {@code filename}, or it cannot
+     *     be mapped
+     */
+    public static <T> SharedBloomFilter<T> open(Funnel<? super T> funnel, String filename) {
+        return open(funnel, filename, EnumSet.noneOf(MemoryAdvice.class));
+    }
+
+    /**
+     * Opens the latest version of a filter published to {@code filename}, applying {@code advice} to
+     * the mapping of each version it switches to.
+     *
+     * @throws IllegalArgumentException if no filter was published to {@code filename}, or it cannot
+     *     be mapped
+     */
+    public static <T> SharedBloomFilter<T> open(
+            Funnel<? super T> funnel, String filename, Set<MemoryAdvice> advice) {
+        checkNotNull(funnel);
+        checkNotNull(advice);
+        AtomicLongWords control = AtomicLongWords.mapFileReadOnly(filename + ".gen", CONTROL_WORDS);
+        SharedBloomFilter<T> shared = new SharedBloomFilter<T>(funnel, filename, advice, control);
+        try {
+            checkArgument(control.get(MAGIC) == CONTROL_MAGIC, "%s.gen is not a control file", filename);
+            Version<T> version = null;
+            for (int attempt = 0; version == null; attempt++) {
+                checkArgument(attempt < 1000, "%s is being published too often to open", filename);
+                version = shared.tryMap();
+                if (version == null) {
+                    Thread.yield();
+                }
+            }
+            shared.current = version;
+            return shared;
+        } catch (IOException e) {
+            control.close();
+            throw new IllegalArgumentException("Could not map " + filename, e);
+        } catch (RuntimeException e) {
+            control.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns {@code true} if {@code object} <i>might</i> have been put in the current version of the
+     * filter, see {@link BloomFilter#mightContain}.
+     */
+    public boolean mightContain(T object) {
+        return filter().mightContain(object);
+    }
+
+    /**
+     * Returns the current version of the filter, switching to a newly published one first if there
+     * is one. The returned filter is read-only and stays valid, so a batch of queries can be run
+     * against one version.
+     */
+    public BloomFilter<T> filter() {
+        Version<T> version = current;
+        if (control.get(SEQUENCE) != version.sequence) {
+            version = refresh(version);
+        }
+        return version.filter;
+    }
+
+    /**
+     * Returns the generation of the version {@link #filter()} last returned: 1 for the first
+     * published version, and one more for every later one.
+     */
+    public long generation() {
+        return current.generation;
+    }
+
+    private Version<T> refresh(Version<T> version) {
+        if (!switching.tryLock()) {
+            return version;
+        }
+        try {
+            Version<T> latest = current;
+            long sequence = control.get(SEQUENCE);
+            if (sequence == latest.sequence || sequence == failedSequence) {
+                return latest;
+            }
+            Version<T> next;
+            try {
+                next = tryMap();
+            } catch (IOException | RuntimeException e) {
+                failedSequence = sequence;
+                logger.log(Level.WARNING, "Could not switch to the new version of " + filename, e);
+                return latest;
+            }
+            if (next != null) {
+                current = next;
+                return next;
+            }
+            return latest;
+        } finally {
+            switching.unlock();
+        }
+    }
+
+    /**
+     * Maps the file if the control file says that a version is complete and the file holds that
+     * version, or returns null to try again later.
+     */
+    private Version<T> tryMap() throws IOException {
+        long sequence = control.get(SEQUENCE);
+        if ((sequence & 1) != 0) {
+            return null;
+        }
+        long generation = control.get(GENERATION);
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {}
+            checkArgument(
+                    !header.hasRemaining() && header.getLong(0) == FILE_MAGIC,
+                    "%s is not a published BloomFilter", filename);
+            if (header.getLong(8) != generation || control.get(SEQUENCE) != sequence) {
+                // Published again meanwhile.
+                return null;
+            }
+            long bitSize = header.getLong(16);
+            int numHashFunctions = header.getInt(24);
+            BloomFilter.Strategy strategy = HashingStrategy.forOrdinal(header.getInt(28));
+            BloomFilterStrategies.MappedBitArray bits =
+                    new BloomFilterStrategies.MappedBitArray(channel, filename, HEADER_BYTES, bitSize, advice);
+            return new Version<T>(
+                    sequence, generation, BloomFilter.<T>wrap(bits, numHashFunctions, funnel, strategy));
+        }
+    }
+
+    /**
+     * Unmaps the control file. Filters returned by {@link #filter()} stay usable.
+     */
+    @Override
+    public void close() {
+        control.close();
+    }
+
+    /**
+     * Publishes {@code filter} as the new version of {@code filename}, to be picked up by every
+     * process that {@linkplain #open opened} it. A filter that is being put into concurrently is
+     * published as a rolling snapshot, use {@link BloomFilter#snapshot()} to publish a consistent one.
+     *
+     * <p>Publishers of the same file are serialized by a lock on its control file, and by a lock per
+     * control file within each process.
+     *
+     * @return the generation of the new version
+     * @throws IllegalArgumentException if {@code filter} uses a strategy that is not registered under
+     *     its ordinal, see {@link HashingStrategy}
+     */
+    public static long publish(BloomFilter<?> filter, String filename) throws IOException {
+        checkNotNull(filter);
+        checkNotNull(filename);
+        BloomFilter.Strategy strategy = filter.strategy();
+        checkArgument(
+                HashingStrategy.forOrdinal(strategy.ordinal()).equals(strategy),
+                "Cannot publish a filter with strategy %s", strategy);
+        Path target = Paths.get(filename);
+        Path temporary = Paths.get(filename + ".tmp");
+        String controlName = filename + ".gen";
+        try (FileChannel lockChannel =
+                     FileChannel.open(
+                             Paths.get(controlName),
+                             StandardOpenOption.CREATE,
+                             StandardOpenOption.READ,
+                             StandardOpenOption.WRITE)) {
+            ReentrantLock processLock = publishLocks.computeIfAbsent(
+                    Paths.get(controlName).toRealPath(), path -> new ReentrantLock());
+            processLock.lock();
+            try {
+                FileLock lock = lockChannel.lock();
+                try (AtomicLongWords control = AtomicLongWords.mapFile(controlName, CONTROL_WORDS)) {
+                    if (control.get(MAGIC) == 0) {
+                        control.set(MAGIC, CONTROL_MAGIC);
+                    }
+                    checkArgument(control.get(MAGIC) == CONTROL_MAGIC, "%s is not a control file", controlName);
+                    long generation = control.get(GENERATION) + 1;
+                    write(filter, generation, temporary);
+
+                    long sequence = control.get(SEQUENCE);
+                    if ((sequence & 1) != 0) {
+                        // Left odd by a publisher that died mid-publish; none can be in flight under the lock.
+                        sequence++;
+                    }
+                    control.set(SEQUENCE, sequence + 1);
+                    try {
+                        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                        control.set(GENERATION, generation);
+                    } finally {
+                        // Even again, after a failed rename too: readers then re-check the same version.
+                        control.set(SEQUENCE, sequence + 2);
+                        control.flush();
+                    }
+                    return generation;
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                processLock.unlock();
+            }
+        }
+    }
+
+    /** Writes the header and bits of {@code filter} to {@code path} and syncs it. */
+    private static void write(BloomFilter<?> filter, long generation, Path path) throws IOException {
+        BloomFilterStrategies.IBitArray bits = filter.bits();
+        long bitSize = bits.bitSize();
+        long words = BloomFilterStrategies.LongMathDivide(bitSize, Long.SIZE, RoundingMode.CEILING);
+        try (FileChannel channel =
+                     FileChannel.open(
+                             path,
+                             StandardOpenOption.CREATE,
+                             StandardOpenOption.WRITE,
+                             StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putLong(FILE_MAGIC)
+                    .putLong(generation)
+                    .putLong(bitSize)
+                    .putInt(filter.numHashFunctions())
+                    .putInt(filter.strategy().ordinal());
+            header.clear();
+            writeFully(channel, header);
+
+            long[] chunk = new long[PUBLISH_CHUNK_WORDS];
+            ByteBuffer out = ByteBuffer.allocate(PUBLISH_CHUNK_WORDS * Long.BYTES);
+            for (long first = 0; first < words; first += PUBLISH_CHUNK_WORDS) {
+                int length = (int) Math.min(PUBLISH_CHUNK_WORDS, words - first);
+                bits.readWords(first, chunk, length);
+                out.clear();
+                for (int i = 0; i < length; i++) {
+                    // Two big-endian file words per long, low half first, like FileBitArray.
+                    out.putInt((int) chunk[i]).putInt((int) (chunk[i] >>> 32));
+                }
+                out.flip();
+                writeFully(channel, out);
+            }
+            channel.force(true);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SharedBloomFilter(" + filename + ", generation " + generation() + ")";
+    }
+}
@@ -22,6 +22,8 @@ package com.newbloom.common.hash;
 import com.newbloom.common.base.Preconditions;
 
 import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.hash.LittleEndianByteArray.load64;
+import static com.newbloom.common.hash.LittleEndianByteArray.load64Safely;
 
 import java.io.Serializable;
 import java.nio.ByteBuffer;
@@ -72,7 +74,19 @@ final class SipHashFunction extends AbstractHashFunction implements Serializable
     return new SipHasher(c, d, k0, k1);
   }
 
-  // TODO(kak): Implement and benchmark the hashFoo() shortcuts.
+  /** Hashes {@code input} a word at a time, without copying it through the hasher's buffer. */
+  @Override
+  public HashCode hashBytes(byte[] input, int off, int len) {
+    Preconditions.checkPositionIndexes(off, off + len, input.length);
+    SipHasher hasher = new SipHasher(c, d, k0, k1);
+    int i;
+    for (i = 0; i + SipHasher.CHUNK_SIZE <= len; i += SipHasher.CHUNK_SIZE) {
+      hasher.processM(load64(input, off + i));
+    }
+    hasher.b = len;
+    hasher.finalM = load64Safely(input, off + i, len - i);
+    return hasher.makeHash();
+  }
 
   @Override
   public String toString() {
@@ -0,0 +1,284 @@
+package com.newbloom.common.hash;
+
+import com.newbloom.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static com.newbloom.common.hash.LittleEndianByteArray.load32;
+import static com.newbloom.common.hash.LittleEndianByteArray.load64;
+
+/**
+ * Implementation of wyhash (version "final3") by Wang Yi, a fast 64-bit hash for short inputs: up to
+ * 16 bytes it costs two 64x64->128 bit multiplications, with no loop at all.
+ *
+ * <p>{@link #hashBytes(byte[], int, int)}, {@link #hashBytes(ByteBuffer)} and {@link
+ * #hashUnencodedChars(CharSequence)} hash their input in one shot, without allocating; {@link
+ * #newHasher()} buffers the input like the other non-streaming functions.
+ *
+ * <p>The three one-shot paths share one algorithm over different inputs and are kept in step by
+ * hand; the chars of a {@code CharSequence} are read as their little-endian UTF-16 bytes, which only
+ * ever needs whole chars since the input length is even.
+ */
+final class WyHash64 extends AbstractNonStreamingHashFunction {
+  static final HashFunction WYHASH_64 = new WyHash64(0);
+
+  // The default secret of wyhash final3.
+  private static final long P0 = 0xa0761d6478bd642fL;
+  private static final long P1 = 0xe7037ed1a0b428dbL;
+  private static final long P2 = 0x8ebc6af09c88c6e3L;
+  private static final long P3 = 0x589965cc75374cc3L;
+
+  private final long seed;
+
+  WyHash64(long seed) {
+    this.seed = seed;
+  }
+
+  @Override
+  public HashCode hashBytes(byte[] input, int off, int len) {
+    Preconditions.checkPositionIndexes(off, off + len, input.length);
+    return HashCode.fromLong(hash(input, off, len, seed));
+  }
+
+  /** Hashes the remaining bytes of {@code input}, leaving its position at its limit. */
+  @Override
+  public HashCode hashBytes(ByteBuffer input) {
+    long hash;
+    if (input.hasArray()) {
+      hash = hash(input.array(), input.arrayOffset() + input.position(), input.remaining(), seed);
+    } else {
+      hash = hash(input, input.position(), input.remaining(), seed);
+    }
+    input.position(input.limit());
+    return HashCode.fromLong(hash);
+  }
+
+  @Override
+  public HashCode hashUnencodedChars(CharSequence input) {
+    return HashCode.fromLong(hashChars(input, seed));
+  }
+
+  @Override
+  public HashCode hashInt(int input) {
+    return HashCode.fromLong(hashFixedWidth(input & 0xFFFFFFFFL, Integer.BYTES, seed));
+  }
+
+  @Override
+  public HashCode hashLong(long input) {
+    return HashCode.fromLong(hashFixedWidth(input, Long.BYTES, seed));
+  }
+
+  @Override
+  public int bits() {
+    return 64;
+  }
+
+  @Override
+  public String toString() {
+    return "Hashing.wyhash64(" + seed + ")";
+  }
+
+  @Override
+  public boolean equals(Object object) {
+    return object instanceof WyHash64 && seed == ((WyHash64) object).seed;
+  }
+
+  @Override
+  public int hashCode() {
+    return getClass().hashCode() ^ Long.hashCode(seed);
+  }
+
+  // End of public functions.
+
+  /** High 64 bits of the unsigned 128-bit product {@code a * b}. */
+  private static long multiplyHighUnsigned(long a, long b) {
+    return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+  }
+
+  /** _wymix: xor of the two halves of the 128-bit product. */
+  static long mix(long a, long b) {
+    return (a * b) ^ multiplyHighUnsigned(a, b);
+  }
+
+  /** The last step, common to all inputs. */
+  private static long finish(long a, long b, long seed, int len) {
+    return mix(P1 ^ len, mix(a ^ P1, b ^ seed));
+  }
+
+  private static long r4(byte[] input, int offset) {
+    return load32(input, offset) & 0xFFFFFFFFL;
+  }
+
+  static long hash(byte[] input, int off, int len, long seed) {
+    seed ^= P0;
+    long a;
+    long b;
+    if (len <= 16) {
+      if (len >= 4) {
+        int mid = (len >>> 3) << 2;
+        a = r4(input, off) << 32 | r4(input, off + mid);
+        b = r4(input, off + len - 4) << 32 | r4(input, off + len - 4 - mid);
+      } else if (len > 0) {
+        a = (input[off] & 0xFFL) << 16
+            | (input[off + (len >>> 1)] & 0xFFL) << 8
+            | (input[off + len - 1] & 0xFFL);
+        b = 0;
+      } else {
+        a = b = 0;
+      }
+    } else {
+      int p = off;
+      int i = len;
+      if (i > 48) {
+        long see1 = seed;
+        long see2 = seed;
+        do {
+          seed = mix(load64(input, p) ^ P1, load64(input, p + 8) ^ seed);
+          see1 = mix(load64(input, p + 16) ^ P2, load64(input, p + 24) ^ see1);
+          see2 = mix(load64(input, p + 32) ^ P3, load64(input, p + 40) ^ see2);
+          p += 48;
+          i -= 48;
+        } while (i > 48);
+        seed ^= see1 ^ see2;
+      }
+      while (i > 16) {
+        seed = mix(load64(input, p) ^ P1, load64(input, p + 8) ^ seed);
+        i -= 16;
+        p += 16;
+      }
+      a = load64(input, p + i - 16);
+      b = load64(input, p + i - 8);
+    }
+    return finish(a, b, seed, len);
+  }
+
+  private static long r4(ByteBuffer input, int index, boolean reverse) {
+    int value = input.getInt(index);
+    return (reverse ? Integer.reverseBytes(value) : value) & 0xFFFFFFFFL;
+  }
+
+  private static long r8(ByteBuffer input, int index, boolean reverse) {
+    long value = input.getLong(index);
+    return reverse ? Long.reverseBytes(value) : value;
+  }
+
+  /**
+   * Same as {@link #hash(byte[], int, int, long)} over absolute reads of {@code input}, whatever its
+   * byte order.
+   */
+  static long hash(ByteBuffer input, int off, int len, long seed) {
+    boolean reverse = input.order() == ByteOrder.BIG_ENDIAN;
+    seed ^= P0;
+    long a;
+    long b;
+    if (len <= 16) {
+      if (len >= 4) {
+        int mid = (len >>> 3) << 2;
+        a = r4(input, off, reverse) << 32 | r4(input, off + mid, reverse);
+        b = r4(input, off + len - 4, reverse) << 32 | r4(input, off + len - 4 - mid, reverse);
+      } else if (len > 0) {
+        a = (input.get(off) & 0xFFL) << 16
+            | (input.get(off + (len >>> 1)) & 0xFFL) << 8
+            | (input.get(off + len - 1) & 0xFFL);
+        b = 0;
+      } else {
+        a = b = 0;
+      }
+    } else {
+      int p = off;
+      int i = len;
+      if (i > 48) {
+        long see1 = seed;
+        long see2 = seed;
+        do {
+          seed = mix(r8(input, p, reverse) ^ P1, r8(input, p + 8, reverse) ^ seed);
+          see1 = mix(r8(input, p + 16, reverse) ^ P2, r8(input, p + 24, reverse) ^ see1);
+          see2 = mix(r8(input, p + 32, reverse) ^ P3, r8(input, p + 40, reverse) ^ see2);
+          p += 48;
+          i -= 48;
+        } while (i > 48);
+        seed ^= see1 ^ see2;
+      }
+      while (i > 16) {
+        seed = mix(r8(input, p, reverse) ^ P1, r8(input, p + 8, reverse) ^ seed);
+        i -= 16;
+        p += 16;
+      }
+      a = r8(input, p + i - 16, reverse);
+      b = r8(input, p + i - 8, reverse);
+    }
+    return finish(a, b, seed, len);
+  }
+
+  /** Little-endian 4 bytes at the even byte offset {@code offset} of the UTF-16LE chars. */
+  private static long r4(CharSequence input, int offset) {
+    int c = offset >>> 1;
+    return input.charAt(c) | (long) input.charAt(c + 1) << 16;
+  }
+
+  /** Little-endian 8 bytes at the even byte offset {@code offset} of the UTF-16LE chars. */
+  private static long r8(CharSequence input, int offset) {
+    int c = offset >>> 1;
+    return input.charAt(c)
+        | (long) input.charAt(c + 1) << 16
+        | (long) input.charAt(c + 2) << 32
+        | (long) input.charAt(c + 3) << 48;
+  }
+
+  /** Same as hashing the UTF-16LE bytes of {@code input}, as {@link Funnels#unencodedCharsFunnel}. */
+  static long hashChars(CharSequence input, long seed) {
+    int len = input.length() * 2;
+    seed ^= P0;
+    long a;
+    long b;
+    if (len <= 16) {
+      if (len >= 4) {
+        int mid = (len >>> 3) << 2;
+        a = r4(input, 0) << 32 | r4(input, mid);
+        b = r4(input, len - 4) << 32 | r4(input, len - 4 - mid);
+      } else if (len > 0) {
+        // A single char: bytes 0, 1 and 1.
+        char c = input.charAt(0);
+        a = (c & 0xFFL) << 16 | (c >>> 8) << 8 | (c >>> 8);
+        b = 0;
+      } else {
+        a = b = 0;
+      }
+    } else {
+      int p = 0;
+      int i = len;
+      if (i > 48) {
+        long see1 = seed;
+        long see2 = seed;
+        do {
+          seed = mix(r8(input, p) ^ P1, r8(input, p + 8) ^ seed);
+          see1 = mix(r8(input, p + 16) ^ P2, r8(input, p + 24) ^ see1);
+          see2 = mix(r8(input, p + 32) ^ P3, r8(input, p + 40) ^ see2);
+          p += 48;
+          i -= 48;
+        } while (i > 48);
+        seed ^= see1 ^ see2;
+      }
+      while (i > 16) {
+        seed = mix(r8(input, p) ^ P1, r8(input, p + 8) ^ seed);
+        i -= 16;
+        p += 16;
+      }
+      a = r8(input, p + i - 16);
+      b = r8(input, p + i - 8);
+    }
+    return finish(a, b, seed, len);
+  }
+
+  /**
+   * Same as hashing the {@code length} (4 or 8) little-endian bytes of {@code value}, as {@link
+   * Funnels#integerFunnel} and {@link Funnels#longFunnel} put them.
+   */
+  static long hashFixedWidth(long value, int length, long seed) {
+    seed ^= P0;
+    long lo = value & 0xFFFFFFFFL;
+    long hi = length == Long.BYTES ? value >>> 32 : lo;
+    return finish(lo << 32 | hi, hi << 32 | lo, seed, length);
+  }
+}
@@ -0,0 +1,333 @@
+package com.newbloom.server;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+
+/**
+ * Client of a {@link BloomFilterServer}, safe for use by any number of threads.
+ *
+ * <p>Calls are not sent one by one: they are queued, and a writer thread drains the queue into one
+ * batch frame per filter and operation, writing all of those frames at once and without waiting for
+ * the answers to earlier frames. The more threads call concurrently, or the more calls a thread has
+ * outstanding through the {@code Async} methods, the larger the batches; a lone synchronous caller
+ * pays one round trip per call. A reader thread completes the calls as the answers arrive.
+ */
+public final class BloomFilterClient implements Closeable {
+    private static final int DEFAULT_MAX_BATCH = 1024;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final DataInputStream in;
+    private final int maxBatch;
+    private final BlockingQueue<Call> queue = new LinkedBlockingQueue<>();
+    private final Map<Integer, List<Call>> pending = new ConcurrentHashMap<>();
+    private final Thread writer;
+    private final Thread reader;
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong callsSent = new AtomicLong();
+    private volatile IOException failure;
+    private int nextRequestId; // accessed by the writer thread only
+
+    public BloomFilterClient(InetSocketAddress address) throws IOException {
+        this(address, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * Connects to the server at {@code address}, sending at most {@code maxBatch} calls per frame.
+     */
+    public BloomFilterClient(InetSocketAddress address, int maxBatch) throws IOException {
+        checkNotNull(address);
+        checkArgument(maxBatch > 0, "maxBatch (%s) must be > 0", maxBatch);
+        this.maxBatch = maxBatch;
+        this.socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(address);
+        this.out = socket.getOutputStream();
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        String name = "bloomfilter-client-" + socket.getLocalPort();
+        this.writer = new Thread(this::writeLoop, name + "-writer");
+        this.reader = new Thread(this::readLoop, name + "-reader");
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+    }
+
+    /** Puts {@code element} into the filter named {@code filter}, see {@link #putAsync}. */
+    public boolean put(String filter, byte[] element) throws IOException {
+        return await(putAsync(filter, element));
+    }
+
+    /** Queries the filter named {@code filter} for {@code element}, see {@link #mightContainAsync}. */
+    public boolean mightContain(String filter, byte[] element) throws IOException {
+        return await(mightContainAsync(filter, element));
+    }
+
+    /**
+     * Queues a {@link com.newbloom.common.hash.BloomFilter#put put} of {@code element} into the filter
+     * named {@code filter}. The future completes with the result of {@code put}, or exceptionally with
+     * an {@link IllegalArgumentException} if the server rejected the call (e.g. there is no such
+     * filter), or with an {@link IOException} if the connection failed.
+     */
+    public CompletableFuture<Boolean> putAsync(String filter, byte[] element) {
+        return enqueue(Protocol.PUT, filter, element);
+    }
+
+    /**
+     * Queues a {@link com.newbloom.common.hash.BloomFilter#mightContain mightContain} query, see
+     * {@link #putAsync}.
+     */
+    public CompletableFuture<Boolean> mightContainAsync(String filter, byte[] element) {
+        return enqueue(Protocol.QUERY, filter, element);
+    }
+
+    /** Returns the number of request frames sent so far. */
+    public long framesSent() {
+        return framesSent.get();
+    }
+
+    /** Returns the number of calls sent so far; divided by {@link #framesSent()}, the mean batch size. */
+    public long callsSent() {
+        return callsSent.get();
+    }
+
+    /**
+     * Closes the connection; calls not answered yet fail with an {@link IOException}.
+     */
+    public void close() throws IOException {
+        fail(new IOException("BloomFilterClient closed"));
+    }
+
+    private CompletableFuture<Boolean> enqueue(byte opcode, String filter, byte[] element) {
+        checkNotNull(filter);
+        checkNotNull(element);
+        checkArgument(
+                filter.getBytes(StandardCharsets.UTF_8).length <= 0xFFFF, "Filter name too long: %s", filter);
+        Call call = new Call(opcode, filter, element);
+        IOException failure = this.failure;
+        if (failure != null) {
+            call.result.completeExceptionally(failure);
+            return call.result;
+        }
+        queue.add(call);
+        if (this.failure != null) {
+            // Lost the race with fail(), which may have drained the queue before our add.
+            drainFailed();
+        }
+        return call.result;
+    }
+
+    private static boolean await(CompletableFuture<Boolean> result) throws IOException {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    private void writeLoop() {
+        List<Call> calls = new ArrayList<>(maxBatch);
+        try {
+            while (failure == null) {
+                calls.add(queue.take());
+                queue.drainTo(calls, maxBatch - 1);
+                send(calls);
+                calls.clear();
+            }
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException("BloomFilterClient writer interrupted"));
+        } catch (IOException | RuntimeException e) {
+            for (Call call : calls) {
+                call.result.completeExceptionally(e);
+            }
+            fail(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    /**
+     * Writes {@code calls} as frames of one filter and opcode each, in as few writes as the frame
+     * limit allows. A batch goes over as many frames as that limit requires; a call whose element
+     * alone exceeds it fails, without affecting the others.
+     */
+    private void send(List<Call> calls) throws IOException {
+        Map<String, List<Call>> batches = new LinkedHashMap<>();
+        for (Call call : calls) {
+            batches.computeIfAbsent(call.opcode + call.filter, k -> new ArrayList<>()).add(call);
+        }
+        List<List<Call>> frameCalls = new ArrayList<>();
+        int sent = 0;
+        for (List<Call> batch : batches.values()) {
+            byte[] name = batch.get(0).filter.getBytes(StandardCharsets.UTF_8);
+            List<Call> frame = new ArrayList<>();
+            long elementBytes = 0;
+            for (Call call : batch) {
+                if (!Protocol.fits(Protocol.requestBytes(name, 1, call.element.length))) {
+                    call.result.completeExceptionally(new IllegalArgumentException(
+                            "Element of " + call.element.length + " bytes exceeds the frame limit"));
+                    continue;
+                }
+                if (!Protocol.fits(Protocol.requestBytes(name, frame.size() + 1, elementBytes + call.element.length))) {
+                    frameCalls.add(frame);
+                    frame = new ArrayList<>();
+                    elementBytes = 0;
+                }
+                frame.add(call);
+                elementBytes += call.element.length;
+                sent++;
+            }
+            if (!frame.isEmpty()) {
+                frameCalls.add(frame);
+            }
+        }
+        // Frames go out in writes of up to one frame limit each, so that large batches drained
+        // together do not need one huge buffer.
+        int first = 0;
+        while (first < frameCalls.size()) {
+            int end = first;
+            long bytes = 0;
+            do {
+                bytes += frameSize(frameCalls.get(end++));
+            } while (end < frameCalls.size() && bytes + frameSize(frameCalls.get(end)) - 4 <= Protocol.MAX_FRAME_BYTES);
+            ByteBuffer frames = ByteBuffer.allocate((int) bytes);
+            for (List<Call> batch : frameCalls.subList(first, end)) {
+                byte[] name = batch.get(0).filter.getBytes(StandardCharsets.UTF_8);
+                int requestId = nextRequestId++;
+                frames.putInt(frameSize(batch) - 4);
+                frames.putInt(requestId);
+                frames.put(batch.get(0).opcode);
+                frames.putShort((short) name.length);
+                frames.put(name);
+                frames.putInt(batch.size());
+                for (Call call : batch) {
+                    frames.putInt(call.element.length);
+                    frames.put(call.element);
+                }
+                // Registered before writing: the answer may arrive before write() returns.
+                pending.put(requestId, batch);
+            }
+            out.write(frames.array());
+            first = end;
+        }
+        out.flush();
+        framesSent.addAndGet(frameCalls.size());
+        callsSent.addAndGet(sent);
+    }
+
+    private static int frameSize(List<Call> batch) {
+        long elementBytes = 0;
+        for (Call call : batch) {
+            elementBytes += call.element.length;
+        }
+        return Protocol.requestSize(batch.get(0).filter.getBytes(StandardCharsets.UTF_8), batch.size(), elementBytes);
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 5 || length > Protocol.MAX_FRAME_BYTES) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                int requestId = in.readInt();
+                byte status = in.readByte();
+                List<Call> batch = pending.remove(requestId);
+                if (batch == null) {
+                    throw new IOException("Response to unknown request " + requestId);
+                }
+                if (status == Protocol.OK) {
+                    int count = in.readInt();
+                    if (count != batch.size()) {
+                        throw new IOException("Expected " + batch.size() + " results, got " + count);
+                    }
+                    byte[] packed = new byte[(count + 7) >>> 3];
+                    in.readFully(packed);
+                    for (int i = 0; i < count; i++) {
+                        batch.get(i).result.complete((packed[i >>> 3] & (1 << (i & 7))) != 0);
+                    }
+                } else {
+                    byte[] message = new byte[in.readShort() & 0xFFFF];
+                    in.readFully(message);
+                    IllegalArgumentException e =
+                            new IllegalArgumentException(new String(message, StandardCharsets.UTF_8));
+                    for (Call call : batch) {
+                        call.result.completeExceptionally(e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Closes the connection and fails every call not answered yet with {@code e}. */
+    private void fail(IOException e) {
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            failure = e;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // already failing
+        }
+        writer.interrupt();
+        for (Integer requestId : pending.keySet()) {
+            List<Call> batch = pending.remove(requestId);
+            if (batch != null) {
+                for (Call call : batch) {
+                    call.result.completeExceptionally(e);
+                }
+            }
+        }
+        drainFailed();
+    }
+
+    private void drainFailed() {
+        for (Call call; (call = queue.poll()) != null; ) {
+            call.result.completeExceptionally(failure);
+        }
+    }
+
+    private static final class Call {
+        final byte opcode;
+        final String filter;
+        final byte[] element;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Call(byte opcode, String filter, byte[] element) {
+            this.opcode = opcode;
+            this.filter = filter;
+            this.element = element;
+        }
+    }
+}
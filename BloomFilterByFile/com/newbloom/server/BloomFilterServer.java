@@ -0,0 +1,320 @@
+package com.newbloom.server;
+
+import com.newbloom.common.hash.BloomFilter;
+import com.newbloom.common.hash.BloomFilterStrategies;
+import com.newbloom.common.hash.Funnels;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+import static com.newbloom.common.base.Preconditions.checkState;
+
+/**
+ * Serves named {@link BloomFilter}s of {@code byte[]} over TCP, so that several processes can share
+ * one large filter instead of each loading its own copy. See {@link Protocol} for the wire format
+ * and {@link BloomFilterClient} for the client.
+ *
+ * <p>A single selector thread accepts connections, decodes every complete request frame read off a
+ * connection, runs it against its filter and writes all of the answers back with one gathering
+ * write. Since all filter operations happen on that thread, filters created by {@link
+ * BloomFilter#createByFile}, which are not thread-safe, can be served as they are; heap filters may
+ * additionally be used by the hosting process directly.
+ */
+public final class BloomFilterServer implements Closeable {
+    private static final Logger logger = Logger.getLogger(BloomFilterServer.class.getName());
+
+    private final Map<String, BloomFilter<byte[]>> filters = new ConcurrentHashMap<>();
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Binds a server to {@code address}; it serves no request until {@link #start() started}.
+     */
+    public BloomFilterServer(InetSocketAddress address) throws IOException {
+        checkNotNull(address);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.thread = new Thread(this::run, "bloomfilter-server-" + localAddress().getPort());
+    }
+
+    /**
+     * Serves {@code filter} under {@code name}, replacing any filter served under that name.
+     */
+    public void addFilter(String name, BloomFilter<byte[]> filter) {
+        checkNotNull(name);
+        checkNotNull(filter);
+        filters.put(name, filter);
+    }
+
+    /**
+     * Stops serving the filter named {@code name}, and returns it, or {@code null} if there was none.
+     */
+    public BloomFilter<byte[]> removeFilter(String name) {
+        return filters.remove(name);
+    }
+
+    public InetSocketAddress localAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    public void start() {
+        checkState(!closed, "BloomFilterServer is closed");
+        thread.start();
+    }
+
+    /**
+     * Closes the listening socket and all connections.
+     */
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        if (thread.isAlive() && Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            closeAll();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        logger.log(Level.FINE, "Closing connection " + connection.channel, e);
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed) {
+                logger.log(Level.SEVERE, "BloomFilterServer stopped", e);
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+            serverChannel.close();
+        } catch (IOException | ClosedSelectorException e) {
+            logger.log(Level.FINE, "Error closing BloomFilterServer", e);
+        }
+    }
+
+    /**
+     * Runs one request frame, positioned after its length prefix, and returns the response frame.
+     */
+    private ByteBuffer handle(ByteBuffer frame) {
+        int requestId = frame.getInt();
+        try {
+            byte opcode = frame.get();
+            byte[] name = new byte[frame.getShort() & 0xFFFF];
+            frame.get(name);
+            int count = frame.getInt();
+            if (count < 0 || count > frame.remaining() / 4) {
+                return Protocol.error(requestId, "Bad element count " + count);
+            }
+            if (opcode != Protocol.PUT && opcode != Protocol.QUERY) {
+                return Protocol.error(requestId, "Unknown opcode " + opcode);
+            }
+            String filterName = new String(name, StandardCharsets.UTF_8);
+            BloomFilter<byte[]> filter = filters.get(filterName);
+            if (filter == null) {
+                return Protocol.error(requestId, "Unknown filter " + filterName);
+            }
+            boolean[] results = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                int length = frame.getInt();
+                if (length < 0 || length > frame.remaining()) {
+                    return Protocol.error(requestId, "Malformed request");
+                }
+                byte[] element = new byte[length];
+                frame.get(element);
+                results[i] = opcode == Protocol.PUT ? filter.put(element) : filter.mightContain(element);
+            }
+            ByteBuffer response = ByteBuffer.allocate(Protocol.resultsSize(count));
+            Protocol.writeResults(response, requestId, results);
+            response.flip();
+            return response;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            return Protocol.error(requestId, "Malformed request");
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Request " + requestId + " failed", e);
+            return Protocol.error(requestId, String.valueOf(e));
+        }
+    }
+
+    /** Buffers of one client connection. */
+    private final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 4 || length > Protocol.MAX_FRAME_BYTES) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    if (in.capacity() < 4 + length) {
+                        ByteBuffer larger = ByteBuffer.allocate(Math.max(in.capacity() * 2, 4 + length));
+                        larger.put(in);
+                        in = larger;
+                        in.flip();
+                    }
+                    break;
+                }
+                ByteBuffer frame = in.slice(in.position() + 4, length);
+                in.position(in.position() + 4 + length);
+                out.add(handle(frame));
+            }
+            in.compact();
+            flush();
+        }
+
+        /**
+         * Writes as much of the pending responses as the socket takes, and stops reading requests
+         * while the client does not keep up with the responses.
+         */
+        void flush() throws IOException {
+            while (!out.isEmpty()) {
+                channel.write(out.toArray(new ByteBuffer[0]));
+                while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                    out.poll();
+                }
+                if (!out.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Error closing " + channel, e);
+            }
+        }
+    }
+
+    /**
+     * Runs a server with heap or file filters:
+     *
+     * <pre>
+     *   BloomFilterServer port name=expectedInsertions[:fpp][@file] ...
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BloomFilterServer port name=expectedInsertions[:fpp][@file] ...");
+            System.exit(2);
+        }
+        BloomFilterServer server = new BloomFilterServer(new InetSocketAddress(Integer.parseInt(args[0])));
+        for (int i = 1; i < args.length; i++) {
+            String spec = args[i];
+            int eq = spec.indexOf('=');
+            String name = spec.substring(0, eq);
+            String rest = spec.substring(eq + 1);
+            String file = null;
+            int at = rest.indexOf('@');
+            if (at >= 0) {
+                file = rest.substring(at + 1);
+                rest = rest.substring(0, at);
+            }
+            double fpp = 0.03;
+            int colon = rest.indexOf(':');
+            if (colon >= 0) {
+                fpp = Double.parseDouble(rest.substring(colon + 1));
+                rest = rest.substring(0, colon);
+            }
+            long expectedInsertions = Long.parseLong(rest);
+            BloomFilter<byte[]> filter =
+                    file == null
+                            ? BloomFilter.create(Funnels.byteArrayFunnel(), expectedInsertions, fpp)
+                            : BloomFilter.createByFile(
+                                    Funnels.byteArrayFunnel(),
+                                    file,
+                                    expectedInsertions,
+                                    fpp,
+                                    BloomFilterStrategies.MURMUR128_MITZ_64);
+            server.addFilter(name, filter);
+        }
+        server.start();
+        System.out.println("BloomFilterServer listening on " + server.localAddress());
+    }
+}
@@ -0,0 +1,125 @@
+package com.newbloom.server;
+
+import com.newbloom.common.hash.BloomFilter;
+import com.newbloom.common.hash.Funnels;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of a {@link BloomFilterServer} through one shared {@link BloomFilterClient}:
+ *
+ * <pre>
+ *   LoadTest [host:port] [threads] [seconds] [window] [expectedInsertions]
+ * </pre>
+ *
+ * <p>Without {@code host:port} (or with {@code -}) it starts a server with a heap filter on
+ * localhost. Each thread keeps up to {@code window} calls outstanding, half of them puts of even
+ * keys and half queries of odd keys, which were never put, so every positive answer to a query is a
+ * false positive. Prints the throughput, the mean number of calls per frame and the observed false
+ * positive rate.
+ */
+public final class LoadTest {
+    private static final String FILTER = "loadtest";
+
+    private LoadTest() {}
+
+    public static void main(String[] args) throws Exception {
+        String target = args.length > 0 ? args[0] : "-";
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int window = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        long expectedInsertions = args.length > 4 ? Long.parseLong(args[4]) : 10_000_000L;
+
+        BloomFilterServer server = null;
+        InetSocketAddress address;
+        if (target.equals("-")) {
+            server = new BloomFilterServer(new InetSocketAddress("localhost", 0));
+            server.addFilter(FILTER, BloomFilter.create(Funnels.byteArrayFunnel(), expectedInsertions, 0.01));
+            server.start();
+            address = server.localAddress();
+        } else {
+            int colon = target.lastIndexOf(':');
+            address = new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+        }
+
+        AtomicLong puts = new AtomicLong();
+        AtomicLong queries = new AtomicLong();
+        AtomicLong falsePositives = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        try (BloomFilterClient client = new BloomFilterClient(address)) {
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Thread worker =
+                        new Thread(
+                                () -> {
+                                    Semaphore outstanding = new Semaphore(window);
+                                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                                    while (System.nanoTime() < deadline) {
+                                        outstanding.acquireUninterruptibly();
+                                        long key = random.nextLong(expectedInsertions) * 2;
+                                        boolean put = random.nextBoolean();
+                                        CompletableFuture<Boolean> result =
+                                                put
+                                                        ? client.putAsync(FILTER, toBytes(key))
+                                                        : client.mightContainAsync(FILTER, toBytes(key + 1));
+                                        result.whenComplete(
+                                                (answer, failure) -> {
+                                                    outstanding.release();
+                                                    if (failure != null) {
+                                                        errors.incrementAndGet();
+                                                    } else if (put) {
+                                                        puts.incrementAndGet();
+                                                    } else {
+                                                        queries.incrementAndGet();
+                                                        if (answer) {
+                                                            falsePositives.incrementAndGet();
+                                                        }
+                                                    }
+                                                });
+                                    }
+                                    outstanding.acquireUninterruptibly(window);
+                                },
+                                "loadtest-" + t);
+                workers.add(worker);
+                worker.start();
+            }
+            long start = System.nanoTime();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+
+            long calls = puts.get() + queries.get();
+            System.out.printf(
+                    "%d threads x %d outstanding: %d calls in %.1f s, %.0f calls/s (%d puts, %d queries, %d errors)%n",
+                    threads, window, calls, elapsed, calls / elapsed, puts.get(), queries.get(), errors.get());
+            System.out.printf(
+                    "%d frames, %.1f calls/frame; observed fpp %.5f%n",
+                    client.framesSent(),
+                    client.callsSent() / (double) Math.max(1, client.framesSent()),
+                    falsePositives.get() / (double) Math.max(1, queries.get()));
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private static byte[] toBytes(long value) {
+        byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+}
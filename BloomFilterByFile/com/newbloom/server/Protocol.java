@@ -0,0 +1,95 @@
+package com.newbloom.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The wire protocol between {@link BloomFilterServer} and {@link BloomFilterClient}.
+ *
+ * <p>Every frame is an {@code int} length followed by that many bytes, all big-endian. A request
+ * carries a batch of elements for one filter:
+ *
+ * <pre>
+ *   int    requestId
+ *   byte   opcode            PUT or QUERY
+ *   short  filter name length, then the name in UTF-8
+ *   int    element count, then per element an int length and its bytes
+ * </pre>
+ *
+ * and is answered by
+ *
+ * <pre>
+ *   int    requestId
+ *   byte   status            OK or ERROR
+ *   OK:    int element count, then one bit per element (bit i of byte i / 8): the results of
+ *          {@code put} or {@code mightContain}
+ *   ERROR: short message length, then the message in UTF-8
+ * </pre>
+ *
+ * <p>Clients may pipeline any number of requests; the server answers the requests of a connection in
+ * order.
+ */
+final class Protocol {
+    private Protocol() {}
+
+    static final byte PUT = 1;
+    static final byte QUERY = 2;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    /** Largest frame either side accepts, so that a corrupt length cannot exhaust the heap. */
+    static final int MAX_FRAME_BYTES = 16 << 20;
+
+    /** Size of a request frame, including its length prefix. */
+    static int requestSize(byte[] name, int elementCount, long elementBytes) {
+        long size = requestBytes(name, elementCount, elementBytes);
+        if (!fits(size)) {
+            throw new IllegalArgumentException("Request of " + size + " bytes exceeds the frame limit");
+        }
+        return (int) size;
+    }
+
+    /** Size of a request frame, including its length prefix, whether or not it is over the limit. */
+    static long requestBytes(byte[] name, int elementCount, long elementBytes) {
+        return 4 + 4 + 1 + 2 + name.length + 4 + 4L * elementCount + elementBytes;
+    }
+
+    /** Returns whether a frame of {@code size} bytes, including its length prefix, may be sent. */
+    static boolean fits(long size) {
+        return size - 4 <= MAX_FRAME_BYTES;
+    }
+
+    /** Writes a complete response frame for {@code results} into {@code out}. */
+    static void writeResults(ByteBuffer out, int requestId, boolean[] results) {
+        byte[] packed = new byte[(results.length + 7) >>> 3];
+        for (int i = 0; i < results.length; i++) {
+            if (results[i]) {
+                packed[i >>> 3] |= (byte) (1 << (i & 7));
+            }
+        }
+        out.putInt(4 + 1 + 4 + packed.length);
+        out.putInt(requestId);
+        out.put(OK);
+        out.putInt(results.length);
+        out.put(packed);
+    }
+
+    static int resultsSize(int count) {
+        return 4 + 4 + 1 + 4 + ((count + 7) >>> 3);
+    }
+
+    /** Returns a complete error response frame. */
+    static ByteBuffer error(int requestId, String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, Short.MAX_VALUE);
+        ByteBuffer out = ByteBuffer.allocate(4 + 4 + 1 + 2 + length);
+        out.putInt(4 + 1 + 2 + length);
+        out.putInt(requestId);
+        out.put(ERROR);
+        out.putShort((short) length);
+        out.put(bytes, 0, length);
+        out.flip();
+        return out;
+    }
+}
@@ -0,0 +1,290 @@
+package com.newbloom.tools;
+
+import com.newbloom.common.hash.BloomFilter;
+import com.newbloom.common.hash.BloomFilterStrategies;
+import com.newbloom.common.hash.Funnel;
+import com.newbloom.common.hash.Funnels;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+import static com.newbloom.common.base.Preconditions.checkNotNull;
+
+/**
+ * Builds a Bloom filter from a file of newline-delimited keys:
+ *
+ * <pre>
+ *   BulkLoader keysFile expectedInsertions [fpp] [threads] [target]
+ * </pre>
+ *
+ * <p>The keys file is memory-mapped in chunks of about 64 MB, cut at line boundaries, which the
+ * threads (one per core by default) take in turn. Each key is the bytes of a line without its
+ * terminator ({@code \n} or {@code \r\n}), put with {@link BloomFilter#putBytes}; empty lines are
+ * skipped. Lines are found a word at a time and copied into a per-thread buffer, so nothing is
+ * allocated per key and the hashing keeps up with reading the file.
+ *
+ * <p>The target is {@code -} (the default) for a heap filter that is only measured, {@code
+ * heap:out} to also write it to {@code out} with {@link BloomFilter#writeTo}, or {@code file:bits}
+ * for a filter created by {@link BloomFilter#createByFile}. Each bit of a file filter is read and
+ * written through the file, so a file target is loaded into a heap {@link BloomFilter#copy() copy}
+ * and merged back into the file with one {@link BloomFilter#putAll} at the end. Prints the
+ * throughput and the final {@link BloomFilter#expectedFpp()}.
+ */
+public final class BulkLoader {
+    /** Size after which a chunk is cut, at the next line boundary. */
+    static final int CHUNK_BYTES = 64 << 20;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_SEVEN = 0x7F7F7F7F7F7F7F7FL;
+    private static final long NEWLINES = '\n' * ONES;
+
+    private BulkLoader() {}
+
+    /**
+     * The outcome of a {@link #load}.
+     */
+    public static final class Result {
+        private final long keys;
+        private final long bytes;
+        private final long nanos;
+
+        Result(long keys, long bytes, long nanos) {
+            this.keys = keys;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /** Returns the number of keys put. */
+        public long keys() {
+            return keys;
+        }
+
+        /** Returns the size of the keys file. */
+        public long bytes() {
+            return bytes;
+        }
+
+        public double seconds() {
+            return nanos / 1e9;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(seconds(), 1e-9);
+            return String.format(
+                    "%d keys, %.1f MB in %.2f s (%.1f MB/s, %.0f keys/s)",
+                    keys, bytes / 1e6, seconds, bytes / 1e6 / seconds, keys / seconds);
+        }
+    }
+
+    /**
+     * Puts every line of {@code keys} into {@code filter} from {@code threads} threads. The filter
+     * must accept {@link BloomFilter#putBytes} and concurrent puts, i.e. be a heap filter.
+     */
+    public static Result load(Path keys, BloomFilter<?> filter, int threads) throws IOException {
+        checkNotNull(keys);
+        checkNotNull(filter);
+        checkArgument(threads > 0, "threads (%s) must be > 0", threads);
+        try (FileChannel channel = FileChannel.open(keys, StandardOpenOption.READ)) {
+            long start = System.nanoTime();
+            long[] bounds = chunkBounds(channel);
+            AtomicInteger nextChunk = new AtomicInteger();
+            List<Callable<Long>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                workers.add(
+                        () -> {
+                            ChunkReader reader = new ChunkReader(filter);
+                            long lines = 0;
+                            int chunk;
+                            while ((chunk = nextChunk.getAndIncrement()) < bounds.length - 1) {
+                                long from = bounds[chunk];
+                                MappedByteBuffer buffer =
+                                        channel.map(FileChannel.MapMode.READ_ONLY, from, bounds[chunk + 1] - from);
+                                lines += reader.read(buffer);
+                            }
+                            return lines;
+                        });
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                long lines = 0;
+                for (Future<Long> result : executor.invokeAll(workers)) {
+                    lines += result.get();
+                }
+                return new Result(lines, channel.size(), System.nanoTime() - start);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading " + keys, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException("Failed to load " + keys, cause);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Returns the offsets at which the chunks start, followed by the size of the file. Every chunk
+     * but the last ends right after a {@code '\n'}, at least {@link #CHUNK_BYTES} after its start.
+     */
+    static long[] chunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer scan = ByteBuffer.allocate(4096);
+        long position = CHUNK_BYTES;
+        while (position < size) {
+            long boundary = size;
+            search:
+            while (position < size) {
+                scan.clear();
+                int read = channel.read(scan, position);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (scan.get(i) == '\n') {
+                        boundary = position + i + 1;
+                        break search;
+                    }
+                }
+                position += read;
+            }
+            long from = bounds.get(bounds.size() - 1);
+            checkArgument(
+                    boundary - from <= Integer.MAX_VALUE,
+                    "a line after offset %s is longer than a mapping can hold", from);
+            if (boundary < size) {
+                bounds.add(boundary);
+            }
+            position = boundary + CHUNK_BYTES;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /** Splits chunks into lines and puts them, reusing one buffer for all of them. */
+    private static final class ChunkReader {
+        private final BloomFilter<?> filter;
+        private byte[] line = new byte[256];
+
+        ChunkReader(BloomFilter<?> filter) {
+            this.filter = filter;
+        }
+
+        /** Puts every line of {@code chunk}, returning the number of keys put. */
+        long read(MappedByteBuffer chunk) {
+            chunk.order(ByteOrder.LITTLE_ENDIAN);
+            int limit = chunk.limit();
+            long keys = 0;
+            int lineStart = 0;
+            int i = 0;
+            for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+                // Exact per-byte match of '\n': the high bit of each byte of x is set iff it is 0.
+                long x = chunk.getLong(i) ^ NEWLINES;
+                long newlines = ~(((x & LOW_SEVEN) + LOW_SEVEN) | x | LOW_SEVEN);
+                while (newlines != 0) {
+                    int end = i + (Long.numberOfTrailingZeros(newlines) >>> 3);
+                    keys += put(chunk, lineStart, end);
+                    lineStart = end + 1;
+                    newlines &= newlines - 1;
+                }
+            }
+            for (; i < limit; i++) {
+                if (chunk.get(i) == '\n') {
+                    keys += put(chunk, lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart < limit) {
+                keys += put(chunk, lineStart, limit);
+            }
+            return keys;
+        }
+
+        private int put(ByteBuffer chunk, int start, int end) {
+            if (end > start && chunk.get(end - 1) == '\r') {
+                end--;
+            }
+            int length = end - start;
+            if (length == 0) {
+                return 0;
+            }
+            if (length > line.length) {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+            chunk.get(start, line, 0, length);
+            filter.putBytes(line, 0, length);
+            return 1;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BulkLoader keysFile expectedInsertions [fpp] [threads] [-|heap:out|file:bits]");
+            System.exit(2);
+        }
+        Path keys = Paths.get(args[0]);
+        long expectedInsertions = Long.parseLong(args[1]);
+        double fpp = args.length > 2 ? Double.parseDouble(args[2]) : 0.01;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        String target = args.length > 4 ? args[4] : "-";
+        checkArgument(
+                target.equals("-") || target.startsWith("heap:") || target.startsWith("file:"),
+                "target (%s) must be -, heap:out or file:bits", target);
+
+        Funnel<byte[]> funnel = Funnels.byteArrayFunnel();
+        BloomFilter<byte[]> filter;
+        Result result;
+        if (target.startsWith("file:")) {
+            filter =
+                    BloomFilter.createByFile(
+                            funnel, target.substring(5), expectedInsertions, fpp, BloomFilterStrategies.MURMUR128_MITZ_64);
+            BloomFilter<byte[]> heap = filter.copy();
+            result = load(keys, heap, threads);
+            long start = System.nanoTime();
+            filter.putAll(heap);
+            System.out.printf("merged into %s in %.2f s%n", target.substring(5), (System.nanoTime() - start) / 1e9);
+        } else {
+            filter = BloomFilter.create(funnel, expectedInsertions, fpp);
+            result = load(keys, filter, threads);
+            if (target.startsWith("heap:")) {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(target.substring(5))))) {
+                    filter.writeTo(out);
+                }
+            }
+        }
+        System.out.printf(
+                "%s with %d threads; expectedFpp %.6f, approximateElementCount %d%n",
+                result, threads, filter.expectedFpp(), filter.approximateElementCount());
+    }
+}
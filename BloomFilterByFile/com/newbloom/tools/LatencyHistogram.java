@@ -0,0 +1,87 @@
+package com.newbloom.tools;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+
+/**
+ * A histogram of latencies in nanoseconds with a relative error under 1.6% at any magnitude, in a
+ * fixed array of about 3,800 counters: values below 128 are counted exactly, larger ones in 64
+ * linear buckets per power of two, as in an HdrHistogram with two significant digits.
+ *
+ * <p>Not thread-safe: every client records into its own histogram, and they are {@linkplain #add
+ * added} up at the end.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int EXACT = 1 << SUB_BITS;
+    private static final int HALF = EXACT / 2;
+
+    private final long[] counts = new long[EXACT + (64 - SUB_BITS) * HALF];
+    private long count;
+    private long sum;
+    private long max;
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    private static int index(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return EXACT + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /** Returns the largest value counted at {@code index}. */
+    private static long highestValue(int index) {
+        if (index < EXACT) {
+            return index;
+        }
+        int shift = (index - EXACT) / HALF + 1;
+        long sub = (index - EXACT) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /** Adds the counts of {@code other} to this histogram. */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return count;
+    }
+
+    long max() {
+        return max;
+    }
+
+    double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the value at {@code percentile} (in [0, 100]): no more than that fraction of the
+     * recorded values is larger, rounded up to the top of its bucket and capped at {@link #max()}.
+     */
+    long percentile(double percentile) {
+        checkArgument(percentile >= 0 && percentile <= 100, "percentile (%s) must be in [0, 100]", percentile);
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return max;
+    }
+}
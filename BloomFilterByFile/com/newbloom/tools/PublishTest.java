@@ -0,0 +1,170 @@
+package com.newbloom.tools;
+
+import com.newbloom.common.hash.BloomFilter;
+import com.newbloom.common.hash.Funnels;
+import com.newbloom.common.hash.SharedBloomFilter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Concurrency test of {@link SharedBloomFilter#publish} from several threads of one process to the
+ * same file:
+ *
+ * <pre>
+ *   PublishTest [file] [threads] [rounds]
+ * </pre>
+ *
+ * <p>Each thread publishes {@code rounds} filters, each holding the keys of one (thread, round)
+ * pair, while a reader keeps querying the file through {@link SharedBloomFilter#open}. Every publish
+ * must succeed, the generations handed out must be {@code 1..threads * rounds} with no gap or
+ * repeat, the reader must only see generations go up, and the last version must hold the keys of
+ * the last publish. Prints the outcome and exits with status 1 on any failure.
+ */
+public final class PublishTest {
+    private static final int KEYS_PER_FILTER = 1000;
+
+    private PublishTest() {}
+
+    public static void main(String[] args) throws Exception {
+        String filename = args.length > 0 ? args[0] : File.createTempFile("publishtest", ".bf").getPath();
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 25;
+        new File(filename).delete();
+        new File(filename + ".gen").delete();
+
+        List<String> failures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<long[]>> publishers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            publishers.add(executor.submit((Callable<long[]>) () -> {
+                start.await();
+                long[] generations = new long[rounds];
+                for (int round = 0; round < rounds; round++) {
+                    generations[round] = SharedBloomFilter.publish(filter(thread, round), filename);
+                }
+                return generations;
+            }));
+        }
+
+        // The reader opens the file once the first version is out, then watches the generations.
+        AtomicBoolean publishing = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            try {
+                SharedBloomFilter<Long> opened = null;
+                while (opened == null && publishing.get()) {
+                    try {
+                        opened = SharedBloomFilter.open(Funnels.longFunnel(), filename);
+                    } catch (IllegalArgumentException e) {
+                        Thread.yield(); // nothing published yet
+                    }
+                }
+                if (opened == null) {
+                    return;
+                }
+                try (SharedBloomFilter<Long> shared = opened) {
+                    long last = 0;
+                    while (publishing.get()) {
+                        shared.mightContain(0L);
+                        long generation = shared.generation();
+                        if (generation < last) {
+                            synchronized (failures) {
+                                failures.add("reader went back from generation " + last + " to " + generation);
+                            }
+                        }
+                        last = generation;
+                    }
+                }
+            } catch (RuntimeException e) {
+                synchronized (failures) {
+                    failures.add("reader failed: " + e);
+                }
+            }
+        }, "publishtest-reader");
+        reader.start();
+
+        long begin = System.nanoTime();
+        start.countDown();
+        boolean[] seen = new boolean[threads * rounds + 1];
+        long lastGeneration = 0;
+        int lastThread = -1;
+        int lastRound = -1;
+        for (int t = 0; t < threads; t++) {
+            long[] generations;
+            try {
+                generations = publishers.get(t).get();
+            } catch (ExecutionException e) {
+                failures.add("publisher " + t + " failed: " + e.getCause());
+                continue;
+            }
+            for (int round = 0; round < rounds; round++) {
+                long generation = generations[round];
+                if (generation < 1 || generation >= seen.length || seen[(int) generation]) {
+                    failures.add("publisher " + t + " got generation " + generation + " twice or out of range");
+                    continue;
+                }
+                seen[(int) generation] = true;
+                if (generation > lastGeneration) {
+                    lastGeneration = generation;
+                    lastThread = t;
+                    lastRound = round;
+                }
+            }
+        }
+        long elapsedMillis = (System.nanoTime() - begin) / 1_000_000;
+        publishing.set(false);
+        reader.join();
+        executor.shutdown();
+
+        if (failures.isEmpty()) {
+            try (SharedBloomFilter<Long> shared = SharedBloomFilter.open(Funnels.longFunnel(), filename)) {
+                if (shared.generation() != threads * rounds) {
+                    failures.add("final generation is " + shared.generation() + ", not " + threads * rounds);
+                }
+                for (long key : keys(lastThread, lastRound)) {
+                    if (!shared.mightContain(key)) {
+                        failures.add("final version misses key " + key + " of the last publish");
+                        break;
+                    }
+                }
+            }
+        }
+
+        System.out.printf("%d threads x %d publishes to %s in %d ms%n", threads, rounds, filename, elapsedMillis);
+        for (String failure : failures) {
+            System.out.println("FAILED: " + failure);
+        }
+        new File(filename).delete();
+        new File(filename + ".gen").delete();
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static BloomFilter<Long> filter(int thread, int round) {
+        BloomFilter<Long> filter = BloomFilter.create(Funnels.longFunnel(), KEYS_PER_FILTER, 0.01);
+        for (long key : keys(thread, round)) {
+            filter.put(key);
+        }
+        return filter;
+    }
+
+    private static long[] keys(int thread, int round) {
+        long[] keys = new long[KEYS_PER_FILTER];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ((long) thread << 40) | ((long) round << 20) | i;
+        }
+        return keys;
+    }
+}
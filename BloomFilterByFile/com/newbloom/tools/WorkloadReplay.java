@@ -0,0 +1,515 @@
+package com.newbloom.tools;
+
+import com.newbloom.common.hash.BloomFilter;
+import com.newbloom.common.hash.BloomFilterStrategies;
+import com.newbloom.common.hash.FrontCache;
+import com.newbloom.common.hash.Funnels;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.newbloom.common.base.Preconditions.checkArgument;
+
+/**
+ * Replays a key workload against a {@link BloomFilter} at a fixed request rate and reports its
+ * latency distribution and observed false positive rate, to size a filter setup (backend, size,
+ * strategy, clients) before deploying it:
+ *
+ * <pre>
+ *   WorkloadReplay [option=value ...]
+ * </pre>
+ *
+ * <p>The filter, of {@link Funnels#byteArrayFunnel()}, is built first from the member keys: the lines
+ * of {@code members=file} for a trace, the even numbers below {@code 2 * members} for a synthetic
+ * workload, keys being their 8 big-endian bytes. The ground truth is known for every query, so
+ * every {@code true} answer for a non-member counts as a false positive, and a {@code false} answer
+ * for a member, which would be a bug, as a false negative.
+ *
+ * <p>Queries are issued <i>open-loop</i>: query {@code i} is due {@code i / rate} seconds after the
+ * start, whether or not earlier ones have completed, and {@code clients} clients share them out.
+ * Response times are measured from the due time, so a client that falls behind charges the delay
+ * to every query it makes late, rather than silently issuing fewer queries as a closed-loop client
+ * would (Gil Tene's <i>coordinated omission</i>); service times, measured from the actual start,
+ * are reported next to them. Clients are virtual threads where the JDK has them (21+), platform
+ * threads otherwise.
+ *
+ * <p>Options, with their defaults:
+ *
+ * <ul>
+ * <li>{@code workload=uniform}: {@code uniform}, {@code zipf:s} (e.g. {@code zipf:1.1}), or {@code
+ *     trace:file} to replay the lines of {@code file} in order, cycling through them
+ * <li>{@code members=1000000}: the number of member keys of a synthetic workload, or the file of
+ *     member keys of a trace
+ * <li>{@code keyspace=2*members}: the number of distinct keys a synthetic workload draws from; half
+ *     of the first {@code 2 * members} are members
+ * <li>{@code n=members}, {@code fpp=0.01}, {@code strategy=MURMUR128_MITZ_64}: the filter's
+ *     expected insertions, false positive probability and {@link BloomFilterStrategies strategy}
+ * <li>{@code backend=heap}: {@code heap}, {@code file:path} for {@link BloomFilter#createByFile},
+ *     or {@code mapped:path} for such a file {@linkplain BloomFilter#freeze() frozen} into a
+ *     read-only mapping; {@code path} must not exist yet
+ * <li>{@code cache=0}: the entries of a {@link BloomFilter#enableFrontCache front cache}, if any
+ * <li>{@code rate=100000} queries per second, for {@code seconds=10}, from {@code clients=64}
+ * <li>{@code seed=1}: the seed of the synthetic workloads
+ * <li>{@code format=text}: {@code text}, {@code csv} (a header and a row) or {@code json}
+ * </ul>
+ */
+public final class WorkloadReplay {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    /**
+     * Clients yield rather than park for the last stretch before a query is due, since a parked
+     * thread wakes up tens of microseconds late, which would be charged to the filter.
+     */
+    private static final long SPIN_NANOS = 50_000;
+
+    private WorkloadReplay() {}
+
+    /** The keys to query, and which of them are members. */
+    interface Workload {
+        /**
+         * Returns the key of query {@code i}, either the bytes of {@code buffer} or another array.
+         */
+        byte[] key(long i, KeyBuffer buffer);
+
+        /** Returns whether the key of query {@code i}, just returned by {@link #key}, is a member. */
+        boolean isMember(long i, KeyBuffer buffer);
+    }
+
+    /** Per-client state of a {@link Workload}: a reusable key buffer and random generator. */
+    static final class KeyBuffer {
+        final byte[] bytes = new byte[Long.BYTES];
+        final SplittableRandom random;
+        long id;
+
+        KeyBuffer(SplittableRandom random) {
+            this.random = random;
+        }
+
+        byte[] setId(long id) {
+            this.id = id;
+            for (int i = Long.BYTES - 1; i >= 0; i--) {
+                bytes[i] = (byte) id;
+                id >>>= 8;
+            }
+            return bytes;
+        }
+    }
+
+    /** Synthetic keys: members are the even ids below {@code 2 * members}. */
+    private abstract static class Synthetic implements Workload {
+        final long members;
+
+        Synthetic(long members) {
+            this.members = members;
+        }
+
+        abstract long nextId(SplittableRandom random);
+
+        public byte[] key(long i, KeyBuffer buffer) {
+            return buffer.setId(nextId(buffer.random));
+        }
+
+        public boolean isMember(long i, KeyBuffer buffer) {
+            return (buffer.id & 1) == 0 && (buffer.id >>> 1) < members;
+        }
+    }
+
+    private static final class Uniform extends Synthetic {
+        private final long keyspace;
+
+        Uniform(long members, long keyspace) {
+            super(members);
+            this.keyspace = keyspace;
+        }
+
+        long nextId(SplittableRandom random) {
+            return random.nextLong(keyspace);
+        }
+    }
+
+    /**
+     * Zipf-distributed ids, id 0 the most frequent, drawn by rejection-inversion (W. H&ouml;rmann and G.
+     * Derflinger, "Rejection-inversion to generate variates from monotone discrete distributions") in
+     * constant time for any number of keys.
+     */
+    static final class Zipf extends Synthetic {
+        private final long keyspace;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralKeyspace;
+        private final double s;
+
+        Zipf(long members, long keyspace, double exponent) {
+            super(members);
+            checkArgument(exponent > 0, "zipf exponent (%s) must be > 0", exponent);
+            this.keyspace = keyspace;
+            this.exponent = exponent;
+            this.hIntegralX1 = hIntegral(1.5) - 1;
+            this.hIntegralKeyspace = hIntegral(keyspace + 0.5);
+            this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+        }
+
+        long nextId(SplittableRandom random) {
+            while (true) {
+                double u = hIntegralKeyspace + random.nextDouble() * (hIntegralX1 - hIntegralKeyspace);
+                double x = hIntegralInverse(u);
+                long k = Math.max(1, Math.min(keyspace, (long) (x + 0.5)));
+                if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                    return k - 1;
+                }
+            }
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1 - exponent) * logX) * logX;
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = Math.max(-1, x * (1 - exponent));
+            return Math.exp(helper1(t) * x);
+        }
+
+        /** {@code log1p(x) / x}, accurate near 0. */
+        private static double helper1(double x) {
+            return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+        }
+
+        /** {@code expm1(x) / x}, accurate near 0. */
+        private static double helper2(double x) {
+            return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+        }
+    }
+
+    /** The lines of a file, replayed in order, with their membership looked up once at load. */
+    private static final class Trace implements Workload {
+        private final byte[][] keys;
+        private final boolean[] members;
+
+        Trace(byte[][] keys, boolean[] members) {
+            this.keys = keys;
+            this.members = members;
+        }
+
+        public byte[] key(long i, KeyBuffer buffer) {
+            return keys[(int) (i % keys.length)];
+        }
+
+        public boolean isMember(long i, KeyBuffer buffer) {
+            return members[(int) (i % keys.length)];
+        }
+    }
+
+    /** What one client measured; added up over the clients at the end. */
+    static final class Stats {
+        final LatencyHistogram response = new LatencyHistogram();
+        final LatencyHistogram service = new LatencyHistogram();
+        long queries;
+        long nonMembers;
+        long falsePositives;
+        long falseNegatives;
+        boolean virtualThreads;
+
+        void add(Stats other) {
+            response.add(other.response);
+            service.add(other.service);
+            queries += other.queries;
+            nonMembers += other.nonMembers;
+            falsePositives += other.falsePositives;
+            falseNegatives += other.falseNegatives;
+        }
+    }
+
+    /**
+     * Issues {@code rate * seconds} queries of {@code workload} against {@code filter} from {@code
+     * clients} clients, open-loop, see the class comment.
+     */
+    static Stats replay(BloomFilter<byte[]> filter, Workload workload, long rate, long seconds, int clients, long seed)
+            throws InterruptedException, ExecutionException {
+        checkArgument(rate > 0, "rate (%s) must be > 0", rate);
+        checkArgument(clients > 0, "clients (%s) must be > 0", clients);
+        long queries = rate * seconds;
+        double nanosPerQuery = 1e9 / rate;
+        SplittableRandom seeds = new SplittableRandom(seed);
+        List<Callable<Stats>> tasks = new ArrayList<>();
+        long start = System.nanoTime() + 10_000_000L;
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            SplittableRandom random = seeds.split();
+            tasks.add(
+                    () -> {
+                        Stats stats = new Stats();
+                        KeyBuffer buffer = new KeyBuffer(random);
+                        for (long i = client; i < queries; i += clients) {
+                            long due = start + (long) (i * nanosPerQuery);
+                            long now;
+                            while ((now = System.nanoTime()) < due) {
+                                if (due - now > SPIN_NANOS) {
+                                    LockSupport.parkNanos(due - now - SPIN_NANOS);
+                                } else {
+                                    Thread.yield();
+                                }
+                            }
+                            byte[] key = workload.key(i, buffer);
+                            boolean answer = filter.mightContain(key);
+                            long end = System.nanoTime();
+                            stats.response.record(end - due);
+                            stats.service.record(end - now);
+                            stats.queries++;
+                            if (workload.isMember(i, buffer)) {
+                                if (!answer) {
+                                    stats.falseNegatives++;
+                                }
+                            } else {
+                                stats.nonMembers++;
+                                if (answer) {
+                                    stats.falsePositives++;
+                                }
+                            }
+                        }
+                        return stats;
+                    });
+        }
+        ExecutorService executor = virtualThreadExecutor();
+        boolean virtualThreads = executor != null;
+        if (!virtualThreads) {
+            executor = Executors.newFixedThreadPool(clients);
+        }
+        try {
+            Stats stats = new Stats();
+            stats.virtualThreads = virtualThreads;
+            for (Future<Stats> result : executor.invokeAll(tasks)) {
+                stats.add(result.get());
+            }
+            return stats;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns an executor running each task on a new virtual thread, looked up reflectively so that
+     * this compiles on JDKs before 21, or null on those.
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("usage: WorkloadReplay [option=value ...], see the javadoc of WorkloadReplay");
+                System.exit(2);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        String workloadName = options.getOrDefault("workload", "uniform");
+        String backend = options.getOrDefault("backend", "heap");
+        BloomFilterStrategies strategy =
+                BloomFilterStrategies.valueOf(options.getOrDefault("strategy", "MURMUR128_MITZ_64"));
+        double fpp = Double.parseDouble(options.getOrDefault("fpp", "0.01"));
+        int cache = Integer.parseInt(options.getOrDefault("cache", "0"));
+        long rate = Long.parseLong(options.getOrDefault("rate", "100000"));
+        long seconds = Long.parseLong(options.getOrDefault("seconds", "10"));
+        int clients = Integer.parseInt(options.getOrDefault("clients", "64"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        String format = options.getOrDefault("format", "text");
+        checkArgument(
+                format.equals("text") || format.equals("csv") || format.equals("json"),
+                "format (%s) must be text, csv or json", format);
+        checkArgument(
+                backend.equals("heap") || backend.startsWith("file:") || backend.startsWith("mapped:"),
+                "backend (%s) must be heap, file:path or mapped:path", backend);
+
+        // Member keys, to build the filter from.
+        List<byte[]> memberKeys = new ArrayList<>();
+        Workload workload;
+        long members;
+        if (workloadName.startsWith("trace:")) {
+            checkArgument(options.containsKey("members"), "a trace needs members=file");
+            memberKeys = readLines(Paths.get(options.get("members")));
+            members = memberKeys.size();
+            Set<ByteBuffer> memberSet = new HashSet<>();
+            for (byte[] key : memberKeys) {
+                memberSet.add(ByteBuffer.wrap(key));
+            }
+            List<byte[]> trace = readLines(Paths.get(workloadName.substring(6)));
+            checkArgument(!trace.isEmpty(), "trace %s is empty", workloadName.substring(6));
+            boolean[] isMember = new boolean[trace.size()];
+            for (int i = 0; i < isMember.length; i++) {
+                isMember[i] = memberSet.contains(ByteBuffer.wrap(trace.get(i)));
+            }
+            workload = new Trace(trace.toArray(new byte[0][]), isMember);
+        } else {
+            members = Long.parseLong(options.getOrDefault("members", "1000000"));
+            long keyspace = Long.parseLong(options.getOrDefault("keyspace", Long.toString(2 * members)));
+            checkArgument(keyspace > 0, "keyspace (%s) must be > 0", keyspace);
+            if (workloadName.equals("uniform")) {
+                workload = new Uniform(members, keyspace);
+            } else if (workloadName.startsWith("zipf:")) {
+                workload = new Zipf(members, keyspace, Double.parseDouble(workloadName.substring(5)));
+            } else {
+                throw new IllegalArgumentException("workload (" + workloadName + ") must be uniform, zipf:s or trace:file");
+            }
+        }
+        long n = Long.parseLong(options.getOrDefault("n", Long.toString(Math.max(1, members))));
+
+        long buildStart = System.nanoTime();
+        BloomFilter<byte[]> filter = build(backend, n, fpp, strategy, members, memberKeys);
+        double buildSeconds = (System.nanoTime() - buildStart) / 1e9;
+        FrontCache frontCache = cache > 0 ? filter.enableFrontCache(cache) : null;
+
+        long replayStart = System.nanoTime();
+        Stats stats = replay(filter, workload, rate, seconds, clients, seed);
+        double replaySeconds = (System.nanoTime() - replayStart) / 1e9;
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("workload", workloadName);
+        report.put("backend", backend);
+        report.put("strategy", strategy.name());
+        report.put("n", n);
+        report.put("fpp", fpp);
+        report.put("members", members);
+        report.put("clients", clients);
+        report.put("virtualThreads", stats.virtualThreads);
+        report.put("targetRate", rate);
+        report.put("achievedRate", Math.round(stats.queries / replaySeconds));
+        report.put("buildSeconds", round(buildSeconds));
+        report.put("queries", stats.queries);
+        report.put("expectedFpp", filter.expectedFpp());
+        report.put("observedFpp", stats.nonMembers == 0 ? 0.0 : (double) stats.falsePositives / stats.nonMembers);
+        report.put("falsePositives", stats.falsePositives);
+        report.put("falseNegatives", stats.falseNegatives);
+        if (frontCache != null) {
+            report.put("cacheHitRate", frontCache.hitRate());
+        }
+        addLatencies(report, "response", stats.response);
+        addLatencies(report, "service", stats.service);
+        filter.close();
+
+        System.out.print(format(report, format));
+    }
+
+    /** Builds the filter of {@code backend} from the member keys, or the synthetic members. */
+    private static BloomFilter<byte[]> build(
+            String backend, long n, double fpp, BloomFilterStrategies strategy, long members, List<byte[]> memberKeys) {
+        BloomFilter<byte[]> file = null;
+        BloomFilter<byte[]> heap;
+        if (backend.equals("heap")) {
+            heap = BloomFilter.create(Funnels.byteArrayFunnel(), n, fpp, strategy);
+        } else {
+            // As in BulkLoader: a file filter is loaded into a heap copy, merged back at once.
+            String filename = backend.substring(backend.indexOf(':') + 1);
+            // A reopened file filter would not count the bits already in it, skewing expectedFpp.
+            checkArgument(!Files.exists(Paths.get(filename)), "%s already exists", filename);
+            file = BloomFilter.createByFile(Funnels.byteArrayFunnel(), filename, n, fpp, strategy);
+            heap = file.copy();
+        }
+        if (memberKeys.isEmpty()) {
+            KeyBuffer buffer = new KeyBuffer(null);
+            for (long id = 0; id < members; id++) {
+                heap.putBytes(buffer.setId(2 * id), 0, Long.BYTES);
+            }
+        } else {
+            for (byte[] key : memberKeys) {
+                heap.putBytes(key, 0, key.length);
+            }
+        }
+        if (file == null) {
+            return heap;
+        }
+        file.putAll(heap);
+        if (backend.startsWith("file:")) {
+            return file;
+        }
+        BloomFilter<byte[]> mapped = file.freeze();
+        file.close();
+        return mapped;
+    }
+
+    private static List<byte[]> readLines(Path path) throws IOException {
+        List<byte[]> keys = new ArrayList<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.ISO_8859_1)) {
+            if (!line.isEmpty()) {
+                keys.add(line.getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+        return keys;
+    }
+
+    private static void addLatencies(Map<String, Object> report, String name, LatencyHistogram histogram) {
+        report.put(name + "MeanMicros", round(histogram.mean() / 1e3));
+        for (double percentile : PERCENTILES) {
+            String label = Double.toString(percentile).replace(".0", "").replace('.', '_');
+            report.put(name + "P" + label + "Micros", round(histogram.percentile(percentile) / 1e3));
+        }
+        report.put(name + "MaxMicros", round(histogram.max() / 1e3));
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    static String format(Map<String, Object> report, String format) {
+        StringBuilder out = new StringBuilder();
+        if (format.equals("csv")) {
+            out.append(String.join(",", report.keySet())).append('\n');
+            List<String> values = new ArrayList<>();
+            for (Object value : report.values()) {
+                String text = String.valueOf(value);
+                values.add(text.contains(",") || text.contains("\"") ? '"' + text.replace("\"", "\"\"") + '"' : text);
+            }
+            out.append(String.join(",", values)).append('\n');
+        } else if (format.equals("json")) {
+            out.append('{');
+            String separator = "";
+            for (Map.Entry<String, Object> entry : report.entrySet()) {
+                out.append(separator).append('"').append(entry.getKey()).append("\":");
+                Object value = entry.getValue();
+                if (value instanceof String) {
+                    out.append('"').append(((String) value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+                } else if (value instanceof Double && !Double.isFinite((Double) value)) {
+                    out.append("null");
+                } else {
+                    out.append(value);
+                }
+                separator = ",";
+            }
+            out.append("}\n");
+        } else {
+            for (Map.Entry<String, Object> entry : report.entrySet()) {
+                out.append(String.format("%-22s %s%n", entry.getKey(), entry.getValue()));
+            }
+        }
+        return out.toString();
+    }
+}